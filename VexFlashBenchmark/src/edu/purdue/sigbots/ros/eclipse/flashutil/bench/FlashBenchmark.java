@@ -0,0 +1,361 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil.bench;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.sim.*;
+
+/**
+ * Benchmarks the complete flash pipeline (VexFlash.program()) against a simulated Cortex.
+ *
+ * Each selected mode is run on each selected link profile, with warmup iterations to let the
+ * JIT settle before the measured iterations. Reported for every combination are the payload
+ * rate, bootloader command rate, time per phase, and allocation rate of the flashing thread.
+ *
+ * Usage: FlashBenchmark [-m modes] [-p profiles] [-s size] [-w warmup] [-i iterations]
+ * [-d device]
+ */
+public class FlashBenchmark {
+	/**
+	 * Mode names accepted by -m, indexed by UploadParams.MODE_xxx.
+	 */
+	private static final String[] MODE_NAMES = { "clean", "fw", "upload-fs", "download-fs",
+		"delta" };
+	/**
+	 * Profile names accepted by -p.
+	 */
+	private static final String[] PROFILE_NAMES = { "instant", "tether", "vexnet" };
+	/**
+	 * Profiles matching PROFILE_NAMES.
+	 */
+	private static final LatencyProfile[] PROFILES = { LatencyProfile.INSTANT,
+		LatencyProfile.USB_TETHER, LatencyProfile.VEXNET };
+	/**
+	 * Name used for the file system benchmarks, no longer than the file name limit.
+	 */
+	private static final String FS_NAME = "bench";
+	/**
+	 * Name of the image uploaded by the delta benchmark, which differs from the image in a
+	 * few places.
+	 */
+	private static final String DELTA_NAME = "bench-delta";
+
+	/**
+	 * Statistics over the measured iterations of one value.
+	 */
+	private static class Statistic {
+		/**
+		 * Largest sample.
+		 */
+		private double max;
+		/**
+		 * Smallest sample.
+		 */
+		private double min;
+		/**
+		 * Number of samples.
+		 */
+		private int n;
+		/**
+		 * Sum of samples.
+		 */
+		private double sum;
+
+		public Statistic() {
+			max = Double.NEGATIVE_INFINITY;
+			min = Double.POSITIVE_INFINITY;
+			n = 0;
+			sum = 0.0;
+		}
+		/**
+		 * Adds a sample.
+		 *
+		 * @param value the sample value
+		 */
+		public void add(final double value) {
+			max = Math.max(max, value);
+			min = Math.min(min, value);
+			sum += value;
+			n++;
+		}
+		public String toString() {
+			if (n == 0)
+				return "n/a";
+			return String.format("%10.1f  [%.1f .. %.1f]", sum / n, min, max);
+		}
+	}
+
+	/**
+	 * Allocation counter for the current thread, or null if the JVM does not provide one.
+	 */
+	private final com.sun.management.ThreadMXBean allocation;
+	/**
+	 * Simulated device type.
+	 */
+	private final STMDevice device;
+	/**
+	 * Image history for delta uploads, kept apart from the user's own.
+	 */
+	private final ImageHistory history;
+	/**
+	 * Number of measured iterations.
+	 */
+	private final int iterations;
+	/**
+	 * Directory for the image and uploaded files.
+	 */
+	private final File workDir;
+	/**
+	 * Number of warmup iterations.
+	 */
+	private final int warmup;
+
+	/**
+	 * Creates a new flash benchmark.
+	 *
+	 * @param device the simulated device type
+	 * @param warmup the number of warmup iterations
+	 * @param iterations the number of measured iterations
+	 * @param workDir the directory for the image and uploaded files
+	 */
+	public FlashBenchmark(final STMDevice device, final int warmup, final int iterations,
+			final File workDir) {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean &&
+				((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported()) {
+			allocation = (com.sun.management.ThreadMXBean)bean;
+			allocation.setThreadAllocatedMemoryEnabled(true);
+		} else
+			allocation = null;
+		this.device = device;
+		history = new ImageHistory(new File(workDir, "history"));
+		this.iterations = iterations;
+		this.warmup = warmup;
+		this.workDir = workDir;
+	}
+	/**
+	 * Gets the number of bytes allocated so far by the current thread.
+	 *
+	 * @return the allocated byte count, or 0 if unavailable
+	 */
+	private long allocated() {
+		if (allocation == null)
+			return 0L;
+		return allocation.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	/**
+	 * Runs VexFlash once on a simulated device.
+	 *
+	 * @param sim the simulated device
+	 * @param profileName the name of the link profile, which names the simulated port
+	 * @param profile the link profile
+	 * @param mode the UploadParams.MODE_xxx operation
+	 * @param target the file or directory to transfer
+	 * @param output the indicator for the run
+	 * @return the flash utility, for its connect stage times
+	 * @throws SerialException if the flash fails
+	 */
+	private VexFlash flash(final STMBootloaderSimulator sim, final String profileName,
+			final LatencyProfile profile, final int mode, final File target,
+			final Indicator output) throws SerialException {
+		final VexFlash flash = new VexFlash();
+		final boolean wireless = profile == LatencyProfile.VEXNET;
+		flash.setHistory(history);
+		// The simulated port has no USB identifier, so pick the retry policy and baud rates
+		// from the profile; each profile gets its own port name, as found rates are cached
+		flash.setRetryPolicy(wireless ? RetryPolicy.WIRELESS : RetryPolicy.TETHER);
+		flash.setBaudRates(wireless ? new int[0] : VexFlash.FAST_BAUDS);
+		try {
+			flash.setup(new UploadParams(mode, "sim0", null, target), new SerialPortIO(
+				new SimulatorTransport("sim-" + profileName, sim, profile)));
+			flash.program(output);
+			return flash;
+		} catch (IOException e) {
+			throw new SerialException("Failed to open simulated port", e);
+		} finally {
+			flash.end();
+		}
+	}
+	/**
+	 * Creates a simulated device for one iteration, preloaded for the mode if necessary.
+	 *
+	 * @param mode the UploadParams.MODE_xxx operation
+	 * @param image the image file
+	 * @return the simulated device
+	 * @throws SerialException if preloading fails
+	 */
+	private STMBootloaderSimulator prepare(final int mode, final File image)
+			throws SerialException {
+		final STMBootloaderSimulator sim = new STMBootloaderSimulator(device);
+		if (mode == UploadParams.MODE_UPLOAD_FS)
+			// Something must be on the file system to read back
+			flash(sim, "instant", LatencyProfile.INSTANT, UploadParams.MODE_DOWNLOAD_FS, image,
+				new PhaseRecorder());
+		else if (mode == UploadParams.MODE_DELTA)
+			// The previous version must be on the device and recorded
+			flash(sim, "instant", LatencyProfile.INSTANT, UploadParams.MODE_FW, image,
+				new PhaseRecorder());
+		return sim;
+	}
+	/**
+	 * Benchmarks one mode on one link profile and prints the results.
+	 *
+	 * @param mode the UploadParams.MODE_xxx operation
+	 * @param profileName the name of the link profile
+	 * @param profile the link profile
+	 * @param image the image file, which is also the file system file; the delta benchmark
+	 * uploads a modified copy of it
+	 * @throws SerialException if a run fails
+	 */
+	public void run(final int mode, final String profileName, final LatencyProfile profile,
+			final File image) throws SerialException {
+		final Statistic allocRate = new Statistic(), byteRate = new Statistic(),
+			commandRate = new Statistic(), total = new Statistic();
+		final Statistic[] phases = new Statistic[PhaseRecorder.PHASES];
+		final Statistic[] stages = new Statistic[VexFlash.STAGES];
+		final PhaseRecorder recorder = new PhaseRecorder();
+		final File upload = new File(workDir, "upload"), delta = new File(workDir, DELTA_NAME);
+		final long size = image.length();
+		for (int i = 0; i < PhaseRecorder.PHASES; i++)
+			phases[i] = new Statistic();
+		for (int i = 0; i < VexFlash.STAGES; i++)
+			stages[i] = new Statistic();
+		if (!upload.isDirectory() && !upload.mkdirs())
+			throw new SerialException("Cannot create " + upload.getAbsolutePath());
+		for (int i = 0; i < warmup + iterations; i++) {
+			final STMBootloaderSimulator sim = prepare(mode, image);
+			final long commands = sim.getCommandCount(), bytes = allocated();
+			final long start = System.nanoTime();
+			recorder.start();
+			final File target;
+			if (mode == UploadParams.MODE_UPLOAD_FS)
+				target = upload;
+			else if (mode == UploadParams.MODE_DELTA)
+				target = delta;
+			else
+				target = image;
+			final VexFlash flash = flash(sim, profileName, profile, mode, target, recorder);
+			recorder.finish();
+			final double seconds = (System.nanoTime() - start) / 1e9;
+			if (i >= warmup) {
+				// Measured iteration
+				allocRate.add((allocated() - bytes) / seconds / 1024.0);
+				byteRate.add(size / seconds);
+				commandRate.add((sim.getCommandCount() - commands) / seconds);
+				total.add(seconds * 1000.0);
+				for (int j = 0; j < PhaseRecorder.PHASES; j++)
+					phases[j].add(recorder.getTime(j) / 1e6);
+				for (int j = 0; j < VexFlash.STAGES; j++)
+					stages[j].add(flash.getStageTime(j) / 1e6);
+			}
+		}
+		System.out.printf("%s on %s, %d bytes, %d iterations%n", MODE_NAMES[mode], profileName,
+			size, iterations);
+		System.out.printf("  %-14s %s%n", "total ms", total);
+		for (int j = 0; j < PhaseRecorder.PHASES; j++)
+			System.out.printf("  %-14s %s%n", PhaseRecorder.getName(j) + " ms", phases[j]);
+		for (int j = 0; j < VexFlash.STAGES; j++)
+			System.out.printf("    %-12s %s%n", VexFlash.getStageName(j) + " ms", stages[j]);
+		System.out.printf("  %-14s %s%n", "bytes/s", byteRate);
+		System.out.printf("  %-14s %s%n", "commands/s", commandRate);
+		System.out.printf("  %-14s %s%n", "alloc KiB/s", (allocation == null) ? "n/a" :
+			allocRate);
+		System.out.println();
+	}
+	/**
+	 * Looks up a name in a list.
+	 *
+	 * @param names the valid names
+	 * @param name the name to find
+	 * @return the index of the name
+	 * @throws IllegalArgumentException if the name is not in the list
+	 */
+	private static int indexOf(final String[] names, final String name) {
+		for (int i = 0; i < names.length; i++)
+			if (names[i].equalsIgnoreCase(name))
+				return i;
+		throw new IllegalArgumentException("Unknown option value: " + name + ", expected one of " +
+			Arrays.toString(names));
+	}
+	/**
+	 * Writes a random image file. The seed is fixed so that runs are comparable.
+	 *
+	 * @param file the file to write
+	 * @param size the size in bytes
+	 * @param edits the number of scattered single byte changes to make after generating it,
+	 * as a small code change would
+	 * @throws IOException if the file cannot be written
+	 */
+	private static void writeImage(final File file, final int size, final int edits)
+			throws IOException {
+		final byte[] data = new byte[size];
+		final Random random = new Random(size);
+		random.nextBytes(data);
+		for (int i = 0; i < edits; i++)
+			data[random.nextInt(size)] ^= 0x55;
+		final OutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(final String[] args) {
+		String modes = "clean,fw,delta,download-fs,upload-fs", profiles = "instant,tether,vexnet";
+		int size = 100 * 1024, warmup = 1, iterations = 3, device = 2;
+		try {
+			for (int i = 0; i < args.length - 1; i += 2) {
+				final String value = args[i + 1];
+				if (args[i].equals("-m"))
+					modes = value;
+				else if (args[i].equals("-p"))
+					profiles = value;
+				else if (args[i].equals("-s"))
+					size = Integer.parseInt(value);
+				else if (args[i].equals("-w"))
+					warmup = Integer.parseInt(value);
+				else if (args[i].equals("-i"))
+					iterations = Integer.parseInt(value);
+				else if (args[i].equals("-d"))
+					device = Integer.parseInt(value);
+				else
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+			if (args.length % 2 != 0)
+				throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+			if (size <= 0 || warmup < 0 || iterations <= 0)
+				throw new IllegalArgumentException("Size and iterations must be positive");
+			if (device < 0 || device >= STMDevice.STM_DEVICES.length)
+				throw new IllegalArgumentException("Unknown device " + device);
+			// High density by default, medium density parts have no room for a file system
+			final FlashBenchmark bench = new FlashBenchmark(STMDevice.STM_DEVICES[device],
+				warmup, iterations, new File(System.getProperty("java.io.tmpdir"),
+				"vexflash-bench"));
+			final File image = new File(bench.workDir, FS_NAME);
+			bench.workDir.mkdirs();
+			writeImage(image, size, 0);
+			writeImage(new File(bench.workDir, DELTA_NAME), size, 3);
+			for (String mode : modes.split(",")) {
+				final int op = indexOf(MODE_NAMES, mode.trim());
+				for (String profile : profiles.split(",")) {
+					final int index = indexOf(PROFILE_NAMES, profile.trim());
+					bench.run(op, PROFILE_NAMES[index], PROFILES[index], image);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: FlashBenchmark [-m clean,fw,delta,download-fs,upload-fs] " +
+				"[-p instant,tether,vexnet] [-s bytes] [-w warmup] [-i iterations] [-d device]");
+			System.exit(2);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil.bench;
+
+import edu.purdue.sigbots.ros.eclipse.flashutil.*;
+
+/**
+ * A progress indicator which silently times the phases of a VexFlash run, using the status
+ * messages and begin()/end() calls as phase boundaries.
+ */
+public class PhaseRecorder implements Indicator {
+	/**
+	 * Stopping user code, entering the bootloader and negotiating. For MODE_DOWNLOAD_FS this
+	 * also includes the scan for free file system space, which reports no status.
+	 */
+	public static final int PHASE_CONNECT = 0;
+	/**
+	 * Erasing flash memory (MODE_CLEAN and MODE_FW only).
+	 */
+	public static final int PHASE_ERASE = 1;
+	/**
+	 * The bulk transfer between begin() and end(), which is writing for all modes except
+	 * MODE_UPLOAD_FS, where it is reading.
+	 */
+	public static final int PHASE_TRANSFER = 2;
+	/**
+	 * Starting user code and returning VEXnet to terminal mode.
+	 */
+	public static final int PHASE_RESTART = 3;
+	/**
+	 * Any time between the transfer and the restart.
+	 */
+	public static final int PHASE_OTHER = 4;
+	/**
+	 * Number of phases.
+	 */
+	public static final int PHASES = 5;
+	/**
+	 * Names of the phases, for reports.
+	 */
+	private static final String[] NAMES = { "connect", "erase", "transfer", "restart",
+		"other" };
+
+	/**
+	 * Gets the name of a phase.
+	 *
+	 * @param phase the PHASE_xxx constant
+	 * @return the phase name
+	 */
+	public static String getName(final int phase) {
+		return NAMES[phase];
+	}
+
+	/**
+	 * The phase currently being timed, or -1 if not running.
+	 */
+	private int current;
+	/**
+	 * Time at which the current phase started.
+	 */
+	private long since;
+	/**
+	 * Accumulated time of each phase in nanoseconds.
+	 */
+	private final long[] times;
+
+	/**
+	 * Creates a new phase recorder.
+	 */
+	public PhaseRecorder() {
+		current = -1;
+		since = 0L;
+		times = new long[PHASES];
+	}
+	public void begin() {
+		enter(PHASE_TRANSFER);
+	}
+	public void end() {
+		enter(PHASE_OTHER);
+	}
+	/**
+	 * Ends the current phase and starts a new one.
+	 *
+	 * @param phase the phase to start, or -1 to stop timing
+	 */
+	private void enter(final int phase) {
+		final long now = System.nanoTime();
+		if (current >= 0)
+			times[current] += now - since;
+		current = phase;
+		since = now;
+	}
+	/**
+	 * Stops timing, ending the current phase.
+	 */
+	public void finish() {
+		enter(-1);
+	}
+	/**
+	 * Gets the time spent in a phase.
+	 *
+	 * @param phase the PHASE_xxx constant
+	 * @return the time in nanoseconds
+	 */
+	public long getTime(final int phase) {
+		return times[phase];
+	}
+	public void message(final String message) {
+		if (message.startsWith("Starting user code"))
+			enter(PHASE_RESTART);
+	}
+	public void messageBegin(final String message) {
+		if (message.startsWith("Erasing"))
+			enter(PHASE_ERASE);
+	}
+	public void messageEnd(final String message) {
+	}
+	public void progress(final int progress) {
+	}
+	/**
+	 * Starts timing from the connect phase, clearing any previous times.
+	 */
+	public void start() {
+		for (int i = 0; i < PHASES; i++)
+			times[i] = 0L;
+		current = -1;
+		enter(PHASE_CONNECT);
+	}
+	public String toString() {
+		final StringBuilder out = new StringBuilder(64);
+		for (int i = 0; i < PHASES; i++) {
+			if (i > 0)
+				out.append(',');
+			out.append(NAMES[i]).append('=').append(times[i] / 1000000L).append("ms");
+		}
+		return String.format("%s[%s]", getClass().getSimpleName(), out);
+	}
+}
@@ -0,0 +1,73 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+/**
+ * A growable circular byte queue. Not thread safe; callers provide their own locking.
+ */
+class ByteQueue {
+	private byte[] data;
+	private int count;
+	private int head;
+
+	/**
+	 * Creates an empty byte queue.
+	 *
+	 * @param capacity the initial capacity in bytes
+	 */
+	protected ByteQueue(final int capacity) {
+		count = 0;
+		data = new byte[capacity];
+		head = 0;
+	}
+	/**
+	 * Discards all queued bytes.
+	 */
+	public void clear() {
+		count = 0;
+		head = 0;
+	}
+	/**
+	 * Appends bytes to the end of the queue, growing it if required.
+	 *
+	 * @param src the source buffer
+	 * @param offset the offset in the source buffer
+	 * @param length the number of bytes to append
+	 */
+	public void put(final byte[] src, final int offset, final int length) {
+		if (count + length > data.length) {
+			// Grow and unwrap
+			final byte[] bigger = new byte[Math.max(data.length * 2, count + length)];
+			final int size = count;
+			take(bigger, 0, size);
+			data = bigger;
+			head = 0;
+			count = size;
+		}
+		final int tail = (head + count) % data.length, first = Math.min(length,
+			data.length - tail);
+		System.arraycopy(src, offset, data, tail, first);
+		System.arraycopy(src, offset + first, data, 0, length - first);
+		count += length;
+	}
+	/**
+	 * Gets the number of queued bytes.
+	 *
+	 * @return the queue size
+	 */
+	public int size() {
+		return count;
+	}
+	/**
+	 * Removes bytes from the head of the queue.
+	 *
+	 * @param dst the destination buffer
+	 * @param offset the offset in the destination buffer
+	 * @param length the number of bytes to remove; must not exceed size()
+	 */
+	public void take(final byte[] dst, final int offset, final int length) {
+		final int first = Math.min(length, data.length - head);
+		System.arraycopy(data, head, dst, offset, first);
+		System.arraycopy(data, 0, dst, offset + first, length - first);
+		head = (head + length) % data.length;
+		count -= length;
+	}
+}
@@ -0,0 +1,178 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads the chunks of a Parser ahead of time on its own thread, so that the thread writing
+ * them to the serial port never waits on the disk. A small pool of buffers is passed back
+ * and forth: the reader fills and pads free buffers, and the writer hands each one back once
+ * it has been sent.
+ */
+class ChunkReader implements Runnable {
+	/**
+	 * Marks the end of the data in the queue of filled chunks.
+	 */
+	private static final Chunk END = new Chunk(0);
+	/**
+	 * How long close() waits for the reading thread to stop, in milliseconds.
+	 */
+	private static final long JOIN_TIMEOUT = 500L;
+
+	/**
+	 * One buffer of data read ahead.
+	 */
+	public static class Chunk {
+		/**
+		 * The data, padded with 0xFF after length bytes.
+		 */
+		protected final byte[] data;
+		/**
+		 * Number of bytes of real data.
+		 */
+		protected int length;
+
+		protected Chunk(final int size) {
+			data = new byte[size];
+			length = 0;
+		}
+		public String toString() {
+			return String.format("%s[length=%d]", getClass().getSimpleName(), length);
+		}
+	}
+
+	/**
+	 * The error which stopped the reader, or null.
+	 */
+	private volatile IOException failure;
+	/**
+	 * Chunks read and waiting to be written, in order.
+	 */
+	private final BlockingQueue<Chunk> filled;
+	/**
+	 * Chunks free to be read into.
+	 */
+	private final BlockingQueue<Chunk> free;
+	/**
+	 * Bytes to put before the data in the first chunk, or null.
+	 */
+	private final byte[] preamble;
+	/**
+	 * Size of each chunk in bytes.
+	 */
+	private final int size;
+	/**
+	 * The data to read.
+	 */
+	private final Parser source;
+	/**
+	 * The thread reading ahead, or null if not started.
+	 */
+	private Thread thread;
+
+	/**
+	 * Creates a chunk reader. Reading starts when start() is called.
+	 *
+	 * @param source the data to read
+	 * @param preamble the bytes to put before the data in the first chunk, or null; must be
+	 * shorter than a chunk
+	 * @param size the size of each chunk in bytes
+	 * @param buffers the number of chunks to read ahead, at least 2
+	 */
+	protected ChunkReader(final Parser source, final byte[] preamble, final int size,
+			final int buffers) {
+		failure = null;
+		filled = new ArrayBlockingQueue<Chunk>(buffers + 1);
+		free = new ArrayBlockingQueue<Chunk>(buffers);
+		this.preamble = preamble;
+		this.size = size;
+		this.source = source;
+		thread = null;
+		for (int i = 0; i < buffers; i++)
+			free.add(new Chunk(size));
+	}
+	/**
+	 * Stops reading ahead, waiting a short time for the reading thread to finish so that the
+	 * source is no longer in use. Chunks already taken stay valid.
+	 */
+	public void close() {
+		final Thread t = thread;
+		if (t != null) {
+			t.interrupt();
+			thread = null;
+			try {
+				t.join(JOIN_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	/**
+	 * Hands a chunk back once it has been written, so that it can be filled again.
+	 *
+	 * @param chunk the chunk returned by take()
+	 */
+	public void release(final Chunk chunk) {
+		free.offer(chunk);
+	}
+	public void run() {
+		try {
+			int prelen = (preamble == null) ? 0 : preamble.length;
+			while (true) {
+				final Chunk chunk = free.take();
+				if (prelen > 0)
+					System.arraycopy(preamble, 0, chunk.data, 0, prelen);
+				final int len = prelen + source.read(chunk.data, prelen, size - prelen);
+				prelen = 0;
+				if (len <= 0)
+					break;
+				// Fill buffer with alignment padding
+				Arrays.fill(chunk.data, len, size, (byte)0xFF);
+				chunk.length = len;
+				filled.put(chunk);
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			// Closed
+			return;
+		}
+		// There is always room for the end marker
+		filled.offer(END);
+	}
+	/**
+	 * Starts reading ahead on a new thread.
+	 */
+	public void start() {
+		thread = new Thread(this, "Chunk reader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	/**
+	 * Waits for the next chunk.
+	 *
+	 * @return the next chunk, or null at the end of the data
+	 * @throws IOException if the data could not be read
+	 */
+	public Chunk take() throws IOException {
+		final Chunk chunk;
+		try {
+			chunk = filled.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted when reading");
+		}
+		if (chunk == END) {
+			// Leave the marker for any further calls
+			filled.offer(END);
+			if (failure != null)
+				throw failure;
+			return null;
+		}
+		return chunk;
+	}
+	public String toString() {
+		return String.format("%s[size=%d,filled=%d,free=%d]", getClass().getSimpleName(), size,
+			filled.size(), free.size());
+	}
+}
@@ -0,0 +1,73 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+/**
+ * Picks the packet size for bulk reads from how reliable the link has been. Reads start at
+ * the largest size the bootloader allows; each failure halves the size down to a minimum, and
+ * each run of clean packets doubles it again.
+ */
+public class ChunkSizer {
+	/**
+	 * Number of successful packets in a row needed before the size is increased.
+	 */
+	private static final int GROW_AFTER = 16;
+
+	/**
+	 * Largest packet size in bytes.
+	 */
+	private final int max;
+	/**
+	 * Smallest packet size in bytes.
+	 */
+	private final int min;
+	/**
+	 * Current packet size in bytes.
+	 */
+	private int size;
+	/**
+	 * Number of successful packets since the last change of size.
+	 */
+	private int streak;
+
+	/**
+	 * Creates a new chunk sizer which starts at the maximum size.
+	 *
+	 * @param min the smallest packet size in bytes
+	 * @param max the largest packet size in bytes
+	 */
+	public ChunkSizer(final int min, final int max) {
+		if (min <= 0 || max < min)
+			throw new IllegalArgumentException("Bad packet size range");
+		this.max = max;
+		this.min = min;
+		size = max;
+		streak = 0;
+	}
+	/**
+	 * Records a failed packet and steps the size down.
+	 */
+	public void failure() {
+		size = Math.max(min, size / 2);
+		streak = 0;
+	}
+	/**
+	 * Gets the current packet size.
+	 *
+	 * @return the packet size in bytes
+	 */
+	public int getSize() {
+		return size;
+	}
+	/**
+	 * Records a successful packet, stepping the size up after enough of them in a row.
+	 */
+	public void success() {
+		if (size < max && ++streak >= GROW_AFTER) {
+			size = Math.min(max, size * 2);
+			streak = 0;
+		}
+	}
+	public String toString() {
+		return String.format("%s[size=%d,min=%d,max=%d]", getClass().getSimpleName(), size,
+			min, max);
+	}
+}
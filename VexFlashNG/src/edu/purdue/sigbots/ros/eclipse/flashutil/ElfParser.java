@@ -0,0 +1,270 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A parser for 32-bit little-endian ELF files, as linked for the Cortex. Only the loadable
+ * segments are read, each placed at its load (physical) address; this is what objcopy would
+ * put in a BIN file, except that gaps between segments read as 0xFF like erased flash.
+ * Segments must load into the user code area, below the file system.
+ *
+ * The segments themselves are available from getSegments() and getPages(), so that gaps need
+ * not be written at all.
+ */
+public class ElfParser implements Parser {
+	/**
+	 * Address of the first byte of flash memory on every Cortex.
+	 */
+	private static final long FLASH_START = 0x08000000L;
+	/**
+	 * The ELF magic number at the start of every ELF file.
+	 */
+	private static final byte[] MAGIC = { 0x7F, 'E', 'L', 'F' };
+	/**
+	 * Size of the ELF file header in bytes.
+	 */
+	private static final int HEADER_SIZE = 52;
+	/**
+	 * Size of one program header in bytes.
+	 */
+	private static final int PHDR_SIZE = 32;
+	/**
+	 * Program header type of a loadable segment.
+	 */
+	private static final int PT_LOAD = 1;
+
+	/**
+	 * One loadable segment of the image.
+	 */
+	public static final class Segment {
+		/**
+		 * The load address of the first byte.
+		 */
+		private final int address;
+		/**
+		 * The segment contents as stored in the file.
+		 */
+		private final byte[] data;
+
+		private Segment(final int address, final byte[] data) {
+			this.address = address;
+			this.data = data;
+		}
+		/**
+		 * Gets the load address.
+		 *
+		 * @return the address of the first byte in flash memory
+		 */
+		public int getAddress() {
+			return address;
+		}
+		/**
+		 * Gets the number of bytes in the segment.
+		 *
+		 * @return the segment length
+		 */
+		public int getLength() {
+			return data.length;
+		}
+		public String toString() {
+			return String.format("%s[address=%08x,len=%d]", getClass().getSimpleName(),
+				address, data.length);
+		}
+	}
+
+	/**
+	 * Checks whether a file is an ELF file.
+	 *
+	 * @param file the file to check
+	 * @return whether the file starts with the ELF magic number
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isElf(final File file) throws IOException {
+		final byte[] magic = new byte[MAGIC.length];
+		final InputStream is = new FileInputStream(file);
+		try {
+			int offset = 0, read;
+			while (offset < magic.length && (read = is.read(magic, offset, magic.length -
+					offset)) > 0)
+				offset += read;
+			return offset == magic.length && Arrays.equals(magic, MAGIC);
+		} finally {
+			is.close();
+		}
+	}
+	/**
+	 * Reads a little-endian 16-bit value.
+	 *
+	 * @param data the data
+	 * @param offset the offset of the value
+	 * @return the value
+	 */
+	private static int readShort(final byte[] data, final int offset) {
+		return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+	}
+	/**
+	 * Reads a little-endian 32-bit value.
+	 *
+	 * @param data the data
+	 * @param offset the offset of the value
+	 * @return the value
+	 */
+	private static int readInt(final byte[] data, final int offset) {
+		return readShort(data, offset) | (readShort(data, offset + 2) << 16);
+	}
+
+	/**
+	 * Index in segments of the segment holding or following the read position.
+	 */
+	private int current;
+	/**
+	 * Image length from the first to the last byte loaded.
+	 */
+	private final int len;
+	/**
+	 * Offset of the next byte to read, from the first address loaded.
+	 */
+	private int position;
+	/**
+	 * The loadable segments, in address order.
+	 */
+	private final List<Segment> segments;
+
+	/**
+	 * Creates a new ELF parser, reading every loadable segment into memory.
+	 *
+	 * @param file the file to parse
+	 * @throws IOException if an I/O error occurs, or the file is not a valid ELF file for
+	 * the Cortex
+	 */
+	public ElfParser(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final byte[] header = new byte[HEADER_SIZE];
+			final long size = raf.length();
+			raf.readFully(header);
+			if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC))
+				throw new IOException(file.getName() + " is not an ELF file");
+			// ELFCLASS32, ELFDATA2LSB
+			if (header[4] != 1 || header[5] != 1)
+				throw new IOException(file.getName() + " is not a 32-bit little-endian ELF file");
+			final int phoff = readInt(header, 28), phentsize = readShort(header, 42),
+				phnum = readShort(header, 44);
+			if (phnum > 0 && phentsize < PHDR_SIZE)
+				throw new IOException("Bad program header size in " + file.getName());
+			segments = new ArrayList<Segment>(phnum);
+			final byte[] phdr = new byte[PHDR_SIZE];
+			for (int i = 0; i < phnum; i++) {
+				raf.seek((phoff & 0xFFFFFFFFL) + (long)i * phentsize);
+				raf.readFully(phdr);
+				final int offset = readInt(phdr, 4), address = readInt(phdr, 12),
+					length = readInt(phdr, 16);
+				// Uninitialized (.bss) segments take no room in flash
+				if (readInt(phdr, 0) != PT_LOAD || length == 0)
+					continue;
+				if (length < 0 || (offset & 0xFFFFFFFFL) + length > size)
+					throw new IOException("Segment at " + Integer.toHexString(address) +
+						" runs past the end of " + file.getName());
+				// Checked before anything is allocated, so that a RAM segment cannot make the
+				// image span hundreds of megabytes
+				if ((address & 0xFFFFFFFFL) < FLASH_START || (address & 0xFFFFFFFFL) + length >
+						FLASH_START + VexFlash.FS_START)
+					throw new IOException("Segment at " + Integer.toHexString(address) +
+						" is outside the user code area of flash memory in " + file.getName());
+				final byte[] data = new byte[length];
+				raf.seek(offset & 0xFFFFFFFFL);
+				raf.readFully(data);
+				segments.add(new Segment(address, data));
+			}
+		} finally {
+			raf.close();
+		}
+		Collections.sort(segments, new Comparator<Segment>() {
+			public int compare(final Segment one, final Segment two) {
+				return Long.signum((one.address & 0xFFFFFFFFL) - (two.address & 0xFFFFFFFFL));
+			}
+		});
+		long end = 0L;
+		for (Segment segment : segments) {
+			final long start = segment.address & 0xFFFFFFFFL;
+			if (start < end)
+				throw new IOException("Segments overlap at " + Long.toHexString(start));
+			end = start + segment.data.length;
+		}
+		if (segments.isEmpty())
+			len = 0;
+		else if (end - (getAddress() & 0xFFFFFFFFL) > Integer.MAX_VALUE)
+			throw new IOException("Segments of " + file.getName() + " are too far apart");
+		else
+			len = (int)(end - (getAddress() & 0xFFFFFFFFL));
+		current = 0;
+		position = 0;
+	}
+	public void close() {
+		current = segments.size();
+		position = len;
+	}
+	/**
+	 * Gets the load address of the first byte of the image.
+	 *
+	 * @return the lowest address loaded, or 0 if there are no segments
+	 */
+	public int getAddress() {
+		return segments.isEmpty() ? 0 : segments.get(0).address;
+	}
+	/**
+	 * Gets the pages which hold any byte of a segment. Other pages are gaps, which need not be
+	 * written.
+	 *
+	 * @param pageSize the flash page size in bytes
+	 * @return a bit set with one bit set for each page, counted from getAddress()
+	 */
+	public BitSet getPages(final int pageSize) {
+		final BitSet pages = new BitSet((len + pageSize - 1) / pageSize);
+		for (Segment segment : segments) {
+			final int offset = segment.address - getAddress();
+			pages.set(offset / pageSize, (offset + segment.data.length - 1) / pageSize + 1);
+		}
+		return pages;
+	}
+	/**
+	 * Gets the loadable segments.
+	 *
+	 * @return the segments which hold data, in address order
+	 */
+	public List<Segment> getSegments() {
+		return Collections.unmodifiableList(segments);
+	}
+	public int length() {
+		return len;
+	}
+	public int read(final byte[] output, final int start, final int length) {
+		final int base = getAddress(), count = Math.min(length, len - position);
+		int done = 0;
+		while (done < count) {
+			final Segment segment = segments.get(current);
+			final int offset = segment.address - base;
+			if (position < offset) {
+				// Gap before the segment
+				final int gap = Math.min(count - done, offset - position);
+				Arrays.fill(output, start + done, start + done + gap, (byte)0xFF);
+				done += gap;
+				position += gap;
+			} else {
+				final int from = position - offset, copy = Math.min(count - done,
+					segment.data.length - from);
+				System.arraycopy(segment.data, from, output, start + done, copy);
+				done += copy;
+				position += copy;
+				if (from + copy == segment.data.length)
+					current++;
+			}
+		}
+		return done;
+	}
+	public String toString() {
+		return String.format("%s[address=%08x,len=%d,segments=%d]", getClass().getSimpleName(),
+			getAddress(), len, segments.size());
+	}
+}
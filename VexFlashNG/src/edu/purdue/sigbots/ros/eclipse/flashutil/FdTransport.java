@@ -0,0 +1,365 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.io.*;
+import com.sun.jna.*;
+import com.sun.jna.ptr.*;
+
+/**
+ * Base class for transports on a Linux terminal file descriptor, using non-blocking reads and
+ * writes through JNA. Waiting is done with epoll once a subclass calls watch(), or with poll()
+ * otherwise.
+ */
+abstract class FdTransport implements SerialTransport {
+	/**
+	 * Size of the native transfer buffers.
+	 */
+	private static final int BUFFER_SIZE = 4096;
+
+	/**
+	 * Converts a baud rate to the matching termios speed_t constant.
+	 *
+	 * @param baud the baud rate
+	 * @return the speed constant
+	 * @throws IOException if the rate is not supported
+	 */
+	private static int speedOf(final int baud) throws IOException {
+		switch (baud) {
+		case 9600:
+			return 0000015;
+		case 19200:
+			return 0000016;
+		case 38400:
+			return 0000017;
+		case 57600:
+			return 0010001;
+		case 115200:
+			return 0010002;
+		case 230400:
+			return 0010003;
+		case 460800:
+			return 0010004;
+		case 921600:
+			return 0010007;
+		default:
+			throw new IOException("Unsupported baud rate " + baud);
+		}
+	}
+
+	/**
+	 * The epoll instance watching the descriptor, or -1 if none.
+	 */
+	private int epfd;
+	/**
+	 * Native epoll_event structure.
+	 */
+	private final Memory epollEvent;
+	/**
+	 * The file descriptor, or -1 if closed.
+	 */
+	protected int fd;
+	/**
+	 * Bytes read from the descriptor but not yet returned.
+	 */
+	private final ByteQueue pending;
+	/**
+	 * Native pollfd structure.
+	 */
+	private final Memory pollFd;
+	/**
+	 * Native buffer for reads.
+	 */
+	private final Memory rxBuffer;
+	/**
+	 * Lock protecting the receive side.
+	 */
+	private final Object rxLock;
+	/**
+	 * Scratch array for moving data out of rxBuffer.
+	 */
+	private final byte[] scratch;
+	/**
+	 * Native buffer for writes.
+	 */
+	private final Memory txBuffer;
+	/**
+	 * The events which the epoll instance is currently watching for.
+	 */
+	private short watching;
+
+	protected FdTransport() {
+		epfd = -1;
+		epollEvent = new Memory(LibC.EPOLL_EVENT_SIZE);
+		fd = -1;
+		pending = new ByteQueue(BUFFER_SIZE);
+		pollFd = new Memory(8);
+		rxBuffer = new Memory(BUFFER_SIZE);
+		rxLock = new Object();
+		scratch = new byte[BUFFER_SIZE];
+		txBuffer = new Memory(BUFFER_SIZE);
+		watching = 0;
+	}
+	/**
+	 * Checks that the descriptor is open.
+	 *
+	 * @throws IOException if it is closed
+	 */
+	protected void checkOpen() throws IOException {
+		if (fd < 0)
+			throw new IOException(getName() + " is not open");
+	}
+	public void close() {
+		if (epfd >= 0) {
+			LibC.INSTANCE.close(epfd);
+			epfd = -1;
+		}
+		if (fd >= 0) {
+			LibC.INSTANCE.close(fd);
+			fd = -1;
+		}
+	}
+	public void drain(final long timeout) throws IOException {
+		final long future = System.currentTimeMillis() + timeout;
+		final IntByReference queued = new IntByReference();
+		checkOpen();
+		try {
+			do {
+				LibC.INSTANCE.ioctl(fd, new NativeLong(LibC.TIOCOUTQ), queued);
+				if (queued.getValue() <= 0)
+					break;
+				Utils.delay(1L);
+			} while (timeout <= 0L || System.currentTimeMillis() < future);
+		} catch (LastErrorException e) {
+			throw new IOException("Error when draining output", e);
+		}
+	}
+	/**
+	 * Moves whatever is available on the descriptor into the pending queue.
+	 *
+	 * @return the number of bytes read, or 0 if nothing was available
+	 * @throws IOException if an I/O error occurs
+	 */
+	private int fill() throws IOException {
+		try {
+			final int count = LibC.INSTANCE.read(fd, rxBuffer, new NativeLong(BUFFER_SIZE)).
+				intValue();
+			if (count > 0) {
+				rxBuffer.read(0L, scratch, 0, count);
+				pending.put(scratch, 0, count);
+			}
+			return Math.max(count, 0);
+		} catch (LastErrorException e) {
+			if (e.getErrorCode() == LibC.EAGAIN || e.getErrorCode() == LibC.EINTR)
+				return 0;
+			throw new IOException("Error when reading from " + getName(), e);
+		}
+	}
+	/**
+	 * Gets the file descriptor.
+	 *
+	 * @return the descriptor, or -1 if the transport is closed
+	 */
+	public int getFd() {
+		return fd;
+	}
+	/**
+	 * Waits until the descriptor is ready.
+	 *
+	 * @param events the poll events to wait for
+	 * @param timeout the maximum wait in milliseconds, or a negative value to wait
+	 * indefinitely
+	 * @return whether the descriptor became ready
+	 * @throws IOException if the descriptor reports an error or hang up
+	 */
+	protected boolean poll(final short events, final long timeout) throws IOException {
+		if (epfd >= 0)
+			return waitEvents(events, timeout);
+		synchronized (pollFd) {
+			pollFd.setInt(0L, fd);
+			pollFd.setShort(4L, events);
+			pollFd.setShort(6L, (short)0);
+			try {
+				final int ready = LibC.INSTANCE.poll(pollFd, new NativeLong(1L),
+					(int)Math.min(timeout, Integer.MAX_VALUE));
+				final short revents = pollFd.getShort(6L);
+				if (ready > 0 && (revents & events) == 0 && (revents & (LibC.POLLERR |
+						LibC.POLLHUP)) != 0)
+					throw new EOFException(getName() + " was hung up");
+				return ready > 0;
+			} catch (LastErrorException e) {
+				if (e.getErrorCode() == LibC.EINTR)
+					return false;
+				throw new IOException("Error when polling " + getName(), e);
+			}
+		}
+	}
+	public void purge() throws IOException {
+		synchronized (rxLock) {
+			checkOpen();
+			try {
+				LibC.INSTANCE.tcflush(fd, LibC.TCIFLUSH);
+			} catch (LastErrorException e) {
+				throw new IOException("Error when purging " + getName(), e);
+			}
+			pending.clear();
+		}
+	}
+	public int read(final byte[] data, final int offset, final int length, final long timeout)
+			throws IOException {
+		final long future = System.currentTimeMillis() + timeout;
+		synchronized (rxLock) {
+			checkOpen();
+			while (pending.size() < length) {
+				if (fill() > 0)
+					continue;
+				final long left = (timeout > 0L) ? future - System.currentTimeMillis() : -1L;
+				if (timeout > 0L && left <= 0L)
+					// Leave the partial data for the next read
+					return 0;
+				poll(LibC.POLLIN, left);
+			}
+			pending.take(data, offset, length);
+			return length;
+		}
+	}
+	/**
+	 * Sets or clears modem control bits.
+	 *
+	 * @param bits the TIOCM_xxx bits to change
+	 * @param enabled whether the bits should be set
+	 * @throws IOException if an I/O error occurs
+	 */
+	protected void setModemBits(final int bits, final boolean enabled) throws IOException {
+		checkOpen();
+		try {
+			LibC.INSTANCE.ioctl(fd, new NativeLong(enabled ? LibC.TIOCMBIS : LibC.TIOCMBIC),
+				new IntByReference(bits));
+		} catch (LastErrorException e) {
+			throw new IOException("Failed to set modem control lines", e);
+		}
+	}
+	public void setDTR(final boolean enabled) throws IOException {
+		setModemBits(LibC.TIOCM_DTR, enabled);
+	}
+	public void setParams(final int baud, final int parity) throws IOException {
+		setTermios(baud, parity == PARITY_EVEN);
+	}
+	public void setRTS(final boolean enabled) throws IOException {
+		setModemBits(LibC.TIOCM_RTS, enabled);
+	}
+	/**
+	 * Puts the terminal into raw mode with the given line parameters.
+	 *
+	 * @param baud the baud rate
+	 * @param even whether an even parity bit is used
+	 * @throws IOException if an I/O error occurs
+	 */
+	protected void setTermios(final int baud, final boolean even) throws IOException {
+		final Memory termios = new Memory(LibC.TERMIOS_SIZE);
+		checkOpen();
+		try {
+			LibC.INSTANCE.tcgetattr(fd, termios);
+			// Raw 8-bit data, no echo or line editing
+			LibC.INSTANCE.cfmakeraw(termios);
+			int cflag = termios.getInt(LibC.TERMIOS_CFLAG);
+			cflag |= LibC.CLOCAL | LibC.CREAD;
+			cflag &= ~(LibC.CRTSCTS | LibC.CSTOPB | LibC.PARODD | LibC.PARENB);
+			if (even)
+				cflag |= LibC.PARENB;
+			termios.setInt(LibC.TERMIOS_CFLAG, cflag);
+			// Reads never block in the kernel, poll() does the waiting
+			termios.setByte(LibC.TERMIOS_CC + LibC.VMIN, (byte)0);
+			termios.setByte(LibC.TERMIOS_CC + LibC.VTIME, (byte)0);
+			LibC.INSTANCE.cfsetspeed(termios, speedOf(baud));
+			LibC.INSTANCE.tcsetattr(fd, LibC.TCSANOW, termios);
+		} catch (LastErrorException e) {
+			throw new IOException("Failed to set port parameters", e);
+		}
+	}
+	public String toString() {
+		return String.format("%s[name=%s,fd=%d]", getClass().getSimpleName(), getName(), fd);
+	}
+	/**
+	 * Waits until the descriptor is ready, using the epoll instance. The events watched are
+	 * only changed when they differ from the last wait, which is rare as nearly every wait
+	 * is for input.
+	 *
+	 * @param events the EPOLLxxx (same as POLLxxx) events to wait for
+	 * @param timeout the maximum wait in milliseconds, or a negative value to wait
+	 * indefinitely
+	 * @return whether the descriptor became ready
+	 * @throws IOException if the descriptor reports an error or hang up
+	 */
+	private boolean waitEvents(final short events, final long timeout) throws IOException {
+		synchronized (epollEvent) {
+			try {
+				if (events != watching) {
+					epollEvent.setInt(0L, events);
+					epollEvent.setInt(LibC.EPOLL_EVENT_DATA, fd);
+					LibC.INSTANCE.epoll_ctl(epfd, LibC.EPOLL_CTL_MOD, fd, epollEvent);
+					watching = events;
+				}
+				final int ready = LibC.INSTANCE.epoll_wait(epfd, epollEvent, 1,
+					(int)Math.min(timeout, Integer.MAX_VALUE));
+				final int revents = epollEvent.getInt(0L);
+				if (ready > 0 && (revents & events) == 0 && (revents & (LibC.POLLERR |
+						LibC.POLLHUP)) != 0)
+					throw new EOFException(getName() + " was hung up");
+				return ready > 0;
+			} catch (LastErrorException e) {
+				if (e.getErrorCode() == LibC.EINTR)
+					return false;
+				throw new IOException("Error when polling " + getName(), e);
+			}
+		}
+	}
+	/**
+	 * Creates an epoll instance watching the descriptor for input, which is then used for all
+	 * waits. Subclasses call this once the descriptor is open.
+	 *
+	 * @throws IOException if the epoll instance cannot be created
+	 */
+	protected void watch() throws IOException {
+		checkOpen();
+		if (epfd >= 0)
+			return;
+		synchronized (epollEvent) {
+			try {
+				epfd = LibC.INSTANCE.epoll_create1(LibC.EPOLL_CLOEXEC);
+				epollEvent.setInt(0L, LibC.POLLIN);
+				epollEvent.setInt(LibC.EPOLL_EVENT_DATA, fd);
+				LibC.INSTANCE.epoll_ctl(epfd, LibC.EPOLL_CTL_ADD, fd, epollEvent);
+				watching = LibC.POLLIN;
+			} catch (LastErrorException e) {
+				if (epfd >= 0) {
+					LibC.INSTANCE.close(epfd);
+					epfd = -1;
+				}
+				throw new IOException("Failed to watch " + getName(), e);
+			}
+		}
+	}
+	public void write(final byte[] data, final int offset, final int length)
+			throws IOException {
+		synchronized (txBuffer) {
+			checkOpen();
+			int done = 0;
+			while (done < length) {
+				final int chunk = Math.min(BUFFER_SIZE, length - done);
+				txBuffer.write(0L, data, offset + done, chunk);
+				int sent = 0;
+				while (sent < chunk)
+					try {
+						sent += LibC.INSTANCE.write(fd, txBuffer.share(sent), new NativeLong(
+							chunk - sent)).intValue();
+					} catch (LastErrorException e) {
+						if (e.getErrorCode() != LibC.EAGAIN && e.getErrorCode() != LibC.EINTR)
+							throw new IOException("Error when writing " + length + " bytes",
+								e);
+						// Output queue is full
+						poll(LibC.POLLOUT, -1L);
+					}
+				done += chunk;
+			}
+		}
+	}
+}
@@ -31,19 +31,35 @@ public class FileSystemManipulator {
 	 */
 	public static final int FILE_NAME_LEN = 8;
 	/**
-	 * The maximum number of bytes that can go in one upload packet.
+	 * The minimum number of bytes that go in one upload packet, used on unreliable links.
 	 */
 	public static final int R_SIZE = 32;
+	/**
+	 * The maximum number of bytes that can go in one upload packet.
+	 */
+	public static final int R_MAX = 256;
 	/**
 	 * The maximum number of bytes that can go in one download packet.
 	 */
 	public static final int W_SIZE = 256;
+	/**
+	 * The number of download packets read ahead of the one being sent.
+	 */
+	private static final int W_BUFFERS = 4;
 
 	/**
 	 * The last valid page # for the filesystem. This is an offset from the VEX file system
 	 * page start!
 	 */
 	private final int lastPage;
+	/**
+	 * Paces reads and writes to what the link can sustain.
+	 */
+	private final Pacer pacer;
+	/**
+	 * Picks the upload packet size from link reliability.
+	 */
+	private final ChunkSizer readSize;
 	/**
 	 * The currently connected device
 	 */
@@ -59,8 +75,34 @@ public class FileSystemManipulator {
 		// This value is used everywhere!
 		lastPage = (dev.getFlashEnd() - dev.getFlashStart() - VexFlash.FS_START) /
 			dev.getPageSize();
+		pacer = new Pacer();
+		readSize = new ChunkSizer(R_SIZE, R_MAX);
 		this.state = state;
 	}
+	/**
+	 * Reads back pages of user code and compares them to an image. Reading a few pages is
+	 * far quicker than rewriting them, so this is a cheap check of whether an image is
+	 * already on the device.
+	 * 
+	 * @param image the image, which starts at state.getUserCodeAddress()
+	 * @param pages a bit set with one bit set for each page to compare
+	 * @return whether every page read back matches the image
+	 * @throws SerialException if an I/O error occurs while communicating
+	 */
+	public boolean comparePages(final MappedParser image, final BitSet pages)
+			throws SerialException {
+		final int ps = state.getDevice().getPageSize();
+		final byte[] expected = new byte[ps];
+		for (int page = pages.nextSetBit(0); page >= 0 && page * ps < image.length();
+				page = pages.nextSetBit(page + 1)) {
+			final int count = image.readPage(page, ps, expected);
+			final byte[] data = readDataFromAddress(page * ps, count, null);
+			for (int i = 0; i < count; i++)
+				if (data[i] != expected[i])
+					return false;
+		}
+		return true;
+	}
 	/**
 	 * Creates a file system preamble.
 	 * 
@@ -134,6 +176,50 @@ public class FileSystemManipulator {
 		throw new SerialException(String.format("File system lacks available space for " +
 			"this file (%d KiB)", size / 1024));
 	}
+	/**
+	 * Erases one block of flash memory pages, retrying as the retry policy allows. Erasing a
+	 * page twice does no harm, so the whole block is simply sent again.
+	 *
+	 * @param which the page numbers to erase
+	 */
+	private void eraseBlock(final byte[] which) throws SerialException {
+		for (int attempt = 1; ; attempt++)
+			try {
+				state.commandER(which);
+				break;
+			} catch (SerialException e) {
+				state.recover(RetryPolicy.OP_ERASE, attempt, e);
+			}
+	}
+	/**
+	 * Erases every page of the file system, deleting all files.
+	 * 
+	 * @throws SerialException if an I/O error occurs while communicating
+	 */
+	public void eraseFileSystem() throws SerialException {
+		final int first = VexFlash.FS_START / state.getDevice().getPageSize();
+		if (lastPage > 0)
+			eraseRange(first, first + lastPage - 1);
+	}
+	/**
+	 * Erases a set of flash memory pages.
+	 * 
+	 * @param pages a bit set with one bit set for each page to erase
+	 */
+	public void erasePages(final BitSet pages) throws SerialException {
+		final byte[] which = new byte[ERASE_BLOCK];
+		int count = 0;
+		// Send pages in groups of up to ERASE_BLOCK, like eraseRange
+		for (int page = pages.nextSetBit(0); page >= 0; page = pages.nextSetBit(page + 1)) {
+			which[count++] = (byte)(page & 0xFF);
+			if (count == ERASE_BLOCK) {
+				eraseBlock(which);
+				count = 0;
+			}
+		}
+		if (count > 0)
+			eraseBlock(Arrays.copyOf(which, count));
+	}
 	/**
 	 * Erases a range of flash memory pages.
 	 * 
@@ -141,20 +227,40 @@ public class FileSystemManipulator {
 	 * @param end the ending page to erase (inclusive)
 	 */
 	public void eraseRange(final int start, final int end) throws SerialException {
-		final SerialPortIO port = state.getPort();
 		// Populate with 0...15 and erase, then 16...31 and erase, ...
-		// This reduces the time per command to increase the reliability of the serial link		
-		port.setTimeout(2000L);
+		// This reduces the time per command to increase the reliability of the serial link
+		// The erase timeout is set by STMState from how long earlier erases took
 		for (int page = start; page <= end; ) {
 			final int count = Math.min(ERASE_BLOCK, end - page + 1);
 			// Write appropriate # of pages
 			final byte[] which = new byte[count];
 			for (int i = 0; i < count; i++)
 				which[i] = (byte)(page++ & 0xFF);
-			state.commandER(which);
+			eraseBlock(which);
 		}
-		// Reset timeout to default
-		port.setTimeout(VexFlash.VEX_TIMEOUT);
+	}
+	/**
+	 * Checks whether a chunk of data is all 0xFF, as erased flash memory reads.
+	 *
+	 * @param data the data to check
+	 * @return whether writing the data to an erased page would change nothing
+	 */
+	private static boolean isBlank(final byte[] data) {
+		for (byte b : data)
+			if (b != (byte)0xFF)
+				return false;
+		return true;
+	}
+	/**
+	 * Reads back a page of user code and checks that it is erased.
+	 *
+	 * @param page the page number, relative to state.getUserCodeAddress()
+	 * @return whether every byte of the page reads 0xFF
+	 * @throws SerialException if an I/O error occurs while communicating
+	 */
+	public boolean isErased(final int page) throws SerialException {
+		final int ps = state.getDevice().getPageSize();
+		return isBlank(readDataFromAddress(page * ps, ps, null));
 	}
 	/**
 	 * Looks for a file with the given file name. The match is case sensitive.
@@ -233,6 +339,36 @@ public class FileSystemManipulator {
 		}
 		return null;
 	}
+	/**
+	 * Reads one chunk of data from Flash memory, retrying with a smaller chunk if the link
+	 * drops.
+	 * 
+	 * @param address the absolute address to read
+	 * @param dst the buffer to fill
+	 * @param offset the offset in the buffer of the first byte
+	 * @param len the number of bytes wanted, at most R_MAX
+	 * @return the number of bytes read, which may be less than len after a retry
+	 * @throws SerialException if an I/O error occurs while communicating
+	 */
+	private int readChunk(final int address, final byte[] dst, final int offset,
+			final int len) throws SerialException {
+		int size = len;
+		for (int attempt = 1; ; attempt++)
+			try {
+				state.commandRD(address, dst, offset, size);
+				pacer.success();
+				readSize.success();
+				break;
+			} catch (SerialException e) {
+				pacer.failure();
+				readSize.failure();
+				state.recover(RetryPolicy.OP_READ, attempt, e);
+				// If we got some stuff OK, then restart reading from this address
+				size = Math.min(len, readSize.getSize());
+			}
+		pacer.pause();
+		return size;
+	}
 	/**
 	 * Reads data from an address in Flash memory.
 	 * 
@@ -253,26 +389,16 @@ public class FileSystemManipulator {
 		try {
 			// Read data from memory
 			while (offset < size) {
-				byte[] buffer;
-				// Send read command
-				len = Math.min(R_SIZE, size - offset);
-				try {
-					buffer = state.commandRD(addr + offset + start, len);
-					Utils.delay(20);
-				} catch (SerialException e) {
-					// Wait 1.5s for reconnect
-					Utils.delay(1500);
-					// Flush buffers
-					Utils.eat(state.getPort());
-					// If we got some stuff OK, then restart flashing from this address
-					buffer = state.commandRD(addr + offset + start, len);
-				}
-				System.arraycopy(buffer, 0, ret, offset, len);
+				// Send read command, straight into the result
+				len = readChunk(addr + offset + start, ret, offset, Math.min(readSize.getSize(),
+					size - offset));
 				// Compute progress
 				offset += len;
 				if (output != null)
 					output.progress(100 * offset / size);
 			}
+			if (output != null)
+				pacer.report(output);
 			return ret;
 		} catch (SerialException e) {
 			// Programming error!
@@ -352,6 +478,27 @@ public class FileSystemManipulator {
 			output.end();
 		}
 	}
+	/**
+	 * Writes one chunk of data to Flash memory, retrying and recovering the link as the retry
+	 * policy directs.
+	 * 
+	 * @param address the absolute address to write
+	 * @param buffer the data to write, a multiple of 4 bytes and at most W_SIZE bytes long
+	 * @throws SerialException if an I/O error occurs while communicating
+	 */
+	private void writeChunk(final int address, final byte[] buffer) throws SerialException {
+		for (int attempt = 1; ; attempt++)
+			try {
+				state.commandWM(address, buffer);
+				pacer.success();
+				break;
+			} catch (SerialException e) {
+				pacer.failure();
+				// Recover the link, then write the same chunk again
+				state.recover(RetryPolicy.OP_WRITE, attempt, e);
+			}
+		pacer.pause();
+	}
 	/**
 	 * Writes data to an address in Flash memory, pre-assuming that those pages are empty.
 	 * 
@@ -364,54 +511,124 @@ public class FileSystemManipulator {
 	 */
 	public void writeDataToAddress(final int start, final byte[] preamble, final Parser fileData,
 			final Indicator output) throws IOException, SerialException {
-		int prelen = (preamble == null) ? 0 : preamble.length, len, offset = 0;
+		final int prelen = (preamble == null) ? 0 : preamble.length;
 		// Get start address
 		final int addr = state.getUserCodeAddress(), size = fileData.length() + prelen,
 			flashSize = state.getFlashSize();
-		final byte[] buffer = new byte[W_SIZE];
+		int offset = 0;
 		// Too big?
 		if (size >= flashSize)
 			throw new SerialException(String.format("Data is too big to fit in memory.\n" +
 				"File is %d KiB out of %d KiB", size / 1024, flashSize / 1024));
+		// Read the next chunks while the current one is sent
+		final ChunkReader reader = new ChunkReader(fileData, preamble, W_SIZE, W_BUFFERS);
 		output.begin();
+		reader.start();
 		try {
-			// Load preamble
-			if (preamble != null && prelen > 0)
-				System.arraycopy(preamble, 0, buffer, 0, prelen);
+			ChunkReader.Chunk chunk;
 			// Write data to memory
-			while (offset < size && (len = prelen + fileData.read(buffer, prelen,
-					W_SIZE - prelen)) > 0) {
-				// Fill buffer with alignment padding
-				for (int i = len; i < buffer.length; i++)
-					buffer[i] = (byte)0xFF;
+			while (offset < size && (chunk = reader.take()) != null) {
 				// Send write command
-				try {
-					state.commandWM(addr + offset + start, buffer);
-					Utils.delay(20);
-				} catch (SerialException e) {
-					// Wait 1.5s for reconnect
-					Utils.delay(1500);
-					// Flush buffers
-					Utils.eat(state.getPort());
-					// If we got some stuff OK, then restart flashing from this address
-					state.commandWM(addr + offset + start, buffer);
-				}
+				writeChunk(addr + offset + start, chunk.data);
 				// Compute progress
-				offset += len;
+				offset += chunk.length;
+				reader.release(chunk);
 				output.progress(100 * offset / size);
-				// Reset preamble
-				prelen = 0;
 			}
+			pacer.report(output);
 		} catch (SerialException e) {
 			// Programming error!
 			throw new SerialException("Connection lost to VEX device while uploading.\n" +
 				"If this error frequently recurs, try another set of VEXnet keys, " +
 				"or use the USB tether cable.", e);
 		} finally {
+			reader.close();
 			output.end();
 		}
 	}
 
+	/**
+	 * Writes selected pages of an image to Flash memory, pre-assuming that those pages are
+	 * empty. Other pages are left alone.
+	 * 
+	 * @param image the image, which starts at state.getUserCodeAddress()
+	 * @param pages a bit set with one bit set for each page to write
+	 * @param output the indicator of progress
+	 * @throws SerialException if an I/O error occurs while communicating
+	 */
+	public void writePages(final MappedParser image, final BitSet pages, final Indicator output)
+			throws SerialException {
+		try {
+			writePages(image, pages, null, output);
+		} catch (IOException e) {
+			// Only the listener can throw this
+			throw new SerialException("Unexpected I/O error", e);
+		}
+	}
+	/**
+	 * Writes selected pages of an image to Flash memory, pre-assuming that those pages are
+	 * empty, and reports each page once it has been completely written and acknowledged.
+	 * The image's read position is moved to each page in turn.
+	 * 
+	 * @param image the image, which starts at state.getUserCodeAddress()
+	 * @param pages a bit set with one bit set for each page to write
+	 * @param listener the listener told about each finished page, or null
+	 * @param output the indicator of progress
+	 * @throws SerialException if an I/O error occurs while communicating
+	 * @throws IOException if the listener fails
+	 */
+	public void writePages(final MappedParser image, final BitSet pages,
+			final PageListener listener, final Indicator output) throws SerialException,
+			IOException {
+		final int addr = state.getUserCodeAddress(), ps = state.getDevice().getPageSize(),
+			chunk = Math.min(W_SIZE, ps), size = image.length();
+		final byte[] buffer = new byte[chunk];
+		// Progress is relative to the pages which will actually be written
+		final int total = Math.max(1, pages.cardinality());
+		int done = 0;
+		output.begin();
+		try {
+			for (int page = pages.nextSetBit(0); page >= 0 && page * ps < size;
+					page = pages.nextSetBit(page + 1)) {
+				final int end = Math.min(size, (page + 1) * ps);
+				image.seek(page * ps);
+				for (int offset = page * ps; offset < end; offset += chunk) {
+					final int len = image.read(buffer, 0, Math.min(chunk, end - offset));
+					// Fill buffer with alignment padding
+					for (int i = len; i < chunk; i++)
+						buffer[i] = (byte)0xFF;
+					// Erased flash already reads 0xFF, so gaps in the image are never sent
+					if (!isBlank(buffer))
+						writeChunk(addr + offset, buffer);
+				}
+				if (listener != null)
+					listener.pageWritten(page);
+				output.progress(100 * ++done / total);
+			}
+			pacer.report(output);
+		} catch (SerialException e) {
+			// Programming error!
+			throw new SerialException("Connection lost to VEX device while uploading.\n" +
+				"If this error frequently recurs, try another set of VEXnet keys, " +
+				"or use the USB tether cable.", e);
+		} finally {
+			output.end();
+		}
+	}
+
+	/**
+	 * Receives notice of each page written by writePages(), for example to record progress.
+	 */
+	public static interface PageListener {
+		/**
+		 * Called once a page has been completely written and acknowledged.
+		 * 
+		 * @param page the page number, relative to state.getUserCodeAddress()
+		 * @throws IOException if the progress cannot be recorded
+		 */
+		public void pageWritten(int page) throws IOException;
+	}
+
 	/**
 	 * Denotes a file system entry found; it could be valid file or a blank space depending
 	 * on context.
@@ -0,0 +1,208 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Uploads one image to many VEX Cortex controllers at once. A BIN image is mapped into
+ * memory, or copied there, a single time and shared by every session; each port gets its own
+ * VexFlash session on its own thread, so the whole fleet takes about as long as the slowest
+ * device.
+ */
+public class FleetFlasher {
+	/**
+	 * Receives the progress of each session.
+	 */
+	public static interface Listener {
+		/**
+		 * Called on the session's thread before it connects to a port.
+		 *
+		 * @param port the port name
+		 * @return the indicator for status messages of this port
+		 */
+		public Indicator started(String port);
+		/**
+		 * Called on the session's thread once it has finished with a port.
+		 *
+		 * @param port the port name
+		 * @param failure the error which stopped the upload, or null if it succeeded
+		 */
+		public void finished(String port, SerialException failure);
+	}
+
+	/**
+	 * Record of the images flashed to each device, shared by all sessions.
+	 */
+	private final ImageHistory history;
+	/**
+	 * The mapped or copied image, shared by every session, or null if each session reads the
+	 * file.
+	 */
+	private final MappedParser image;
+	/**
+	 * The image length in bytes.
+	 */
+	private final int length;
+	/**
+	 * The programming mode, one of the code upload modes in UploadParams.
+	 */
+	private final int mode;
+	/**
+	 * The project name, or null if not applicable.
+	 */
+	private final String project;
+	/**
+	 * The image file.
+	 */
+	private final File target;
+
+	/**
+	 * Creates a fleet flasher, mapping or parsing the image once.
+	 *
+	 * @param mode the programming mode: MODE_CLEAN, MODE_FW or MODE_DELTA
+	 * @param project the project name, or null if unavailable
+	 * @param target the image file
+	 * @throws SerialException if the image cannot be read
+	 */
+	public FleetFlasher(final int mode, final String project, final File target)
+			throws SerialException {
+		this(mode, project, target, true);
+	}
+	/**
+	 * Creates a fleet flasher, reading or parsing the image once. A long running process
+	 * should not map a build output, which on Windows could not be rebuilt until the mapping
+	 * is garbage collected; the image is copied into memory instead.
+	 *
+	 * @param mode the programming mode: MODE_CLEAN, MODE_FW or MODE_DELTA
+	 * @param project the project name, or null if unavailable
+	 * @param target the image file
+	 * @param map whether to map a BIN image rather than copy it
+	 * @throws SerialException if the image cannot be read
+	 */
+	public FleetFlasher(final int mode, final String project, final File target,
+			final boolean map) throws SerialException {
+		if (target == null)
+			throw new NullPointerException("target");
+		if (mode != UploadParams.MODE_CLEAN && mode != UploadParams.MODE_FW &&
+				mode != UploadParams.MODE_DELTA)
+			throw new IllegalArgumentException("mode");
+		this.mode = mode;
+		this.project = project;
+		this.target = target;
+		history = ImageHistory.getDefault();
+		try {
+			if (ElfParser.isElf(target)) {
+				// Only the loadable segments are read, which is cheap enough for each session
+				final Parser data = new ElfParser(target);
+				image = null;
+				length = data.length();
+				data.close();
+			} else if (map) {
+				image = new MappedParser(target);
+				length = image.length();
+			} else {
+				final Parser data = new BinaryParser(target);
+				try {
+					VexFlash.checkLength(data.length());
+					image = new MappedParser(ImageHistory.readImage(data));
+				} finally {
+					data.close();
+				}
+				length = image.length();
+			}
+		} catch (IOException e) {
+			throw new SerialException("Error reading from " + target.getAbsolutePath(), e);
+		}
+	}
+	/**
+	 * Finds the ports of all connected devices.
+	 *
+	 * @return the names of the ports to flash
+	 */
+	public List<String> findPorts() {
+		final List<PortFinder.Serial> found = new VexFlash().locateSerial();
+		final List<String> ports = new ArrayList<String>(found.size());
+		for (PortFinder.Serial serial : found) {
+			final String name = serial.getComIdentifier();
+			if (name != null && !ports.contains(name))
+				ports.add(name);
+		}
+		return ports;
+	}
+	/**
+	 * Gets the parameters of the session on one port.
+	 *
+	 * @param port the port name
+	 * @return the upload parameters
+	 */
+	public UploadParams getParams(final String port) {
+		return new UploadParams(mode, port, project, target);
+	}
+	/**
+	 * Gets the number of bytes in the image.
+	 *
+	 * @return the image length
+	 */
+	public int length() {
+		return length;
+	}
+	/**
+	 * Uploads the image to one port on the calling thread.
+	 *
+	 * @param port the port name
+	 * @param output the indicator for status messages
+	 * @throws SerialException if the upload fails
+	 */
+	public void program(final String port, final Indicator output) throws SerialException {
+		final VexFlash session = new VexFlash();
+		session.setHistory(history);
+		session.setImage(image);
+		session.setup(getParams(port));
+		try {
+			session.program(output);
+		} finally {
+			session.end();
+		}
+	}
+	/**
+	 * Uploads the image to several ports at once, and waits until every session is done.
+	 *
+	 * @param ports the port names
+	 * @param listener the listener for the progress of each port
+	 * @return the errors of the sessions which failed, by port name
+	 * @throws InterruptedException if interrupted while waiting; the sessions carry on
+	 */
+	public Map<String, SerialException> programAll(final Collection<String> ports,
+			final Listener listener) throws InterruptedException {
+		final Map<String, SerialException> failed = Collections.synchronizedMap(
+			new LinkedHashMap<String, SerialException>(ports.size() * 2));
+		final List<Thread> threads = new ArrayList<Thread>(ports.size());
+		for (final String port : ports) {
+			final Thread thread = new Thread("Flash " + port) {
+				public void run() {
+					SerialException failure = null;
+					try {
+						program(port, listener.started(port));
+					} catch (SerialException e) {
+						failure = e;
+						failed.put(port, e);
+					} catch (RuntimeException e) {
+						failure = new SerialException("Upload to " + port + " failed", e);
+						failed.put(port, failure);
+					}
+					listener.finished(port, failure);
+				}
+			};
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		return failed;
+	}
+	public String toString() {
+		return String.format("%s[mode=%d,project=%s,target=%s,len=%d]",
+			getClass().getSimpleName(), mode, project, target.getPath(), length);
+	}
+}
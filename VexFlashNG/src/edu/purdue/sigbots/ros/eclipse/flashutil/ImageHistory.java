@@ -0,0 +1,512 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Remembers the last user code image flashed to each device, as one hash per flash page, so
+ * that a later upload can rewrite only the pages which changed.
+ *
+ * Records are keyed by the 96-bit unique ID of the device, read through the bootloader like
+ * any other memory, so that a robot is recognized on any port. A device whose ID cannot be
+ * read is keyed by its type and port name instead, which another robot plugged into the same
+ * port would share; uploads therefore read back a few pages before trusting a record.
+ *
+ * A record is removed before flash memory is changed and written again only after the upload
+ * succeeds, so an interrupted upload never leaves a record that disagrees with the device.
+ * While an upload is in progress, a checkpoint tracks how far it got instead, so that an
+ * upload of the same image after a lost link can carry on from there.
+ */
+public class ImageHistory {
+	/**
+	 * Hash algorithm used for each page.
+	 */
+	private static final String ALGORITHM = "SHA-1";
+	/**
+	 * Extension of the record files.
+	 */
+	private static final String EXTENSION = ".pages";
+	/**
+	 * Extension of the checkpoint files.
+	 */
+	private static final String CHECKPOINT_EXTENSION = ".resume";
+
+	/**
+	 * Computes the hash of a whole image.
+	 *
+	 * @param image the image data
+	 * @return the image hash
+	 */
+	public static byte[] digest(final byte[] image) {
+		return newDigest().digest(image);
+	}
+	/**
+	 * Computes the hash of a whole image held in a buffer.
+	 *
+	 * @param image the image data, from its position to its limit; the position is not moved
+	 * @return the image hash
+	 */
+	public static byte[] digest(final ByteBuffer image) {
+		final MessageDigest md = newDigest();
+		md.update(image.duplicate());
+		return md.digest();
+	}
+
+	/**
+	 * Gets the default history, which is kept in the user's home directory.
+	 *
+	 * @return the history shared by all uploads of this user
+	 */
+	public static ImageHistory getDefault() {
+		return new ImageHistory(new File(System.getProperty("user.home"), ".pros" +
+			File.separator + "vexflash"));
+	}
+	/**
+	 * Computes the page hashes of an image. The last page is padded with 0xFF, as erased flash
+	 * would be.
+	 *
+	 * @param image the image data
+	 * @param length the number of valid bytes in image
+	 * @param pageSize the flash page size in bytes
+	 * @return the image record
+	 */
+	public static Record hash(final byte[] image, final int length, final int pageSize) {
+		return hash(ByteBuffer.wrap(image, 0, length), pageSize);
+	}
+	/**
+	 * Computes the page hashes of an image held in a buffer. The last page is padded with
+	 * 0xFF, as erased flash would be.
+	 *
+	 * @param image the image data, from its position to its limit; the position is not moved
+	 * @param pageSize the flash page size in bytes
+	 * @return the image record
+	 */
+	public static Record hash(final ByteBuffer image, final int pageSize) {
+		final ByteBuffer data = image.slice();
+		final int length = data.remaining(), pages = (length + pageSize - 1) / pageSize;
+		final byte[][] hashes = new byte[pages][];
+		final byte[] pad = new byte[pageSize];
+		final MessageDigest md = newDigest();
+		Arrays.fill(pad, (byte)0xFF);
+		for (int i = 0; i < pages; i++) {
+			final int offset = i * pageSize, count = Math.min(pageSize, length - offset);
+			data.limit(offset + count).position(offset);
+			md.update(data);
+			if (count < pageSize)
+				md.update(pad, 0, pageSize - count);
+			hashes[i] = md.digest();
+		}
+		return new Record(pageSize, length, hashes);
+	}
+	/**
+	 * Creates a message digest for the hash algorithm.
+	 *
+	 * @return the message digest
+	 */
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform must provide SHA-1
+			throw new IllegalStateException(ALGORITHM + " not available", e);
+		}
+	}
+	/**
+	 * Reads an image file into memory.
+	 *
+	 * @param fileData the image to read
+	 * @return the image contents, fileData.length() bytes long
+	 * @throws IOException if the image cannot be read completely
+	 */
+	public static byte[] readImage(final Parser fileData) throws IOException {
+		final int size = fileData.length();
+		final byte[] image = new byte[size];
+		if (fileData.read(image, 0, size) < size)
+			throw new EOFException("Image ended early");
+		return image;
+	}
+
+	/**
+	 * Directory where the records are stored.
+	 */
+	private final File directory;
+
+	/**
+	 * Creates an image history stored in the given directory. The directory is created when
+	 * the first record is saved.
+	 *
+	 * @param directory the directory for the records
+	 */
+	public ImageHistory(final File directory) {
+		if (directory == null)
+			throw new NullPointerException("directory");
+		this.directory = directory;
+	}
+	/**
+	 * Removes the checkpoint of a device, once its upload has completed.
+	 *
+	 * @param state the connected device
+	 * @param port the port name
+	 * @throws IOException if the checkpoint exists but cannot be removed
+	 */
+	public void clearCheckpoint(final STMState state, final String port) throws IOException {
+		final File file = fileFor(state, port, CHECKPOINT_EXTENSION);
+		if (file.exists() && !file.delete())
+			throw new IOException("Cannot remove " + file.getAbsolutePath());
+	}
+	/**
+	 * Gets the file holding the record for a device, named after its unique ID or, failing
+	 * that, its port.
+	 *
+	 * @param state the connected device
+	 * @param port the port name
+	 * @param extension the file extension for the kind of record
+	 * @return the record file
+	 */
+	private File fileFor(final STMState state, final String port, final String extension) {
+		final StringBuilder name = new StringBuilder(40);
+		final byte[] id = state.getUniqueID();
+		name.append(String.format("%04x-", state.getDevice().getID() & 0xFFFF));
+		if (id != null)
+			for (byte b : id)
+				name.append(String.format("%02x", b & 0xFF));
+		else
+			// Port names contain slashes, colons and dots on various platforms
+			for (int i = 0; i < port.length(); i++) {
+				final char c = port.charAt(i);
+				name.append(Character.isLetterOrDigit(c) ? c : '_');
+			}
+		name.append(extension);
+		return new File(directory, name.toString());
+	}
+	/**
+	 * Forgets the image on a device. This must be done before its flash memory is changed.
+	 *
+	 * @param state the connected device
+	 * @param port the port name
+	 * @throws IOException if the record exists but cannot be removed
+	 */
+	public void forget(final STMState state, final String port) throws IOException {
+		final File file = fileFor(state, port, EXTENSION);
+		if (file.exists() && !file.delete())
+			throw new IOException("Cannot remove " + file.getAbsolutePath());
+	}
+	/**
+	 * Loads the record of the last image flashed to a device.
+	 *
+	 * @param state the connected device
+	 * @param port the port name
+	 * @return the record, or null if there is none or it cannot be read
+	 */
+	public Record load(final STMState state, final String port) {
+		final File file = fileFor(state, port, EXTENSION);
+		Record record = null;
+		if (file.isFile())
+			try {
+				final DataInputStream is = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+				try {
+					final int pageSize = is.readInt(), length = is.readInt();
+					final int pages = is.readInt(), hashLength = is.readInt();
+					if (pageSize <= 0 || pages < 0 || pages > length / pageSize + 1 ||
+							hashLength < 0 || hashLength > 64)
+						throw new IOException("Bad record " + file.getAbsolutePath());
+					final byte[][] hashes = new byte[pages][hashLength];
+					for (int i = 0; i < pages; i++)
+						is.readFully(hashes[i]);
+					record = new Record(pageSize, length, hashes);
+				} finally {
+					is.close();
+				}
+			} catch (IOException e) {
+				// Corrupt or truncated, a full upload will replace it
+				record = null;
+			}
+		return record;
+	}
+	/**
+	 * Saves the record of the image now on a device.
+	 *
+	 * @param state the connected device
+	 * @param port the port name
+	 * @param record the image record
+	 * @throws IOException if the record cannot be written
+	 */
+	public void save(final STMState state, final String port, final Record record)
+			throws IOException {
+		final File file = fileFor(state, port, EXTENSION), temp = createTemp(file);
+		final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(temp)));
+		try {
+			final int pages = record.getPageCount();
+			os.writeInt(record.getPageSize());
+			os.writeInt(record.getLength());
+			os.writeInt(pages);
+			os.writeInt(pages > 0 ? record.hashes[0].length : 0);
+			for (int i = 0; i < pages; i++)
+				os.write(record.hashes[i]);
+		} finally {
+			os.close();
+		}
+		replace(temp, file);
+	}
+	/**
+	 * Saves the progress of an upload in progress.
+	 *
+	 * @param state the connected device
+	 * @param port the port name
+	 * @param checkpoint the upload progress
+	 * @throws IOException if the checkpoint cannot be written
+	 */
+	public void saveCheckpoint(final STMState state, final String port,
+			final Checkpoint checkpoint) throws IOException {
+		final File file = fileFor(state, port, CHECKPOINT_EXTENSION), temp = createTemp(file);
+		final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(temp)));
+		try {
+			os.writeInt(checkpoint.digest.length);
+			os.write(checkpoint.digest);
+			os.writeBoolean(checkpoint.erased);
+			os.writeInt(checkpoint.confirmed);
+			os.writeBoolean(checkpoint.clean);
+		} finally {
+			os.close();
+		}
+		replace(temp, file);
+	}
+	/**
+	 * Gets the temporary file used while writing a record, creating the directory if needed.
+	 *
+	 * @param file the record file
+	 * @return the temporary file next to it
+	 * @throws IOException if the directory cannot be created
+	 */
+	private File createTemp(final File file) throws IOException {
+		// Another upload may create the directory at the same time
+		if (!directory.mkdirs() && !directory.isDirectory())
+			throw new IOException("Cannot create " + directory.getAbsolutePath());
+		return new File(directory, file.getName() + ".tmp");
+	}
+	/**
+	 * Loads the checkpoint of an unfinished upload to a device.
+	 *
+	 * @param state the connected device
+	 * @param port the port name
+	 * @return the checkpoint, or null if there is none or it cannot be read
+	 */
+	public Checkpoint loadCheckpoint(final STMState state, final String port) {
+		final File file = fileFor(state, port, CHECKPOINT_EXTENSION);
+		Checkpoint checkpoint = null;
+		if (file.isFile())
+			try {
+				final DataInputStream is = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+				try {
+					final int hashLength = is.readInt();
+					if (hashLength < 0 || hashLength > 64)
+						throw new IOException("Bad checkpoint " + file.getAbsolutePath());
+					final byte[] digest = new byte[hashLength];
+					is.readFully(digest);
+					final boolean erased = is.readBoolean();
+					final int confirmed = is.readInt();
+					// Checkpoints of older versions end here and never count as clean
+					final boolean clean = is.available() > 0 && is.readBoolean();
+					checkpoint = new Checkpoint(digest, erased, clean, confirmed);
+				} finally {
+					is.close();
+				}
+			} catch (IOException e) {
+				// Corrupt or truncated, the upload will start over
+				checkpoint = null;
+			}
+		return checkpoint;
+	}
+	/**
+	 * Moves a freshly written temporary file over a record, in one step where the platform
+	 * allows it.
+	 *
+	 * @param temp the temporary file
+	 * @param file the record file to replace
+	 * @throws IOException if the record cannot be replaced
+	 */
+	private static void replace(final File temp, final File file) throws IOException {
+		if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Cannot replace " + file.getAbsolutePath());
+		}
+	}
+	public String toString() {
+		return String.format("%s[directory=%s]", getClass().getSimpleName(),
+			directory.getPath());
+	}
+
+	/**
+	 * How far an upload of one image has got.
+	 */
+	public static class Checkpoint {
+		/**
+		 * Whether the file system was erased as well, as a clean upload does.
+		 */
+		private final boolean clean;
+		/**
+		 * Number of bytes from the start of the image written and acknowledged; a multiple of
+		 * the page size.
+		 */
+		private final int confirmed;
+		/**
+		 * Hash of the whole image being uploaded.
+		 */
+		private final byte[] digest;
+		/**
+		 * Whether the pages needed by the image have been erased.
+		 */
+		private final boolean erased;
+
+		/**
+		 * Creates an upload checkpoint.
+		 *
+		 * @param digest the hash of the whole image, from ImageHistory.digest()
+		 * @param erased whether the pages needed by the image have been erased
+		 * @param clean whether the file system has been erased as well
+		 * @param confirmed the number of bytes written and acknowledged
+		 */
+		public Checkpoint(final byte[] digest, final boolean erased, final boolean clean,
+				final int confirmed) {
+			this.clean = clean;
+			this.confirmed = confirmed;
+			this.digest = digest;
+			this.erased = erased;
+		}
+		/**
+		 * Gets the number of bytes from the start of the image which were written and
+		 * acknowledged.
+		 *
+		 * @return the confirmed byte count
+		 */
+		public int getConfirmed() {
+			return confirmed;
+		}
+		/**
+		 * Checks whether the file system was erased along with the pages needed by the image.
+		 *
+		 * @return whether a clean upload erased everything
+		 */
+		public boolean isClean() {
+			return clean;
+		}
+		/**
+		 * Checks whether the pages needed by the image have been erased.
+		 *
+		 * @return whether erasing finished
+		 */
+		public boolean isErased() {
+			return erased;
+		}
+		/**
+		 * Checks whether this checkpoint belongs to an upload of the given image.
+		 *
+		 * @param imageDigest the hash of the whole image, from ImageHistory.digest()
+		 * @return whether the hashes match
+		 */
+		public boolean isFor(final byte[] imageDigest) {
+			return MessageDigest.isEqual(digest, imageDigest);
+		}
+		public String toString() {
+			return String.format("%s[erased=%b,clean=%b,confirmed=%d]",
+				getClass().getSimpleName(), erased, clean, confirmed);
+		}
+	}
+
+	/**
+	 * The page hashes of one image.
+	 */
+	public static class Record {
+		/**
+		 * Hash of each page, in page order.
+		 */
+		private final byte[][] hashes;
+		/**
+		 * Image size in bytes.
+		 */
+		private final int length;
+		/**
+		 * Page size in bytes used to compute the hashes.
+		 */
+		private final int pageSize;
+
+		/**
+		 * Creates an image record.
+		 *
+		 * @param pageSize the page size in bytes
+		 * @param length the image size in bytes
+		 * @param hashes the hash of each page
+		 */
+		protected Record(final int pageSize, final int length, final byte[][] hashes) {
+			this.hashes = hashes;
+			this.length = length;
+			this.pageSize = pageSize;
+		}
+		/**
+		 * Works out which pages must be rewritten to turn the image in this record into a new
+		 * image with the same page size.
+		 *
+		 * @param newer the record of the new image
+		 * @return a bit set with one bit set for each page of the new image that differs
+		 */
+		public BitSet changedPages(final Record newer) {
+			final int pages = newer.getPageCount(), old = getPageCount();
+			final BitSet changed = new BitSet(pages);
+			if (newer.pageSize != pageSize)
+				throw new IllegalArgumentException("Page sizes differ");
+			for (int i = 0; i < pages; i++)
+				if (i >= old || !Arrays.equals(hashes[i], newer.hashes[i]))
+					changed.set(i);
+			return changed;
+		}
+		/**
+		 * Gets the image size.
+		 *
+		 * @return the image size in bytes
+		 */
+		public int getLength() {
+			return length;
+		}
+		/**
+		 * Gets the number of pages in the image.
+		 *
+		 * @return the number of flash pages the image occupies
+		 */
+		public int getPageCount() {
+			return hashes.length;
+		}
+		/**
+		 * Gets the page size used for the hashes.
+		 *
+		 * @return the page size in bytes
+		 */
+		public int getPageSize() {
+			return pageSize;
+		}
+		/**
+		 * Checks whether another record describes the same image.
+		 *
+		 * @param other the record to compare
+		 * @return whether the page size, length and every page hash are the same
+		 */
+		public boolean matches(final Record other) {
+			if (other.pageSize != pageSize || other.length != length ||
+					other.hashes.length != hashes.length)
+				return false;
+			for (int i = 0; i < hashes.length; i++)
+				if (!Arrays.equals(hashes[i], other.hashes[i]))
+					return false;
+			return true;
+		}
+		public String toString() {
+			return String.format("%s[length=%d,pageSize=%d,pages=%d]",
+				getClass().getSimpleName(), length, pageSize, hashes.length);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.io.*;
+import jssc.*;
+
+/**
+ * Serial transport backed by a jssc serial port. Received bytes are moved by the event thread
+ * into a ring buffer, and a waiting reader is only woken once the number of bytes which it
+ * asked for has arrived. Draining sleeps for the time the queued bytes need on the line, or
+ * until the TXEMPTY event, whichever comes first.
+ *
+ * jssc only reads into arrays of its own, so each receive event still allocates one array of
+ * the bytes pending at that time; the ring buffer only saves the copies and allocations of
+ * the many small reads which consume them. The termios and reactor backends read into
+ * preallocated native buffers instead and allocate no arrays per read.
+ *
+ * @author Stephen
+ */
+public class JsscTransport implements SerialTransport, SerialPortEventListener {
+	/**
+	 * Initial size of the receive ring buffer, enough for several maximum-size replies.
+	 */
+	private static final int RX_BUFFER = 4096;
+
+	/**
+	 * Time to send one byte at the current line settings, in nanoseconds.
+	 */
+	private long byteNanos;
+	private final SerialPort port;
+	private final ByteQueue rx;
+	private final Object rxLock;
+	private final Object txLock;
+	/**
+	 * Number of bytes the waiting reader needs, or 0 if no reader is waiting.
+	 */
+	private int wanted;
+
+	/**
+	 * Creates a transport for the serial port with the given name. The port is not opened
+	 * until open() is called.
+	 *
+	 * @param name the serial port name
+	 */
+	public JsscTransport(final String name) {
+		byteNanos = getByteNanos(VexFlash.BAUD, PARITY_NONE);
+		port = new SerialPort(name);
+		rx = new ByteQueue(RX_BUFFER);
+		rxLock = new Object();
+		txLock = new Object();
+		wanted = 0;
+	}
+	public void close() {
+		try {
+			if (port.isOpened()) {
+				drain(0L);
+				// Clean it up
+				port.closePort();
+			}
+		} catch (IOException ignore) {
+		} catch (SerialPortException ignore) { }
+	}
+	/**
+	 * Computes the time needed to send one byte: start bit, 8 data bits, optional parity bit
+	 * and stop bit.
+	 *
+	 * @param baud the baud rate
+	 * @param parity the parity mode, PARITY_NONE or PARITY_EVEN
+	 * @return the byte time in nanoseconds
+	 */
+	private static long getByteNanos(final int baud, final int parity) {
+		return ((parity == PARITY_NONE) ? 10L : 11L) * 1000000000L / Math.max(1, baud);
+	}
+	public void drain(final long timeout) throws IOException {
+		final long future = System.nanoTime() + timeout * 1000000L;
+		try {
+			int queued;
+			while ((queued = port.getOutputBufferBytesCount()) > 0) {
+				// Sleep for as long as the queued bytes take on the line, at most until the
+				// deadline; TXEMPTY cuts it short
+				long wait = queued * byteNanos;
+				if (timeout > 0L) {
+					final long left = future - System.nanoTime();
+					if (left <= 0L)
+						break;
+					wait = Math.min(wait, left);
+				}
+				synchronized (txLock) {
+					txLock.wait(wait / 1000000L, (int)(wait % 1000000L));
+				}
+			}
+		} catch (InterruptedException ignore) {
+		} catch (SerialPortException e) {
+			throw new IOException("Error when draining output");
+		}
+	}
+	public String getName() {
+		return port.getPortName();
+	}
+	public void open() throws IOException {
+		if (port.isOpened())
+			return;
+		try {
+			// Open port and set default parameters
+			port.openPort();
+			port.setDTR(false);
+			port.setRTS(false);
+			port.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
+			port.setEventsMask(SerialPort.MASK_RXCHAR | SerialPort.MASK_RXFLAG |
+				SerialPort.MASK_TXEMPTY);
+			port.addEventListener(this);
+		} catch (SerialPortException e) {
+			if (e.getExceptionType().equals(SerialPortException.TYPE_PORT_ALREADY_OPENED))
+				throw new IOException("Port is in use");
+			else
+				throw new IOException("Failed to open port");
+		}
+	}
+	public void purge() {
+		synchronized (rxLock) {
+			try {
+				port.purgePort(SerialPort.PURGE_RXCLEAR);
+			} catch (SerialPortException ignore) { }
+			rx.clear();
+		}
+	}
+	public int read(final byte[] data, final int offset, final int length, final long timeout)
+			throws IOException {
+		synchronized (rxLock) {
+			if (rx.size() < length) {
+				// Wait it out until we either get what we want or the timeout expires
+				final long future = System.currentTimeMillis() + timeout;
+				long now = System.currentTimeMillis();
+				wanted = length;
+				try {
+					do {
+						try {
+							rxLock.wait((timeout > 0L) ? future - now : 0L);
+						} catch (InterruptedException ignore) { }
+						now = System.currentTimeMillis();
+					} while (rx.size() < length && (timeout <= 0L || now < future));
+				} finally {
+					wanted = 0;
+				}
+				if (rx.size() < length)
+					// Leave the partial data for the next read
+					return 0;
+			}
+			// Got what we wanted
+			rx.take(data, offset, length);
+			return length;
+		}
+	}
+	public void serialEvent(final SerialPortEvent e) {
+		if (e.isRXCHAR() || e.isRXFLAG())
+			try {
+				final int count = port.getInputBufferBytesCount();
+				if (count > 0) {
+					// One bulk read per event, however many small reads consume it; jssc
+					// allocates a new array for every read
+					final byte[] in = port.readBytes(count);
+					synchronized (rxLock) {
+						rx.put(in, 0, in.length);
+						// Only wake the reader if it can now finish
+						if (wanted > 0 && rx.size() >= wanted)
+							rxLock.notifyAll();
+					}
+				}
+			} catch (SerialPortException ignore) {
+				// Left in the driver's buffer for the next event
+			}
+		else if (e.isTXEMPTY())
+			synchronized (txLock) {
+				// Notify everyone that TX is done
+				txLock.notifyAll();
+			}
+	}
+	public void setDTR(final boolean enabled) throws IOException {
+		try {
+			port.setDTR(enabled);
+		} catch (SerialPortException e) {
+			throw new IOException("Failed to set DTR = " + enabled);
+		}
+	}
+	public void setParams(final int baud, final int parity) throws IOException {
+		try {
+			port.setParams(baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, parity,
+				false, false);
+			byteNanos = getByteNanos(baud, parity);
+		} catch (SerialPortException e) {
+			throw new IOException("Failed to set port parameters");
+		}
+	}
+	public void setRTS(final boolean enabled) throws IOException {
+		try {
+			port.setRTS(enabled);
+		} catch (SerialPortException e) {
+			throw new IOException("Failed to set RTS = " + enabled);
+		}
+	}
+	public String toString() {
+		return String.format("%s[name=%s]", getClass().getSimpleName(), getName());
+	}
+	public void write(final byte[] data, final int offset, final int length)
+			throws IOException {
+		final byte[] out;
+		if (offset == 0 && length == data.length)
+			out = data;
+		else {
+			out = new byte[length];
+			System.arraycopy(data, offset, out, 0, length);
+		}
+		try {
+			port.writeBytes(out);
+		} catch (SerialPortException e) {
+			throw new IOException("Error when writing " + length + " bytes");
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import com.sun.jna.*;
+import com.sun.jna.ptr.*;
+
+/**
+ * JNA mapping of the Linux C library calls used by the file descriptor based transports.
+ * Constants are the x86 and x86_64 Linux values, and have not been checked against any other
+ * architecture; see X86.
+ */
+interface LibC extends Library {
+	/**
+	 * Whether this machine is x86 or x86_64, so that the constants here are known to be
+	 * right. Reading this loads the C library.
+	 */
+	public static final boolean X86 = System.getProperty("os.arch", "").matches(
+		"x86|i[3-6]86|amd64|x86_64");
+	/**
+	 * The loaded C library.
+	 */
+	public static final LibC INSTANCE = (LibC)Native.loadLibrary("c", LibC.class);
+
+	// open() flags
+	public static final int O_RDWR = 0x0002;
+	public static final int O_NOCTTY = 0x0100;
+	public static final int O_NONBLOCK = 0x0800;
+	// errno values
+	public static final int EAGAIN = 11;
+	public static final int EBUSY = 16;
+	public static final int EINTR = 4;
+	// epoll_create1() flags and epoll_ctl() operations
+	public static final int EPOLL_CLOEXEC = 0x80000;
+	public static final int EPOLL_CTL_ADD = 1;
+	public static final int EPOLL_CTL_DEL = 2;
+	public static final int EPOLL_CTL_MOD = 3;
+	// eventfd() flags
+	public static final int EFD_CLOEXEC = 0x80000;
+	public static final int EFD_NONBLOCK = 0x800;
+	// struct epoll_event layout (packed on x86 and x86_64, the data field aligned elsewhere)
+	public static final int EPOLL_EVENT_SIZE = X86 ? 12 : 16;
+	public static final int EPOLL_EVENT_DATA = X86 ? 4 : 8;
+	// poll() events
+	public static final short POLLIN = 0x0001;
+	public static final short POLLOUT = 0x0004;
+	public static final short POLLERR = 0x0008;
+	public static final short POLLHUP = 0x0010;
+	// tcflush() and tcsetattr() arguments
+	public static final int TCIFLUSH = 0;
+	public static final int TCSANOW = 0;
+	// ioctl() requests
+	public static final int TIOCEXCL = 0x540C;
+	public static final int TIOCOUTQ = 0x5411;
+	public static final int TIOCMBIS = 0x5416;
+	public static final int TIOCMBIC = 0x5417;
+	public static final int TIOCM_DTR = 0x002;
+	public static final int TIOCM_RTS = 0x004;
+	// struct termios layout (glibc)
+	public static final int TERMIOS_SIZE = 60;
+	public static final int TERMIOS_CFLAG = 8;
+	public static final int TERMIOS_CC = 17;
+	public static final int VTIME = 5;
+	public static final int VMIN = 6;
+	// c_cflag bits
+	public static final int CSTOPB = 0x0040;
+	public static final int CREAD = 0x0080;
+	public static final int PARENB = 0x0100;
+	public static final int PARODD = 0x0200;
+	public static final int CLOCAL = 0x0800;
+	public static final int CRTSCTS = 0x80000000;
+
+	public int cfmakeraw(Pointer termios);
+	public int cfsetspeed(Pointer termios, int speed) throws LastErrorException;
+	public int close(int fd);
+	public int epoll_create1(int flags) throws LastErrorException;
+	public int epoll_ctl(int epfd, int op, int fd, Pointer event) throws LastErrorException;
+	public int epoll_wait(int epfd, Pointer events, int maxevents, int timeout)
+		throws LastErrorException;
+	public int eventfd(int initval, int flags) throws LastErrorException;
+	public int grantpt(int fd) throws LastErrorException;
+	public int ioctl(int fd, NativeLong request, IntByReference arg) throws LastErrorException;
+	public int open(String path, int flags) throws LastErrorException;
+	public int poll(Pointer fds, NativeLong nfds, int timeout) throws LastErrorException;
+	public int posix_openpt(int flags) throws LastErrorException;
+	public String ptsname(int fd);
+	public NativeLong read(int fd, Pointer buf, NativeLong count) throws LastErrorException;
+	public int tcflush(int fd, int queue) throws LastErrorException;
+	public int tcgetattr(int fd, Pointer termios) throws LastErrorException;
+	public int tcsetattr(int fd, int action, Pointer termios) throws LastErrorException;
+	public int unlockpt(int fd) throws LastErrorException;
+	public NativeLong write(int fd, Pointer buf, NativeLong count) throws LastErrorException;
+}
@@ -0,0 +1,176 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * A parser over an image file mapped into memory, or over an image already held in memory.
+ * Besides reading forward like any parser, any page of the image may be read at any time,
+ * and the page hashes and digest of the image are computed once and kept with the mapping.
+ *
+ * The mapping is never modified, so one mapping may back any number of parsers at once, each
+ * with its own read position; see share(). A file mapping lasts until it is garbage
+ * collected, which on Windows also keeps the file from being replaced until then; a long
+ * running process which must not hold on to a build output should copy it to memory instead.
+ */
+public class MappedParser implements Parser {
+	/**
+	 * One mapped image and what has been computed from it, shared by all of its parsers.
+	 */
+	private static final class Mapping {
+		/**
+		 * The mapped file or image data, read-only; only duplicates are ever moved.
+		 */
+		private final ByteBuffer data;
+		/**
+		 * Hash of the whole image, or null if not yet computed.
+		 */
+		private byte[] digest;
+		/**
+		 * Page hashes of the image, or null if not yet computed.
+		 */
+		private ImageHistory.Record record;
+
+		private Mapping(final ByteBuffer data) {
+			this.data = data;
+			digest = null;
+			record = null;
+		}
+	}
+
+	/**
+	 * This parser's view of the mapping, with its own position.
+	 */
+	private final ByteBuffer buffer;
+	/**
+	 * The shared mapping.
+	 */
+	private final Mapping mapping;
+
+	/**
+	 * Creates a new parser over an image already in memory. The array must not be changed
+	 * afterwards.
+	 *
+	 * @param data the image data
+	 */
+	public MappedParser(final byte[] data) {
+		mapping = new Mapping(ByteBuffer.wrap(data).asReadOnlyBuffer());
+		buffer = mapping.data.duplicate();
+	}
+	/**
+	 * Creates a new parser by mapping an image file into memory.
+	 *
+	 * @param file the file to map
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public MappedParser(final File file) throws IOException {
+		final FileInputStream is = new FileInputStream(file);
+		try {
+			final FileChannel channel = is.getChannel();
+			// The mapping stays valid once the channel is closed
+			mapping = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0L,
+				channel.size()));
+		} finally {
+			is.close();
+		}
+		buffer = mapping.data.duplicate();
+	}
+	/**
+	 * Creates a new parser reading from the start of another parser's mapping.
+	 *
+	 * @param mapping the shared mapping
+	 */
+	private MappedParser(final Mapping mapping) {
+		this.mapping = mapping;
+		buffer = mapping.data.duplicate();
+	}
+	public void close() {
+		buffer.position(buffer.limit());
+	}
+	/**
+	 * Gets the hash of the whole image, computing it the first time.
+	 *
+	 * @return the image hash, as from ImageHistory.digest()
+	 */
+	public byte[] getDigest() {
+		synchronized (mapping) {
+			if (mapping.digest == null)
+				mapping.digest = ImageHistory.digest(mapping.data);
+			return mapping.digest;
+		}
+	}
+	/**
+	 * Gets the number of pages in the image.
+	 *
+	 * @param pageSize the flash page size in bytes
+	 * @return the number of flash pages the image occupies
+	 */
+	public int getPageCount(final int pageSize) {
+		return (length() + pageSize - 1) / pageSize;
+	}
+	/**
+	 * Gets the page hashes of the image, computing them the first time. The hashes are kept
+	 * for the last page size asked for, which is always that of the connected device.
+	 *
+	 * @param pageSize the flash page size in bytes
+	 * @return the image record, as from ImageHistory.hash()
+	 */
+	public ImageHistory.Record getRecord(final int pageSize) {
+		synchronized (mapping) {
+			if (mapping.record == null || mapping.record.getPageSize() != pageSize)
+				mapping.record = ImageHistory.hash(mapping.data, pageSize);
+			return mapping.record;
+		}
+	}
+	public int length() {
+		return mapping.data.capacity();
+	}
+	public int read(final byte[] output, final int start, final int length) {
+		final int count = Math.min(length, buffer.remaining());
+		buffer.get(output, start, count);
+		return count;
+	}
+	/**
+	 * Reads one page of the image without moving the read position. The end of the last page
+	 * is padded with 0xFF, as erased flash would be.
+	 *
+	 * @param page the page number, from the start of the image
+	 * @param pageSize the flash page size in bytes
+	 * @param output where the page will be stored, at least pageSize bytes long
+	 * @return the number of bytes of the image in the page, or 0 if past the end
+	 */
+	public int readPage(final int page, final int pageSize, final byte[] output) {
+		final ByteBuffer data = mapping.data.duplicate();
+		final int offset = page * pageSize, count = Math.max(0, Math.min(pageSize, length() -
+			offset));
+		if (count > 0) {
+			data.position(offset);
+			data.get(output, 0, count);
+		}
+		for (int i = count; i < pageSize; i++)
+			output[i] = (byte)0xFF;
+		return count;
+	}
+	/**
+	 * Moves the read position.
+	 *
+	 * @param position the offset of the next byte to read
+	 */
+	public void seek(final int position) {
+		buffer.position(position);
+	}
+	/**
+	 * Creates another parser over the same mapping, reading from the start. The page hashes
+	 * and digest are shared as well.
+	 *
+	 * @return the new parser
+	 */
+	public MappedParser share() {
+		return new MappedParser(mapping);
+	}
+	public String toString() {
+		return String.format("%s[len=%d,pos=%d]", getClass().getSimpleName(), length(),
+			buffer.position());
+	}
+}
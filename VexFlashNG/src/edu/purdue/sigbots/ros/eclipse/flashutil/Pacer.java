@@ -0,0 +1,99 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+/**
+ * Paces bulk transfers to the bootloader. Packets are sent back to back until the link shows
+ * signs of trouble (a NACK, a timeout or a retry), then a delay is inserted after each packet
+ * and doubled on every further failure. After a run of clean packets the delay is halved
+ * again, so the pacing settles at the fastest rate the link sustains.
+ */
+public class Pacer {
+	/**
+	 * Smallest non-zero delay in milliseconds.
+	 */
+	private static final long MIN_DELAY = 5L;
+	/**
+	 * Largest delay in milliseconds.
+	 */
+	private static final long MAX_DELAY = 160L;
+	/**
+	 * Number of successful packets in a row needed before the delay is reduced.
+	 */
+	private static final int RECOVER_AFTER = 32;
+
+	/**
+	 * The current delay after each packet in milliseconds.
+	 */
+	private long delay;
+	/**
+	 * Number of failures seen.
+	 */
+	private int failures;
+	/**
+	 * Number of successful packets since the last failure or reduction.
+	 */
+	private int streak;
+
+	/**
+	 * Creates a new pacer which starts with no delay.
+	 */
+	public Pacer() {
+		delay = 0L;
+		failures = 0;
+		streak = 0;
+	}
+	/**
+	 * Records a failed packet and backs off.
+	 */
+	public void failure() {
+		delay = Math.min(MAX_DELAY, Math.max(MIN_DELAY, delay * 2L));
+		failures++;
+		streak = 0;
+	}
+	/**
+	 * Gets the current delay after each packet.
+	 *
+	 * @return the delay in milliseconds
+	 */
+	public long getDelay() {
+		return delay;
+	}
+	/**
+	 * Gets the number of failures seen so far.
+	 *
+	 * @return the failure count
+	 */
+	public int getFailures() {
+		return failures;
+	}
+	/**
+	 * Waits for the current delay, if any.
+	 */
+	public void pause() {
+		if (delay > 0L)
+			Utils.delay(delay);
+	}
+	/**
+	 * Reports the pacing which the link has settled on.
+	 *
+	 * @param output the indicator for status messages
+	 */
+	public void report(final Indicator output) {
+		output.message(String.format("Transfer pacing %d ms per packet, %d retries", delay,
+			failures));
+	}
+	/**
+	 * Records a successful packet, reducing the delay after enough of them in a row.
+	 */
+	public void success() {
+		if (delay > 0L && ++streak >= RECOVER_AFTER) {
+			delay /= 2L;
+			if (delay < MIN_DELAY)
+				delay = 0L;
+			streak = 0;
+		}
+	}
+	public String toString() {
+		return String.format("%s[delay=%d,failures=%d]", getClass().getSimpleName(), delay,
+			failures);
+	}
+}
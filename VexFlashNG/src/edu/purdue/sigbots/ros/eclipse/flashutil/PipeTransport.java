@@ -0,0 +1,158 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.io.*;
+
+/**
+ * One end of an in-memory pipe. Bytes written to one end become readable at the other end
+ * immediately, so the flash engine can be driven at full speed against any peer running in
+ * the same process. Line parameters are only recorded, so the peer can check them.
+ */
+public class PipeTransport implements SerialTransport {
+	/**
+	 * Creates a connected pair of pipe ends.
+	 *
+	 * @param hostName the name of the first end (normally used by the flash engine)
+	 * @param deviceName the name of the second end (normally used by the device model)
+	 * @return the two ends, host end first
+	 */
+	public static PipeTransport[] createPair(final String hostName, final String deviceName) {
+		final Buffer toDevice = new Buffer(), toHost = new Buffer();
+		final PipeTransport host = new PipeTransport(hostName, toHost, toDevice);
+		final PipeTransport device = new PipeTransport(deviceName, toDevice, toHost);
+		host.peer = device;
+		device.peer = host;
+		return new PipeTransport[] { host, device };
+	}
+
+	private int baud;
+	private boolean closed;
+	private final Buffer in;
+	private final String name;
+	private final Buffer out;
+	private int parity;
+	private PipeTransport peer;
+
+	/**
+	 * Creates one end of a pipe.
+	 *
+	 * @param name the name of this end
+	 * @param in the buffer read by this end
+	 * @param out the buffer written by this end
+	 */
+	private PipeTransport(final String name, final Buffer in, final Buffer out) {
+		baud = VexFlash.BAUD;
+		closed = false;
+		this.in = in;
+		this.name = name;
+		this.out = out;
+		parity = PARITY_NONE;
+	}
+	public void close() {
+		closed = true;
+		in.close();
+		out.close();
+	}
+	public void drain(final long timeout) {
+		// Nothing is ever in transit
+	}
+	/**
+	 * Gets the baud rate most recently set on this end.
+	 *
+	 * @return the baud rate
+	 */
+	public int getBaud() {
+		return baud;
+	}
+	public String getName() {
+		return name;
+	}
+	/**
+	 * Gets the parity most recently set on this end.
+	 *
+	 * @return the parity, PARITY_NONE or PARITY_EVEN
+	 */
+	public int getParity() {
+		return parity;
+	}
+	/**
+	 * Gets the other end of this pipe.
+	 *
+	 * @return the peer end
+	 */
+	public PipeTransport getPeer() {
+		return peer;
+	}
+	public void open() throws IOException {
+		if (closed)
+			throw new IOException("Pipe is closed");
+	}
+	public void purge() {
+		in.clear();
+	}
+	public int read(final byte[] data, final int offset, final int length, final long timeout)
+			throws IOException {
+		return in.take(data, offset, length, timeout);
+	}
+	public void setDTR(final boolean enabled) {
+	}
+	public void setParams(final int baud, final int parity) {
+		this.baud = baud;
+		this.parity = parity;
+	}
+	public void setRTS(final boolean enabled) {
+	}
+	public String toString() {
+		return String.format("%s[name=%s]", getClass().getSimpleName(), name);
+	}
+	public void write(final byte[] data, final int offset, final int length)
+			throws IOException {
+		out.put(data, offset, length);
+	}
+
+	/**
+	 * A byte queue shared between two pipe ends, with blocking reads.
+	 */
+	private static class Buffer {
+		private boolean closed;
+		private final ByteQueue queue;
+
+		protected Buffer() {
+			closed = false;
+			queue = new ByteQueue(1024);
+		}
+		protected synchronized void clear() {
+			queue.clear();
+		}
+		protected synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+		protected synchronized void put(final byte[] src, final int offset, final int length)
+				throws IOException {
+			if (closed)
+				throw new IOException("Pipe is closed");
+			queue.put(src, offset, length);
+			notifyAll();
+		}
+		protected synchronized int take(final byte[] dst, final int offset, final int length,
+				final long timeout) throws IOException {
+			final long future = System.currentTimeMillis() + timeout;
+			long now = System.currentTimeMillis();
+			while (queue.size() < length && !closed && (timeout <= 0L || now < future)) {
+				try {
+					wait((timeout > 0L) ? future - now : 0L);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted when reading");
+				}
+				now = System.currentTimeMillis();
+			}
+			if (queue.size() < length) {
+				if (closed)
+					throw new EOFException("Pipe is closed");
+				return 0;
+			}
+			queue.take(dst, offset, length);
+			return length;
+		}
+	}
+}
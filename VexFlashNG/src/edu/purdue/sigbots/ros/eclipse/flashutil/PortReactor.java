@@ -0,0 +1,549 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.io.*;
+import java.util.*;
+import com.sun.jna.*;
+
+/**
+ * Services any number of Linux serial ports from one thread. One epoll instance watches every
+ * registered port; received bytes are handed to the port's listener on the reactor thread, and
+ * writes are queued per port and sent as the kernel takes them, with an optional callback once
+ * each write has been handed over completely. An eventfd wakes the thread to shut it down.
+ *
+ * A port registered here must not be read or written through its transport directly.
+ * SerialPortIO puts every USB serial port which TermiosTransport supports on the shared
+ * reactor. Like LibC, the reactor is only available on x86 and x86_64.
+ *
+ * @see ReactorTransport
+ */
+public class PortReactor implements Runnable {
+	/**
+	 * Size of the native transfer buffers.
+	 */
+	private static final int BUFFER_SIZE = 4096;
+	/**
+	 * Maximum number of events taken from the kernel in one wait.
+	 */
+	private static final int MAX_EVENTS = 16;
+
+	/**
+	 * The shared reactor, or null if not started yet.
+	 */
+	private static PortReactor instance = null;
+
+	/**
+	 * Gets the reactor shared by everything in this process, starting it if required.
+	 *
+	 * @return the shared reactor
+	 * @throws IOException if epoll is not available on this system
+	 */
+	public static synchronized PortReactor getDefault() throws IOException {
+		if (instance == null) {
+			instance = new PortReactor();
+			instance.start();
+		}
+		return instance;
+	}
+
+	/**
+	 * Registered ports by file descriptor.
+	 */
+	private final Map<Integer, Channel> channels;
+	/**
+	 * Native epoll_event structure for epoll_ctl().
+	 */
+	private final Memory ctlEvent;
+	/**
+	 * The epoll instance watching every port.
+	 */
+	private final int epfd;
+	/**
+	 * Native epoll_event array for epoll_wait().
+	 */
+	private final Memory events;
+	/**
+	 * Whether the reactor thread should keep going.
+	 */
+	private volatile boolean running;
+	/**
+	 * Native buffer for reads.
+	 */
+	private final Memory rxBuffer;
+	/**
+	 * Array handed to listeners, holding the bytes just read.
+	 */
+	private final byte[] scratch;
+	/**
+	 * The reactor thread, or null if not started.
+	 */
+	private Thread thread;
+	/**
+	 * Native buffer for writes.
+	 */
+	private final Memory txBuffer;
+	/**
+	 * The eventfd which wakes the reactor thread.
+	 */
+	private final int wakeFd;
+
+	/**
+	 * Creates a new reactor. It services no ports until start() is called.
+	 *
+	 * @throws IOException if epoll is not available on this system
+	 */
+	public PortReactor() throws IOException {
+		try {
+			if (!LibC.X86)
+				throw new IOException("The port reactor is not available on " +
+					System.getProperty("os.arch"));
+		} catch (LinkageError e) {
+			throw new IOException("The port reactor is not available on this system", e);
+		}
+		channels = new HashMap<Integer, Channel>(16);
+		ctlEvent = new Memory(LibC.EPOLL_EVENT_SIZE);
+		events = new Memory(LibC.EPOLL_EVENT_SIZE * MAX_EVENTS);
+		running = false;
+		rxBuffer = new Memory(BUFFER_SIZE);
+		scratch = new byte[BUFFER_SIZE];
+		thread = null;
+		txBuffer = new Memory(BUFFER_SIZE);
+		int ep = -1;
+		try {
+			ep = LibC.INSTANCE.epoll_create1(LibC.EPOLL_CLOEXEC);
+			wakeFd = LibC.INSTANCE.eventfd(0, LibC.EFD_CLOEXEC | LibC.EFD_NONBLOCK);
+		} catch (LastErrorException e) {
+			if (ep >= 0)
+				LibC.INSTANCE.close(ep);
+			throw new IOException("Failed to create port reactor", e);
+		} catch (UnsatisfiedLinkError e) {
+			throw new IOException("The port reactor is not available on this system", e);
+		}
+		epfd = ep;
+		control(LibC.EPOLL_CTL_ADD, wakeFd, LibC.POLLIN);
+	}
+	/**
+	 * Adds, changes or removes a descriptor in the epoll instance.
+	 *
+	 * @param op the EPOLL_CTL_xxx operation
+	 * @param fd the descriptor
+	 * @param watch the EPOLLxxx (same as POLLxxx) events to watch for
+	 * @throws IOException if the kernel refuses the change
+	 */
+	private void control(final int op, final int fd, final int watch) throws IOException {
+		synchronized (ctlEvent) {
+			ctlEvent.setInt(0L, watch);
+			// The descriptor goes in the data field, so that events can be traced back
+			ctlEvent.setLong(LibC.EPOLL_EVENT_DATA, fd);
+			try {
+				LibC.INSTANCE.epoll_ctl(epfd, op, fd, ctlEvent);
+			} catch (LastErrorException e) {
+				throw new IOException("Failed to watch descriptor " + fd, e);
+			}
+		}
+	}
+	/**
+	 * Gets the number of ports being serviced.
+	 *
+	 * @return the number of open channels
+	 */
+	public int getChannelCount() {
+		synchronized (channels) {
+			return channels.size();
+		}
+	}
+	/**
+	 * Reads everything available on a port and hands it to the port's listener.
+	 *
+	 * @param channel the port which is ready for reading
+	 * @return the number of bytes read
+	 * @throws IOException if an I/O error occurs
+	 */
+	private int receive(final Channel channel) throws IOException {
+		final int fd = channel.fd;
+		int count, total = 0;
+		do {
+			try {
+				count = LibC.INSTANCE.read(fd, rxBuffer, new NativeLong(BUFFER_SIZE)).
+					intValue();
+			} catch (LastErrorException e) {
+				if (e.getErrorCode() == LibC.EAGAIN || e.getErrorCode() == LibC.EINTR)
+					break;
+				throw new IOException("Error when reading from " + channel.getName(), e);
+			}
+			if (count > 0) {
+				rxBuffer.read(0L, scratch, 0, count);
+				channel.listener.received(channel, scratch, 0, count);
+				total += count;
+			}
+		} while (count == BUFFER_SIZE);
+		return total;
+	}
+	/**
+	 * Starts servicing a port. The transport must already be open, and stays open when the
+	 * channel is closed.
+	 *
+	 * @param transport the port to service
+	 * @param listener the receiver of data and errors, called on the reactor thread
+	 * @return the channel for writing to the port
+	 * @throws IOException if the port is not open or cannot be watched
+	 */
+	public Channel register(final FdTransport transport, final Listener listener)
+			throws IOException {
+		if (listener == null)
+			throw new NullPointerException("listener");
+		final int fd = transport.getFd();
+		if (fd < 0)
+			throw new IOException(transport.getName() + " is not open");
+		final Channel channel = new Channel(this, transport, listener);
+		synchronized (channels) {
+			if (!running)
+				throw new IOException("Port reactor is not running");
+			if (channels.containsKey(fd))
+				throw new IOException(transport.getName() + " is already registered");
+			channels.put(fd, channel);
+		}
+		// epoll_ctl() may be called while the reactor thread waits, no wake up needed
+		try {
+			control(LibC.EPOLL_CTL_ADD, fd, LibC.POLLIN);
+		} catch (IOException e) {
+			synchronized (channels) {
+				channels.remove(fd);
+			}
+			throw e;
+		}
+		return channel;
+	}
+	public void run() {
+		while (running) {
+			final int ready;
+			try {
+				ready = LibC.INSTANCE.epoll_wait(epfd, events, MAX_EVENTS, -1);
+			} catch (LastErrorException e) {
+				if (e.getErrorCode() == LibC.EINTR)
+					continue;
+				break;
+			}
+			for (int i = 0; i < ready; i++) {
+				final long base = (long)i * LibC.EPOLL_EVENT_SIZE;
+				final int flags = events.getInt(base), fd = (int)events.getLong(base +
+					LibC.EPOLL_EVENT_DATA);
+				if (fd == wakeFd)
+					// Only shutdown() wakes the thread, the loop condition handles it
+					continue;
+				final Channel channel;
+				synchronized (channels) {
+					channel = channels.get(fd);
+				}
+				if (channel != null)
+					try {
+						int count = 0;
+						if ((flags & LibC.POLLIN) != 0)
+							count = receive(channel);
+						if ((flags & LibC.POLLOUT) != 0)
+							channel.flush();
+						// Events are level triggered, so a hang up must close the channel
+						// once the last data is read, or it would be reported forever
+						if (count == 0 && (flags & (LibC.POLLERR | LibC.POLLHUP)) != 0)
+							throw new EOFException(channel.getName() + " was hung up");
+					} catch (IOException e) {
+						channel.fail(e);
+					}
+			}
+		}
+		// Let everyone still registered know that nobody is servicing them any more
+		final List<Channel> left;
+		synchronized (channels) {
+			running = false;
+			left = new ArrayList<Channel>(channels.values());
+		}
+		for (Channel channel : left)
+			channel.fail(new IOException("Port reactor shut down"));
+		LibC.INSTANCE.close(wakeFd);
+		LibC.INSTANCE.close(epfd);
+	}
+	/**
+	 * Stops the reactor thread. Ports still registered are reported as closed to their
+	 * listeners.
+	 */
+	public void shutdown() {
+		synchronized (PortReactor.class) {
+			if (this == instance)
+				throw new IllegalStateException("The shared reactor cannot be shut down");
+		}
+		running = false;
+		final Memory one = new Memory(8L);
+		one.setLong(0L, 1L);
+		try {
+			LibC.INSTANCE.write(wakeFd, one, new NativeLong(8L));
+		} catch (LastErrorException ignore) {
+			// Counter already full, the thread is waking anyway
+		}
+	}
+	/**
+	 * Starts the reactor thread. It is a daemon thread, so it never keeps the program alive.
+	 */
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		running = true;
+		thread = new Thread(this, "Port reactor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	public String toString() {
+		return String.format("%s[channels=%d,running=%b]", getClass().getSimpleName(),
+			getChannelCount(), running);
+	}
+
+	/**
+	 * One port serviced by a reactor, with its queue of pending writes.
+	 */
+	public static class Channel {
+		/**
+		 * Whether the channel has been closed.
+		 */
+		private boolean closed;
+		/**
+		 * The file descriptor of the port.
+		 */
+		private final int fd;
+		/**
+		 * The receiver of data and errors.
+		 */
+		private final Listener listener;
+		/**
+		 * Writes not yet handed to the kernel completely, oldest first.
+		 */
+		private final LinkedList<Write> pending;
+		/**
+		 * Total bytes waiting in the pending writes.
+		 */
+		private int queued;
+		/**
+		 * The reactor servicing this port.
+		 */
+		private final PortReactor reactor;
+		/**
+		 * The port itself.
+		 */
+		private final FdTransport transport;
+		/**
+		 * Whether the reactor is watching for room to write.
+		 */
+		private boolean writing;
+
+		private Channel(final PortReactor reactor, final FdTransport transport,
+				final Listener listener) {
+			closed = false;
+			fd = transport.getFd();
+			this.listener = listener;
+			pending = new LinkedList<Write>();
+			queued = 0;
+			this.reactor = reactor;
+			this.transport = transport;
+			writing = false;
+		}
+		/**
+		 * Stops servicing the port. Pending writes are dropped without their callbacks. The
+		 * transport itself is left open.
+		 */
+		public void close() {
+			synchronized (reactor.channels) {
+				if (reactor.channels.get(fd) == this)
+					reactor.channels.remove(fd);
+			}
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				pending.clear();
+				queued = 0;
+			}
+			try {
+				reactor.control(LibC.EPOLL_CTL_DEL, fd, 0);
+			} catch (IOException ignore) {
+				// Already gone if the descriptor was closed
+			}
+		}
+		/**
+		 * Closes the channel after an error and tells the listener.
+		 *
+		 * @param cause the error
+		 */
+		private void fail(final IOException cause) {
+			final boolean was;
+			synchronized (this) {
+				was = closed;
+			}
+			close();
+			if (!was)
+				listener.closed(this, cause);
+		}
+		/**
+		 * Hands as much pending data to the kernel as it will take. Called on the reactor
+		 * thread when the port has room.
+		 *
+		 * @throws IOException if an I/O error occurs
+		 */
+		private void flush() throws IOException {
+			final Memory buffer = reactor.txBuffer;
+			while (true) {
+				final Write write;
+				synchronized (this) {
+					write = pending.peek();
+					if (write == null) {
+						// All sent, stop watching for room
+						if (writing && !closed) {
+							writing = false;
+							reactor.control(LibC.EPOLL_CTL_MOD, fd, LibC.POLLIN);
+						}
+						return;
+					}
+				}
+				final int chunk = Math.min(BUFFER_SIZE, write.data.length - write.done);
+				buffer.write(0L, write.data, write.done, chunk);
+				final int sent;
+				try {
+					sent = LibC.INSTANCE.write(fd, buffer, new NativeLong(chunk)).intValue();
+				} catch (LastErrorException e) {
+					if (e.getErrorCode() == LibC.EAGAIN || e.getErrorCode() == LibC.EINTR)
+						return;
+					throw new IOException("Error when writing to " + getName(), e);
+				}
+				write.done += sent;
+				synchronized (this) {
+					queued -= sent;
+					if (write.done >= write.data.length)
+						pending.poll();
+				}
+				if (write.done >= write.data.length) {
+					if (write.callback != null)
+						write.callback.completed(this);
+				} else if (sent < chunk)
+					// Output queue is full, wait for the next event
+					return;
+			}
+		}
+		/**
+		 * Gets the name of the port.
+		 *
+		 * @return the port's name
+		 */
+		public String getName() {
+			return transport.getName();
+		}
+		/**
+		 * Gets the number of bytes queued but not yet handed to the kernel.
+		 *
+		 * @return the queued byte count
+		 */
+		public synchronized int getQueued() {
+			return queued;
+		}
+		/**
+		 * Gets the port serviced by this channel, for changing its line settings.
+		 *
+		 * @return the transport
+		 */
+		public FdTransport getTransport() {
+			return transport;
+		}
+		/**
+		 * Checks whether the channel has been closed.
+		 *
+		 * @return whether the port is no longer serviced
+		 */
+		public synchronized boolean isClosed() {
+			return closed;
+		}
+		public String toString() {
+			return String.format("%s[name=%s,queued=%d]", getClass().getSimpleName(),
+				getName(), getQueued());
+		}
+		/**
+		 * Queues bytes for writing. This returns at once; the data is copied.
+		 *
+		 * @param data the buffer holding the data
+		 * @param offset the offset in the buffer of the first byte
+		 * @param length the number of bytes to write
+		 * @param callback called on the reactor thread once the last of these bytes has been
+		 * handed to the kernel, or null
+		 * @throws IOException if the channel is closed
+		 */
+		public void write(final byte[] data, final int offset, final int length,
+				final Completion callback) throws IOException {
+			final byte[] copy = new byte[length];
+			System.arraycopy(data, offset, copy, 0, length);
+			synchronized (this) {
+				if (closed)
+					throw new IOException(getName() + " is closed");
+				pending.add(new Write(copy, callback));
+				queued += length;
+				if (!writing) {
+					writing = true;
+					reactor.control(LibC.EPOLL_CTL_MOD, fd, LibC.POLLIN | LibC.POLLOUT);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Told when a queued write has been handed to the kernel.
+	 */
+	public static interface Completion {
+		/**
+		 * Called on the reactor thread once a write has been sent completely.
+		 *
+		 * @param channel the port written to
+		 */
+		public void completed(Channel channel);
+	}
+
+	/**
+	 * Receives data and errors from a port serviced by a reactor. Methods are called on the
+	 * reactor thread, so they must not block.
+	 */
+	public static interface Listener {
+		/**
+		 * Called when the port has been closed because of an error, or because the reactor
+		 * shut down.
+		 *
+		 * @param channel the port which closed
+		 * @param cause the reason
+		 */
+		public void closed(Channel channel, IOException cause);
+		/**
+		 * Called when bytes arrive. The buffer is reused once this returns.
+		 *
+		 * @param channel the port which received the data
+		 * @param data the buffer holding the data
+		 * @param offset the offset in the buffer of the first byte
+		 * @param length the number of bytes received
+		 */
+		public void received(Channel channel, byte[] data, int offset, int length);
+	}
+
+	/**
+	 * One queued write.
+	 */
+	private static class Write {
+		/**
+		 * Called once the write is complete, or null.
+		 */
+		protected final Completion callback;
+		/**
+		 * The bytes to write.
+		 */
+		protected final byte[] data;
+		/**
+		 * Number of bytes already handed to the kernel.
+		 */
+		protected int done;
+
+		protected Write(final byte[] data, final Completion callback) {
+			this.callback = callback;
+			this.data = data;
+			done = 0;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.io.*;
+import com.sun.jna.*;
+
+/**
+ * One end of a Linux pseudo-terminal pair. The slave end behaves like a real serial port
+ * (termios, line discipline) while the other end is driven by a program in the same process,
+ * so the flash engine can be tested against a device model over a real tty.
+ */
+public class PtyTransport extends FdTransport {
+	/**
+	 * Opens a new pseudo-terminal pair.
+	 *
+	 * @return the master end, then the slave end
+	 * @throws IOException if the pair cannot be created
+	 */
+	public static PtyTransport[] openPair() throws IOException {
+		final PtyTransport master = new PtyTransport();
+		master.open();
+		final PtyTransport slave = new PtyTransport(master.getSlaveName());
+		try {
+			slave.open();
+		} catch (IOException e) {
+			master.close();
+			throw e;
+		}
+		return new PtyTransport[] { master, slave };
+	}
+
+	/**
+	 * Baud rate most recently set on this end.
+	 */
+	private int baud;
+	/**
+	 * Parity most recently set on this end.
+	 */
+	private int parity;
+	/**
+	 * Path of the slave device, or null for a master end not yet opened.
+	 */
+	private String slaveName;
+	/**
+	 * Whether this is the master end.
+	 */
+	private final boolean master;
+
+	/**
+	 * Creates the master end of a new pseudo-terminal. It is allocated when opened.
+	 */
+	public PtyTransport() {
+		baud = VexFlash.BAUD;
+		master = true;
+		parity = PARITY_NONE;
+		slaveName = null;
+	}
+	/**
+	 * Creates the slave end of an existing pseudo-terminal.
+	 *
+	 * @param slaveName the path of the slave device, such as /dev/pts/3
+	 */
+	public PtyTransport(final String slaveName) {
+		if (slaveName == null)
+			throw new NullPointerException("slaveName");
+		baud = VexFlash.BAUD;
+		master = false;
+		parity = PARITY_NONE;
+		this.slaveName = slaveName;
+	}
+	/**
+	 * Gets the baud rate most recently set on this end.
+	 *
+	 * @return the baud rate
+	 */
+	public int getBaud() {
+		return baud;
+	}
+	public String getName() {
+		return master ? "ptmx:" + slaveName : slaveName;
+	}
+	/**
+	 * Gets the parity most recently set on this end. Pseudo-terminals do not carry a parity
+	 * bit, so a device model on the other end can use this to check the host's setting.
+	 *
+	 * @return the parity, PARITY_NONE or PARITY_EVEN
+	 */
+	public int getParity() {
+		return parity;
+	}
+	/**
+	 * Gets the path of the slave device, which any serial backend can open.
+	 *
+	 * @return the slave path, or null if the master has not been opened
+	 */
+	public String getSlaveName() {
+		return slaveName;
+	}
+	/**
+	 * Gets whether this is the master end.
+	 *
+	 * @return true for the master end, false for the slave end
+	 */
+	public boolean isMaster() {
+		return master;
+	}
+	public void open() throws IOException {
+		if (fd >= 0)
+			return;
+		final int flags = LibC.O_RDWR | LibC.O_NOCTTY | LibC.O_NONBLOCK;
+		try {
+			if (master) {
+				fd = LibC.INSTANCE.posix_openpt(flags);
+				LibC.INSTANCE.grantpt(fd);
+				LibC.INSTANCE.unlockpt(fd);
+				slaveName = LibC.INSTANCE.ptsname(fd);
+			} else
+				fd = LibC.INSTANCE.open(slaveName, flags);
+			// Raw mode, or the line discipline will echo and edit the data
+			setParams(VexFlash.BAUD, PARITY_NONE);
+			watch();
+		} catch (LastErrorException e) {
+			close();
+			throw new IOException("Failed to open pseudo-terminal", e);
+		} catch (UnsatisfiedLinkError e) {
+			throw new IOException("Pseudo-terminals are not available on this system", e);
+		}
+	}
+	public void setDTR(final boolean enabled) {
+		// No modem lines on a pseudo-terminal
+	}
+	public void setParams(final int baud, final int parity) throws IOException {
+		// The pty driver rejects PARENB, so parity is only recorded
+		setTermios(baud, false);
+		this.baud = baud;
+		this.parity = parity;
+	}
+	public void setRTS(final boolean enabled) {
+	}
+}
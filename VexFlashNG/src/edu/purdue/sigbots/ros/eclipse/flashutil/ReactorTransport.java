@@ -0,0 +1,204 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.io.*;
+
+/**
+ * Serial transport whose port is serviced by a PortReactor, so that many ports can be used
+ * at once without a thread for each. Received bytes are collected in a ring buffer, and a
+ * waiting reader is only woken once the number of bytes which it asked for has arrived.
+ */
+public class ReactorTransport implements SerialTransport, PortReactor.Listener,
+		PortReactor.Completion {
+	/**
+	 * Initial size of the receive ring buffer.
+	 */
+	private static final int RX_BUFFER = 4096;
+
+	/**
+	 * The reactor's handle on the port, or null when closed.
+	 */
+	private PortReactor.Channel channel;
+	/**
+	 * The error which closed the channel, or null.
+	 */
+	private IOException failure;
+	/**
+	 * The port itself.
+	 */
+	private final FdTransport port;
+	/**
+	 * The reactor servicing the port.
+	 */
+	private final PortReactor reactor;
+	/**
+	 * Bytes received but not yet read.
+	 */
+	private final ByteQueue rx;
+	/**
+	 * Lock protecting rx and wanted, notified when a waiting reader can finish.
+	 */
+	private final Object rxLock;
+	/**
+	 * Lock notified when every queued write has been handed to the kernel, or the port fails.
+	 */
+	private final Object txLock;
+	/**
+	 * Number of bytes the waiting reader needs, or 0 if no reader is waiting.
+	 */
+	private int wanted;
+
+	/**
+	 * Creates a transport for a port on a reactor. The port is opened and registered when
+	 * open() is called.
+	 *
+	 * @param port the port to use
+	 * @param reactor the reactor which will service it
+	 */
+	public ReactorTransport(final FdTransport port, final PortReactor reactor) {
+		channel = null;
+		failure = null;
+		this.port = port;
+		this.reactor = reactor;
+		rx = new ByteQueue(RX_BUFFER);
+		rxLock = new Object();
+		txLock = new Object();
+		wanted = 0;
+	}
+	/**
+	 * Checks that the channel is still serviced.
+	 *
+	 * @return the channel
+	 * @throws IOException if the transport is closed or failed
+	 */
+	private PortReactor.Channel checkOpen() throws IOException {
+		final PortReactor.Channel ch = channel;
+		if (failure != null)
+			throw failure;
+		if (ch == null)
+			throw new IOException(getName() + " is not open");
+		return ch;
+	}
+	public void close() {
+		final PortReactor.Channel ch = channel;
+		if (ch != null) {
+			try {
+				drain(0L);
+			} catch (IOException ignore) { }
+			ch.close();
+			channel = null;
+		}
+		port.close();
+	}
+	public void closed(final PortReactor.Channel ch, final IOException cause) {
+		failure = cause;
+		synchronized (rxLock) {
+			rxLock.notifyAll();
+		}
+		synchronized (txLock) {
+			txLock.notifyAll();
+		}
+	}
+	public void completed(final PortReactor.Channel ch) {
+		if (ch.getQueued() == 0)
+			synchronized (txLock) {
+				txLock.notifyAll();
+			}
+	}
+	public void drain(final long timeout) throws IOException {
+		final PortReactor.Channel ch = checkOpen();
+		final long future = System.currentTimeMillis() + timeout;
+		// First until the reactor has handed everything over, then until the kernel sent it
+		synchronized (txLock) {
+			long now = System.currentTimeMillis();
+			while (ch.getQueued() > 0 && failure == null && (timeout <= 0L || now < future)) {
+				try {
+					txLock.wait((timeout > 0L) ? future - now : 0L);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted when draining");
+				}
+				now = System.currentTimeMillis();
+			}
+		}
+		checkOpen();
+		if (timeout <= 0L)
+			port.drain(0L);
+		else {
+			final long left = future - System.currentTimeMillis();
+			if (left > 0L)
+				port.drain(left);
+		}
+	}
+	public String getName() {
+		return port.getName();
+	}
+	public void open() throws IOException {
+		if (channel != null)
+			return;
+		port.open();
+		failure = null;
+		channel = reactor.register(port, this);
+	}
+	public void purge() throws IOException {
+		synchronized (rxLock) {
+			port.purge();
+			rx.clear();
+		}
+	}
+	public int read(final byte[] data, final int offset, final int length, final long timeout)
+			throws IOException {
+		synchronized (rxLock) {
+			if (rx.size() < length) {
+				// Wait it out until we either get what we want or the timeout expires
+				final long future = System.currentTimeMillis() + timeout;
+				long now = System.currentTimeMillis();
+				wanted = length;
+				try {
+					while (rx.size() < length && failure == null && (timeout <= 0L ||
+							now < future)) {
+						try {
+							rxLock.wait((timeout > 0L) ? future - now : 0L);
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException("Interrupted when reading");
+						}
+						now = System.currentTimeMillis();
+					}
+				} finally {
+					wanted = 0;
+				}
+				if (rx.size() < length) {
+					checkOpen();
+					// Leave the partial data for the next read
+					return 0;
+				}
+			}
+			rx.take(data, offset, length);
+			return length;
+		}
+	}
+	public void received(final PortReactor.Channel ch, final byte[] data, final int offset,
+			final int length) {
+		synchronized (rxLock) {
+			rx.put(data, offset, length);
+			// Only wake the reader if it can now finish
+			if (wanted > 0 && rx.size() >= wanted)
+				rxLock.notifyAll();
+		}
+	}
+	public void setDTR(final boolean enabled) throws IOException {
+		port.setDTR(enabled);
+	}
+	public void setParams(final int baud, final int parity) throws IOException {
+		port.setParams(baud, parity);
+	}
+	public void setRTS(final boolean enabled) throws IOException {
+		port.setRTS(enabled);
+	}
+	public String toString() {
+		return String.format("%s[port=%s,reactor=%s]", getClass().getSimpleName(), port,
+			reactor);
+	}
+	public void write(final byte[] data, final int offset, final int length)
+			throws IOException {
+		checkOpen().write(data, offset, length, this);
+	}
+}
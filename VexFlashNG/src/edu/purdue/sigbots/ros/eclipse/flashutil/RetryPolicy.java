@@ -0,0 +1,158 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.util.*;
+
+/**
+ * Describes how failed bootloader operations are retried: how many times for each kind of
+ * operation, how long to back off before each retry, and how hard to try to get the link
+ * back in step. Every retry first purges the input; later retries also resynchronize with the
+ * bootloader, and the last ones reconnect completely.
+ *
+ * @see STMState#recover(int, int, SerialException)
+ */
+public class RetryPolicy {
+	/**
+	 * Operation: waiting for an ACK byte.
+	 */
+	public static final int OP_VERIFY = 0;
+	/**
+	 * Operation: writing one chunk of flash memory.
+	 */
+	public static final int OP_WRITE = 1;
+	/**
+	 * Operation: reading one chunk of flash memory.
+	 */
+	public static final int OP_READ = 2;
+	/**
+	 * Operation: erasing one block of flash pages.
+	 */
+	public static final int OP_ERASE = 3;
+	/**
+	 * Number of operation types.
+	 */
+	public static final int OPS = 4;
+	/**
+	 * Escalation step: discard anything received.
+	 */
+	public static final int STEP_PURGE = 0;
+	/**
+	 * Escalation step: purge, then bring the bootloader command parser back in step.
+	 */
+	public static final int STEP_RESYNC = 1;
+	/**
+	 * Escalation step: reset into the bootloader and identify the device again.
+	 */
+	public static final int STEP_RECONNECT = 2;
+
+	/**
+	 * Policy for the USB tether cable, which rarely loses data: retry at once, and never wait
+	 * long.
+	 */
+	public static final RetryPolicy TETHER = new RetryPolicy(new int[] { 3, 3, 3, 2 }, 10L,
+		200L, 0.1, 2, 3);
+	/**
+	 * Policy for VEXnet wireless links, which drop out for a while: back off from a quarter
+	 * second, with jitter, and try more often.
+	 */
+	public static final RetryPolicy WIRELESS = new RetryPolicy(new int[] { 5, 4, 4, 3 },
+		250L, 2000L, 0.25, 2, 3);
+
+	/**
+	 * Delay before the first retry in milliseconds.
+	 */
+	private final long baseDelay;
+	/**
+	 * Fraction by which each delay is randomly varied, from 0 to 1.
+	 */
+	private final double jitter;
+	/**
+	 * Maximum number of retries of each operation type.
+	 */
+	private final int[] limits;
+	/**
+	 * Largest delay before a retry in milliseconds.
+	 */
+	private final long maxDelay;
+	/**
+	 * Random numbers for jitter.
+	 */
+	private final Random random;
+	/**
+	 * Retry number from which the link is fully reconnected.
+	 */
+	private final int reconnectFrom;
+	/**
+	 * Retry number from which the bootloader is resynchronized.
+	 */
+	private final int resyncFrom;
+
+	/**
+	 * Creates a retry policy.
+	 *
+	 * @param limits the maximum number of retries for each OP_xxx operation type
+	 * @param baseDelay the delay before the first retry in milliseconds; it doubles with each
+	 * further retry
+	 * @param maxDelay the largest delay before a retry in milliseconds
+	 * @param jitter the fraction by which each delay is randomly varied, from 0 to 1
+	 * @param resyncFrom the retry number (starting at 1) from which the bootloader is
+	 * resynchronized
+	 * @param reconnectFrom the retry number (starting at 1) from which the link is fully
+	 * reconnected
+	 */
+	public RetryPolicy(final int[] limits, final long baseDelay, final long maxDelay,
+			final double jitter, final int resyncFrom, final int reconnectFrom) {
+		if (limits.length != OPS)
+			throw new IllegalArgumentException("Need a limit for each operation type");
+		if (baseDelay < 0L || maxDelay < baseDelay || jitter < 0.0 || jitter > 1.0)
+			throw new IllegalArgumentException("Bad delay settings");
+		this.baseDelay = baseDelay;
+		this.jitter = jitter;
+		this.limits = limits.clone();
+		this.maxDelay = maxDelay;
+		random = new Random();
+		this.reconnectFrom = reconnectFrom;
+		this.resyncFrom = resyncFrom;
+	}
+	/**
+	 * Gets the delay before a retry, doubled for each earlier retry and randomly varied.
+	 *
+	 * @param attempt the retry number, starting at 1
+	 * @return the delay in milliseconds
+	 */
+	public long getDelay(final int attempt) {
+		long delay = baseDelay;
+		for (int i = 1; i < attempt && delay < maxDelay; i++)
+			delay *= 2L;
+		delay = Math.min(delay, maxDelay);
+		if (jitter > 0.0)
+			delay += Math.round(delay * jitter * (2.0 * random.nextDouble() - 1.0));
+		return Math.max(0L, delay);
+	}
+	/**
+	 * Gets the maximum number of retries of an operation.
+	 *
+	 * @param op the OP_xxx operation type
+	 * @return the retry limit
+	 */
+	public int getLimit(final int op) {
+		return limits[op];
+	}
+	/**
+	 * Gets the recovery step to take before a retry.
+	 *
+	 * @param attempt the retry number, starting at 1
+	 * @return the STEP_xxx constant
+	 */
+	public int getStep(final int attempt) {
+		if (attempt >= reconnectFrom)
+			return STEP_RECONNECT;
+		if (attempt >= resyncFrom)
+			return STEP_RESYNC;
+		return STEP_PURGE;
+	}
+	public String toString() {
+		return String.format("%s[limits=%s,delay=%d..%d,jitter=%.2f,resync=%d,reconnect=%d]",
+			getClass().getSimpleName(), Arrays.toString(limits), baseDelay, maxDelay, jitter,
+			resyncFrom, reconnectFrom);
+	}
+}
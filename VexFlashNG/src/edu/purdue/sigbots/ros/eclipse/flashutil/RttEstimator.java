@@ -0,0 +1,153 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+/**
+ * Derives read timeouts from the measured response times of the bootloader, the way TCP
+ * computes its retransmission timeout (RFC 6298). A smoothed round trip time and its mean
+ * deviation are kept for each class of reply, and the timeout is the smoothed time plus four
+ * deviations, within fixed bounds. A timeout doubles the value until the next clean sample,
+ * and replies to a retried wait are never sampled, as they cannot be told apart from a late
+ * reply to the first one.
+ *
+ * Replies carrying data also take the time needed to send their bytes over the line, which
+ * grows with their length. That time is taken out of each sample and added back to each
+ * timeout, so that short and long reads of one class share a single estimate. Likewise, an
+ * erase of several pages is sampled and waited for per page.
+ */
+public class RttEstimator {
+	/**
+	 * Reply class: an ACK byte after a command, address or block.
+	 */
+	public static final int CLASS_ACK = 0;
+	/**
+	 * Reply class: the data bytes returned by a read command.
+	 */
+	public static final int CLASS_READ = 1;
+	/**
+	 * Reply class: the ACK byte which marks completion of a page erase, per page erased.
+	 */
+	public static final int CLASS_ERASE = 2;
+	/**
+	 * Reply class: the ACK byte which marks completion of a mass erase, which takes a time of
+	 * its own and is sampled at most once per connection.
+	 */
+	public static final int CLASS_MASS_ERASE = 3;
+	/**
+	 * Number of reply classes.
+	 */
+	public static final int CLASSES = 4;
+
+	/**
+	 * Timeout before the first sample of each class in milliseconds. Erasing takes far longer
+	 * than anything else, so its classes start from the old fixed erase timeout.
+	 */
+	private static final long[] INITIAL = { VexFlash.VEX_TIMEOUT, VexFlash.VEX_TIMEOUT, 2000L,
+		2000L };
+	/**
+	 * Smallest timeout of each class in milliseconds, leaving room for scheduling jitter on
+	 * the host. A mass erase never waits less than the old fixed erase timeout.
+	 */
+	private static final long[] MIN = { 30L, 30L, 100L, 2000L };
+	/**
+	 * Largest timeout of each class in milliseconds.
+	 */
+	private static final long[] MAX = { 4000L, 4000L, 10000L, 10000L };
+
+	/**
+	 * Whether each class has been sampled yet.
+	 */
+	private final boolean[] sampled;
+	/**
+	 * Smoothed round trip time of each class in nanoseconds.
+	 */
+	private final long[] srtt;
+	/**
+	 * Current timeout of each class in milliseconds.
+	 */
+	private final long[] timeout;
+	/**
+	 * Smoothed mean deviation of the round trip time of each class in nanoseconds.
+	 */
+	private final long[] var;
+
+	/**
+	 * Creates a new estimator with no samples, which uses the initial timeouts.
+	 */
+	public RttEstimator() {
+		sampled = new boolean[CLASSES];
+		srtt = new long[CLASSES];
+		timeout = INITIAL.clone();
+		var = new long[CLASSES];
+	}
+	/**
+	 * Records a timeout, doubling the timeout of its class.
+	 *
+	 * @param cls the CLASS_xxx reply class which timed out
+	 */
+	public void backoff(final int cls) {
+		timeout[cls] = Math.min(MAX[cls], timeout[cls] * 2L);
+	}
+	/**
+	 * Gets the smoothed round trip time of a reply class.
+	 *
+	 * @param cls the CLASS_xxx reply class
+	 * @return the smoothed time in nanoseconds, or 0 if there are no samples yet
+	 */
+	public long getSmoothed(final int cls) {
+		return srtt[cls];
+	}
+	/**
+	 * Gets the timeout to use when waiting for a reply.
+	 *
+	 * @param cls the CLASS_xxx reply class
+	 * @return the timeout in milliseconds
+	 */
+	public long getTimeout(final int cls) {
+		return timeout[cls];
+	}
+	/**
+	 * Gets the timeout to use when waiting for a reply which takes some time to send.
+	 *
+	 * @param cls the CLASS_xxx reply class
+	 * @param wireNanos the time needed to send the reply over the line in nanoseconds
+	 * @return the timeout in milliseconds
+	 */
+	public long getTimeout(final int cls, final long wireNanos) {
+		return timeout[cls] + (wireNanos + 999999L) / 1000000L;
+	}
+	/**
+	 * Records the time taken by a reply which arrived on the first try.
+	 *
+	 * @param cls the CLASS_xxx reply class
+	 * @param nanos the time waited for the reply in nanoseconds
+	 */
+	public void sample(final int cls, final long nanos) {
+		sample(cls, nanos, 0L);
+	}
+	/**
+	 * Records the time taken by a reply which arrived on the first try, leaving out the time
+	 * needed to send it over the line.
+	 *
+	 * @param cls the CLASS_xxx reply class
+	 * @param total the time waited for the reply in nanoseconds
+	 * @param wireNanos the time needed to send the reply over the line in nanoseconds
+	 */
+	public void sample(final int cls, final long total, final long wireNanos) {
+		final long nanos = Math.max(0L, total - wireNanos);
+		if (sampled[cls]) {
+			// Gains of 1/4 for the deviation and 1/8 for the mean
+			var[cls] += (Math.abs(srtt[cls] - nanos) - var[cls]) / 4L;
+			srtt[cls] += (nanos - srtt[cls]) / 8L;
+		} else {
+			srtt[cls] = nanos;
+			var[cls] = nanos / 2L;
+			sampled[cls] = true;
+		}
+		final long rto = (srtt[cls] + 4L * var[cls] + 999999L) / 1000000L;
+		timeout[cls] = Math.max(MIN[cls], Math.min(MAX[cls], rto));
+	}
+	public String toString() {
+		return String.format("%s[ack=%d,read=%d,erase=%d,massErase=%d]",
+			getClass().getSimpleName(), timeout[CLASS_ACK], timeout[CLASS_READ],
+			timeout[CLASS_ERASE], timeout[CLASS_MASS_ERASE]);
+	}
+}
@@ -23,6 +23,16 @@ public class STMDevice {
 		new STMDevice(0x430, "XL-density", 0x20000800, 0x20018000, 0x08100000, 2,
 			2048)
 	};
+	/**
+	 * Address of the 96-bit unique device ID, the same on every STM32F1 device. The
+	 * bootloader reads it with RD like any other memory.
+	 */
+	public static final int UNIQUE_ID = 0x1FFFF7E8;
+	/**
+	 * Length of the unique device ID in bytes.
+	 */
+	public static final int UNIQUE_ID_LENGTH = 12;
+
 
 	/**
 	 * Address of the end of Flash (unsigned!)
@@ -1,15 +1,34 @@
 package edu.purdue.sigbots.ros.eclipse.flashutil;
 
 import java.io.*;
+import java.util.*;
 
 /**
  * Represents the current STM state.
  */
 public class STMState {
 	/**
-	 * How many times to retry on EOF during verification.
+	 * Byte sent to complete any partial frame when resynchronizing. Even and non-zero, so that
+	 * no frame made of it can ever have a valid checksum.
 	 */
-	private static final int RETRIES = 5;
+	private static final byte FILLER = (byte)0xFE;
+	/**
+	 * Bits on the line for each byte: start, 8 data, even parity and stop bits.
+	 */
+	private static final int BYTE_BITS = 11;
+	/**
+	 * Largest frame ever sent: command, address and a full 256-byte write block.
+	 */
+	private static final int MAX_FRAME = 2 + 5 + 1 + 256 + 1;
+
+	/**
+	 * Total number of ACK bytes waited for.
+	 */
+	private long ackCount;
+	/**
+	 * Total time spent waiting for ACK bytes in nanoseconds.
+	 */
+	private long ackNanos;
 
 	/**
 	 * The current bootloader version.
@@ -59,6 +78,10 @@ public class STMState {
 	 * Device specification, including memory sizes and identifier.
 	 */
 	private STMDevice device;
+	/**
+	 * Reused buffer in which each frame is built before it is written.
+	 */
+	private final byte[] frame;
 	/**
 	 * Option byte #1.
 	 */
@@ -67,10 +90,35 @@ public class STMState {
 	 * Option byte #2.
 	 */
 	private byte option2;
+	/**
+	 * Whether a command and its address are written back to back, without waiting for the
+	 * command ACK in between. Turned off for the rest of the session if it ever fails.
+	 */
+	private boolean pipelined;
+	/**
+	 * How failed operations are retried.
+	 */
+	private RetryPolicy policy;
 	/**
 	 * The port to and from the device.
 	 */
 	private SerialPortIO port;
+	/**
+	 * Brings the device back into the bootloader when retries escalate that far, or null.
+	 */
+	private Reconnector reconnector;
+	/**
+	 * Number of retries made of each operation type.
+	 */
+	private final long[] retries;
+	/**
+	 * Response time estimates from which the read timeouts are set.
+	 */
+	private final RttEstimator rtt;
+	/**
+	 * The 96-bit unique ID of the device, or null if not read.
+	 */
+	private byte[] uniqueID;
 	/**
 	 * Device version #.
 	 */
@@ -84,7 +132,14 @@ public class STMState {
 	public STMState(final SerialPortIO port)  {
 		// Initialize
 		device = null;
+		frame = new byte[MAX_FRAME];
+		pipelined = true;
+		policy = RetryPolicy.WIRELESS;
 		this.port = port;
+		reconnector = null;
+		retries = new long[RetryPolicy.OPS];
+		rtt = new RttEstimator();
+		uniqueID = null;
 	}
 	/**
 	 * Sends a command to the STM32 device.
@@ -94,13 +149,42 @@ public class STMState {
 	 */
 	public void command(final int command) throws SerialException {
 		try {
-			port.write(new byte[] { (byte)command, (byte)~command });
-			port.flush();
+			port.write(frame, 0, putCommand(0, command));
 			verify();
 		} catch (IOException e) {
 			throw new SerialException("Error sending command " + command, e);
 		}
 	}
+	/**
+	 * Sends a command followed by an address, and waits for both to be acknowledged. If
+	 * pipelining is enabled, both go out in one write; otherwise the command ACK is awaited
+	 * before the address is sent.
+	 *
+	 * @param command the command code to send
+	 * @param address the address to send
+	 * @throws SerialException if an I/O error occurs
+	 * @throws IOException if the data cannot be written
+	 */
+	private void commandAddress(final int command, final int address)
+			throws SerialException, IOException {
+		final int split = putCommand(0, command), end = putAddress(split, address);
+		if (pipelined)
+			try {
+				port.write(frame, 0, end);
+				verify();
+				verify();
+			} catch (SerialException e) {
+				// The bootloader may have dropped the address, do not try this again
+				pipelined = false;
+				throw e;
+			}
+		else {
+			port.write(frame, 0, split);
+			verify();
+			port.write(frame, split, end - split);
+			verify();
+		}
+	}
 	/**
 	 * Erases all flash.
 	 * 
@@ -108,7 +192,12 @@ public class STMState {
 	 */
 	public void commandER() throws SerialException {
 		command(cmdER);
-		command(0xFF);
+		try {
+			port.write(frame, 0, putCommand(0, 0xFF));
+		} catch (IOException e) {
+			throw new SerialException("Failed to erase memory", e);
+		}
+		verify(RttEstimator.CLASS_MASS_ERASE, 1);
 	}
 	/**
 	 * Erases selected pages of flash.
@@ -120,19 +209,13 @@ public class STMState {
 		final int len = pages.length;
 		command(cmdER);
 		try {
-			final byte[] newpages = new byte[len + 2];
-			// # of sectors in list
-			newpages[0] = (byte)(len - 1);
-			// Pages to erase
-			System.arraycopy(pages, 0, newpages, 1, len);
-			// Write checksum and verify
-			newpages[len + 1] = Utils.checksum(newpages[0], pages, 0, len);
-			port.write(newpages);
-			port.flush();
+			// # of sectors in list, pages to erase, checksum
+			port.write(frame, 0, putBlock(0, pages, len));
 		} catch (IOException e) {
 			throw new SerialException("Failed to erase memory", e);
 		}
-		verify();
+		// The ACK only comes once the pages are erased, one after another
+		verify(RttEstimator.CLASS_ERASE, Math.max(1, len));
 	}
 	/**
 	 * Gets the supported bootloader commands and version. Must be the first command,
@@ -207,9 +290,20 @@ public class STMState {
 	 * @throws SerialException if an I/O error occurs
 	 */
 	public void commandGO(final int address) throws SerialException {
-		command(cmdGO);
 		try {
-			port.write(Utils.memAddress(address));
+			final int split = putCommand(0, cmdGO), end = putAddress(split, address);
+			if (pipelined) {
+				port.write(frame, 0, end);
+				port.flush();
+				// The command ACK comes first, even when the address has already been sent
+				verify();
+			} else {
+				port.write(frame, 0, split);
+				verify();
+				port.write(frame, split, end - split);
+				port.flush();
+			}
+			// No verify of the address, the bootloader jumps to it right away
 		} catch (IOException e) {
 			throw new SerialException("Error when starting execution", e);
 		}
@@ -241,19 +335,29 @@ public class STMState {
 	 * @throws SerialException if an I/O error occurs
 	 */
 	public byte[] commandRD(final int start, final int length) throws SerialException {
-		final int len = length - 1;
-		command(cmdRD);
+		final byte[] data = new byte[length];
+		commandRD(start, data, 0, length);
+		return data;
+	}
+	/**
+	 * Reads bytes from memory straight into the caller's buffer.
+	 *
+	 * @param start the starting address
+	 * @param dst the buffer to fill
+	 * @param offset the offset in the buffer of the first byte
+	 * @param length the number of bytes to read
+	 * @throws SerialException if an I/O error occurs
+	 */
+	public void commandRD(final int start, final byte[] dst, final int offset,
+			final int length) throws SerialException {
 		try {
-			// Write starting address (& checksum)
-			port.write(Utils.memAddress(start));
-			port.flush();
-			verify();
+			// Command and starting address (& checksum)
+			commandAddress(cmdRD, start);
 			// # of bytes and checksum
-			port.write(new byte[] { (byte)len, (byte)~len });
-			port.flush();
+			port.write(frame, 0, putCommand(0, length - 1));
 			verify();
 			// Read data from BL
-			return Utils.readExactly(port, length);
+			receive(RttEstimator.CLASS_READ, dst, offset, length);
 		} catch (IOException e) {
 			throw new SerialException("Error when reading memory", e);
 		}
@@ -298,21 +402,11 @@ public class STMState {
 		final int len = data.length;
 		if (len < 4 || len > 256 || len % 4 != 0)
 			throw new IllegalArgumentException("Must be word-aligned data, 4-256 bytes");
-		command(cmdWM);
 		try {
-			final byte[] newdata = new byte[len + 2];
-			// Write starting address (& checksum)
-			port.write(Utils.memAddress(start));
-			port.flush();
-			verify();
-			// Write length
-			newdata[0] = (byte)(len - 1);
-			// Write data
-			System.arraycopy(data, 0, newdata, 1, len);
-			// Write checksum and verify
-			newdata[len + 1] = Utils.checksum(newdata[0], data, 0, len);
-			port.write(newdata);
-			port.flush();
+			// Command and starting address (& checksum)
+			commandAddress(cmdWM, start);
+			// Length, data and checksum
+			port.write(frame, 0, putBlock(0, data, len));
 			verify();
 		} catch (IOException e) {
 			throw new SerialException("Error when programming memory", e);
@@ -328,19 +422,30 @@ public class STMState {
 		final int len = sectors.length;
 		command(cmdWP);
 		try {
-			final byte[] newsectors = new byte[len + 2];
-			// Length, then sectors to protect
-			newsectors[0] = (byte)(len - 1);
-			System.arraycopy(sectors, 0, newsectors, 1, len);
-			// Write checksum and verify
-			newsectors[len + 1] = Utils.checksum(newsectors[0], sectors, 0, len);
-			port.write(newsectors);
-			port.flush();
+			// Length, then sectors to protect, then checksum
+			port.write(frame, 0, putBlock(0, sectors, len));
 		} catch (IOException e) {
 			throw new SerialException("Error when write-protecting chip", e);
 		}
 		verify();
 	}
+	/**
+	 * Gets the number of ACK bytes waited for so far.
+	 *
+	 * @return the number of verify() calls
+	 */
+	public long getAckCount() {
+		return ackCount;
+	}
+	/**
+	 * Gets the total time spent waiting for ACK bytes. Divided by getAckCount(), this is the
+	 * mean round trip time of the link plus the bootloader's processing time.
+	 *
+	 * @return the total ACK wait time in nanoseconds
+	 */
+	public long getAckNanos() {
+		return ackNanos;
+	}
 	/**
 	 * Gets the bootloader version of this device.
 	 * 
@@ -412,6 +517,51 @@ public class STMState {
 	public byte getOption2() {
 		return option2;
 	}
+	/**
+	 * Gets the retry policy in use.
+	 *
+	 * @return the retry policy
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return policy;
+	}
+	/**
+	 * Gets the number of retries made of one operation type.
+	 *
+	 * @param op the RetryPolicy.OP_xxx operation type
+	 * @return the retry count
+	 */
+	public long getRetries(final int op) {
+		return retries[op];
+	}
+	/**
+	 * Gets the total number of retries made of all operation types.
+	 *
+	 * @return the retry count
+	 */
+	public long getTotalRetries() {
+		long total = 0L;
+		for (long count : retries)
+			total += count;
+		return total;
+	}
+	/**
+	 * Gets the response time estimates from which the read timeouts are set.
+	 *
+	 * @return the round trip time estimator
+	 */
+	public RttEstimator getRttEstimator() {
+		return rtt;
+	}
+	/**
+	 * Gets the unique ID of the device, which unlike its PID tells apart two devices of the
+	 * same type.
+	 *
+	 * @return the ID read by readUniqueID(), or null if it could not be read
+	 */
+	public byte[] getUniqueID() {
+		return uniqueID;
+	}
 	/**
 	 * Gets the device version.
 	 *
@@ -420,6 +570,14 @@ public class STMState {
 	public int getVersion() {
 		return version;
 	}
+	/**
+	 * Checks whether commands and addresses are still sent back to back.
+	 *
+	 * @return whether pipelining is enabled
+	 */
+	public boolean isPipelined() {
+		return pipelined;
+	}
 	/**
 	 * Negotiates with the chip to auto-set the baud rate. Chip must be straight out of reset!
 	 * This won't work in the middle of a programming sequence!
@@ -433,7 +591,6 @@ public class STMState {
 		try {
 			// 0x7F is 01111111 binary, which is the maximum useful # of bit toggles
 			port.write(0x7F);
-			port.flush();
 			// An ACK here means we're good
 			verify();
 			verified = true;
@@ -444,6 +601,167 @@ public class STMState {
 		}
 		return verified;
 	}
+	/**
+	 * Builds an address, big endian with checksum, in the frame buffer.
+	 *
+	 * @param offset the offset in the frame buffer
+	 * @param address the address to encode
+	 * @return the offset after the address
+	 */
+	private int putAddress(final int offset, final int address) {
+		frame[offset] = (byte)((address >> 24) & 0xFF);
+		frame[offset + 1] = (byte)((address >> 16) & 0xFF);
+		frame[offset + 2] = (byte)((address >> 8) & 0xFF);
+		frame[offset + 3] = (byte)(address & 0xFF);
+		frame[offset + 4] = Utils.checksum((byte)0, frame, offset, 4);
+		return offset + 5;
+	}
+	/**
+	 * Builds a length-prefixed block with checksum in the frame buffer.
+	 *
+	 * @param offset the offset in the frame buffer
+	 * @param data the block contents
+	 * @param len the number of bytes of data to use
+	 * @return the offset after the block
+	 */
+	private int putBlock(final int offset, final byte[] data, final int len) {
+		frame[offset] = (byte)(len - 1);
+		System.arraycopy(data, 0, frame, offset + 1, len);
+		frame[offset + len + 1] = Utils.checksum(frame[offset], data, 0, len);
+		return offset + len + 2;
+	}
+	/**
+	 * Builds a command byte and its complement in the frame buffer.
+	 *
+	 * @param offset the offset in the frame buffer
+	 * @param command the command code
+	 * @return the offset after the command
+	 */
+	private int putCommand(final int offset, final int command) {
+		frame[offset] = (byte)command;
+		frame[offset + 1] = (byte)~command;
+		return offset + 2;
+	}
+	/**
+	 * Reads the unique ID of the device. A device which refuses the read, such as one with
+	 * read protection enabled, is left without an ID.
+	 *
+	 * @return the unique ID, or null if it could not be read
+	 */
+	public byte[] readUniqueID() {
+		try {
+			uniqueID = commandRD(STMDevice.UNIQUE_ID, STMDevice.UNIQUE_ID_LENGTH);
+		} catch (SerialException e) {
+			// A NACK leaves the bootloader waiting for the next command
+			Utils.eat(port);
+			uniqueID = null;
+		}
+		return uniqueID;
+	}
+	/**
+	 * Reads a reply of the given class, with the timeout derived from its response times and
+	 * the time needed to send its bytes.
+	 *
+	 * @param cls the RttEstimator.CLASS_xxx reply class
+	 * @param dst the buffer to fill
+	 * @param offset the offset in the buffer of the first byte
+	 * @param length the number of bytes to read
+	 * @throws IOException if the data cannot be read, or a timeout occurs
+	 */
+	private void receive(final int cls, final byte[] dst, final int offset, final int length)
+			throws IOException {
+		final long timeout = port.getTimeout(), start = System.nanoTime();
+		final int baud = port.getBaud();
+		// A 256-byte read spends over 20 ms on the line before any latency
+		final long wire = (baud > 0) ? length * BYTE_BITS * 1000000000L / baud : 0L;
+		port.setTimeout(rtt.getTimeout(cls, wire));
+		try {
+			port.readInto(dst, offset, length);
+			rtt.sample(cls, System.nanoTime() - start, wire);
+		} catch (IOException e) {
+			rtt.backoff(cls);
+			throw e;
+		} finally {
+			port.setTimeout(timeout);
+		}
+	}
+	/**
+	 * Recovers from a failed operation before it is retried, as the retry policy directs:
+	 * waits out the back-off delay, then purges the input, resynchronizes with the bootloader
+	 * or reconnects completely. A failure while recovering is not fatal, as the next retry
+	 * escalates further.
+	 *
+	 * @param op the RetryPolicy.OP_xxx type of the operation which failed
+	 * @param attempt the number of the retry about to be made, starting at 1
+	 * @param cause the failure
+	 * @throws SerialException the cause, if the operation has no retries left
+	 */
+	public void recover(final int op, final int attempt, final SerialException cause)
+			throws SerialException {
+		if (attempt > policy.getLimit(op))
+			throw cause;
+		retries[op]++;
+		Utils.delay(policy.getDelay(attempt));
+		try {
+			switch (policy.getStep(attempt)) {
+			case RetryPolicy.STEP_RECONNECT:
+				if (reconnector != null) {
+					Utils.eat(port);
+					reconnector.reconnect(this);
+				} else
+					// No way to reconnect, do the next best thing
+					resync();
+				break;
+			case RetryPolicy.STEP_RESYNC:
+				resync();
+				break;
+			default:
+				Utils.eat(port);
+				break;
+			}
+		} catch (SerialException ignore) {
+			// The retry will most likely fail too and escalate
+		}
+	}
+	/**
+	 * Brings the bootloader command parser back in step after a lost or garbled frame. The
+	 * bootloader only detects the baud rate (0x7F) straight out of reset, so instead any
+	 * partial frame is completed with filler bytes which it must reject, all replies are
+	 * discarded, and a GET command proves that commands are understood again.
+	 *
+	 * The filler may leave one byte waiting for its complement, depending on where the
+	 * bootloader was. A single filler byte then gets a NACK, while otherwise it starts a new
+	 * command with no reply, so filler bytes are sent one at a time until one is rejected.
+	 *
+	 * @throws SerialException if the bootloader still does not respond properly
+	 */
+	public void resync() throws SerialException {
+		final long timeout = port.getTimeout();
+		Arrays.fill(frame, FILLER);
+		try {
+			port.write(frame, 0, MAX_FRAME);
+			port.flush();
+			// Let the NACKs for the filler arrive before they are discarded
+			Utils.delay(policy.getDelay(1) + 20L);
+			Utils.eat(port);
+			port.setTimeout(rtt.getTimeout(RttEstimator.CLASS_ACK));
+			for (int i = 0; i < 2; i++) {
+				port.write(frame, 0, 1);
+				port.flush();
+				try {
+					if ((Utils.readOne(port) & 0xFF) == 0x1F)
+						break;
+				} catch (IOException e) {
+					// No reply, the byte started a command which the next one completes
+				}
+			}
+		} catch (IOException e) {
+			throw new SerialException("Error when resynchronizing", e);
+		} finally {
+			port.setTimeout(timeout);
+		}
+		commandGET();
+	}
 	/**
 	 * Sets the active STM device without querying. Useful if you only need one thing or if
 	 * the device is always the same one.
@@ -453,6 +771,32 @@ public class STMState {
 	public void setDevice(final STMDevice device) {
 		this.device = device;
 	}
+	/**
+	 * Enables or disables sending commands and addresses back to back.
+	 *
+	 * @param pipelined whether to send the address without waiting for the command ACK
+	 */
+	public void setPipelined(final boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+	/**
+	 * Sets the hook which reconnects to the device when retries escalate that far.
+	 *
+	 * @param reconnector the reconnection hook, or null to resynchronize instead
+	 */
+	public void setReconnector(final Reconnector reconnector) {
+		this.reconnector = reconnector;
+	}
+	/**
+	 * Sets how failed operations are retried.
+	 *
+	 * @param policy the retry policy to use
+	 */
+	public void setRetryPolicy(final RetryPolicy policy) {
+		if (policy == null)
+			throw new NullPointerException("policy");
+		this.policy = policy;
+	}
 	/**
 	 * Verifies correct serial transfer by checking the verification byte.
 	 *
@@ -460,14 +804,41 @@ public class STMState {
 	 * acknowledge transmission with an ACK byte
 	 */
 	public void verify() throws SerialException {
+		verify(RttEstimator.CLASS_ACK, 1);
+	}
+	/**
+	 * Verifies correct serial transfer by checking the verification byte, waiting as long as
+	 * the response times of the given reply class suggest for the work done.
+	 *
+	 * @param cls the RttEstimator.CLASS_xxx reply class of the verification byte
+	 * @param units the number of times the work of one reply is done, such as pages erased
+	 * @throws SerialException if an I/O error occurs, or if the controller does not properly
+	 * acknowledge transmission with an ACK byte
+	 */
+	private void verify(final int cls, final int units) throws SerialException {
+		final long start = System.nanoTime(), timeout = port.getTimeout();
+		final int limit = policy.getLimit(RetryPolicy.OP_VERIFY);
 		int result = -1;
-		// EOF avoidance and retry
-		for (int i = 0; i < RETRIES && result == -1; i++)
-			try {
-				result = Utils.readOne(port);
-			} catch (IOException e) {
-				result = -1;
-			}
+		// EOF avoidance and retry, backing off the timeout each time
+		try {
+			for (int i = 0; i <= limit && result == -1; i++)
+				try {
+					if (i > 0)
+						retries[RetryPolicy.OP_VERIFY]++;
+					port.setTimeout(rtt.getTimeout(cls) * units);
+					result = Utils.readOne(port);
+					// Only a reply to the first wait is a clean sample
+					if (i == 0)
+						rtt.sample(cls, (System.nanoTime() - start) / units);
+				} catch (IOException e) {
+					rtt.backoff(cls);
+					result = -1;
+				}
+		} finally {
+			port.setTimeout(timeout);
+		}
+		ackNanos += System.nanoTime() - start;
+		ackCount++;
 		if (result == -1)
 			throw new SerialException("Connection lost to controller (EOF)");
 		// Bad acknowledge
@@ -475,4 +846,17 @@ public class STMState {
 			throw new SerialException(String.format("Controller non-acknowledge: %2X",
 				(result & 0xFF)));
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Brings the device back into the bootloader, as the last resort of a retry policy.
+	 */
+	public static interface Reconnector {
+		/**
+		 * Reconnects to the device, which must leave it ready for bootloader commands.
+		 *
+		 * @param state the state of the device which lost contact
+		 * @throws SerialException if the device cannot be reached
+		 */
+		public void reconnect(STMState state) throws SerialException;
+	}
+}
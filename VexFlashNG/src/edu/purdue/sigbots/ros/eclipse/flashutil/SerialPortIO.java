@@ -1,237 +1,273 @@
 package edu.purdue.sigbots.ros.eclipse.flashutil;
 
 import java.io.*;
-import jssc.*;
 
 /**
- * Wrapper class that hopes to maintain compatibility across JSSC and RXTX for serial.
- * 
+ * Wrapper class that hopes to maintain compatibility across serial backends. The actual
+ * bytes are moved by a SerialTransport, chosen by port name unless one is given.
+ *
  * @author Stephen
  */
-public class SerialPortIO implements SerialPortEventListener {
-	private final SerialPort port;
-	private final Object rxLock;
+public class SerialPortIO {
+	/**
+	 * Longest time that flush() waits for the output to drain, in milliseconds.
+	 */
+	private static final long DRAIN_TIMEOUT = 1000L;
+
+	/**
+	 * Chooses the transport for a port name. USB serial ports which termios can drive are
+	 * all serviced by the shared PortReactor, so that any number of them open at once needs
+	 * only one thread; all others use jssc.
+	 *
+	 * @param name the serial port name
+	 * @return the transport, not yet opened
+	 */
+	private static SerialTransport createTransport(final String name) {
+		if (!TermiosTransport.isSupported(name))
+			return new JsscTransport(name);
+		final TermiosTransport port = new TermiosTransport(name);
+		try {
+			return new ReactorTransport(port, PortReactor.getDefault());
+		} catch (IOException e) {
+			// No reactor, the reading thread waits on the port itself
+			return port;
+		}
+	}
+
+	/**
+	 * The baud rate last set, or 0 if not yet set.
+	 */
+	private int baud;
+	/**
+	 * Number of flush() calls.
+	 */
+	private long flushCount;
+	/**
+	 * Total time spent in flush() in nanoseconds.
+	 */
+	private long flushNanos;
+	/**
+	 * Buffer for single-byte reads, so that waiting for an ACK allocates nothing.
+	 */
+	private final byte[] one;
 	private long timeout;
-	private final Object txLock;
+	private final SerialTransport transport;
 
 	/**
-	 * Opens a new serial port with the given name.
-	 * 
+	 * Opens a new serial port with the given name. USB serial ports on x86 and x86_64 Linux
+	 * are driven directly through termios and serviced by the shared PortReactor; all others
+	 * use jssc.
+	 *
 	 * @param name the serial port name
 	 * @throws IOException if an I/O error occurs
 	 */
 	public SerialPortIO(final String name) throws IOException {
-		rxLock = new Object();
-		port = new SerialPort(name);
+		this(createTransport(name));
+	}
+	/**
+	 * Opens a serial port on the given transport.
+	 *
+	 * @param transport the transport which will carry the data
+	 * @throws IOException if an I/O error occurs
+	 */
+	public SerialPortIO(final SerialTransport transport) throws IOException {
+		baud = 0;
+		flushCount = 0L;
+		flushNanos = 0L;
+		one = new byte[1];
 		timeout = 0L;
-		txLock = new Object();
-		try {
-			// Open port and set default parameters
-			port.openPort();
-			port.setDTR(false);
-			port.setRTS(false);
-			port.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
-			port.setEventsMask(SerialPort.MASK_RXCHAR | SerialPort.MASK_RXFLAG |
-				SerialPort.MASK_TXEMPTY);
-			port.addEventListener(this);
-		} catch (SerialPortException e) {
-			if (e.getExceptionType().equals(SerialPortException.TYPE_PORT_ALREADY_OPENED))
-				throw new IOException("Port is in use");
-			else
-				throw new IOException("Failed to open port");
-		}
+		this.transport = transport;
+		transport.open();
 	}
 	/**
 	 * Closes the serial port.
 	 */
 	public void close() {
-		try {
-			flush();
-			// Clean it up
-			port.closePort();
-		} catch (SerialPortException ignore) { }
+		transport.close();
 	}
 	/**
-	 * Flushes the serial port's output buffers.
+	 * Flushes the serial port's output buffers, waiting at most DRAIN_TIMEOUT for them to
+	 * empty.
 	 */
 	public void flush() {
+		final long start = System.nanoTime();
 		try {
-			while (port.getOutputBufferBytesCount() > 0)
-				synchronized (txLock) {
-					txLock.wait(30);
-				}
-		} catch (Exception ignore) { }
+			transport.drain(DRAIN_TIMEOUT);
+		} catch (IOException ignore) { }
+		flushNanos += System.nanoTime() - start;
+		flushCount++;
+	}
+	/**
+	 * Gets the baud rate.
+	 *
+	 * @return the baud rate last set with setParams(), or 0 if it has not been set
+	 */
+	public int getBaud() {
+		return baud;
+	}
+	/**
+	 * Gets the number of times that the output has been flushed.
+	 *
+	 * @return the number of flush() calls
+	 */
+	public long getFlushCount() {
+		return flushCount;
+	}
+	/**
+	 * Gets the total time spent flushing the output. Divided by getFlushCount(), this is the
+	 * mean flush latency.
+	 *
+	 * @return the total flush time in nanoseconds
+	 */
+	public long getFlushNanos() {
+		return flushNanos;
 	}
 	/**
 	 * Gets the name of the port.
-	 * 
+	 *
 	 * @return the port's name
 	 */
 	public String getName() {
-		return port.getPortName();
+		return transport.getName();
 	}
 	/**
 	 * Gets the current timeout.
-	 * 
+	 *
 	 * @return the port timeout, or 0 if none is set
 	 */
 	public long getTimeout() {
 		return timeout;
 	}
+	/**
+	 * Gets the transport underneath this port.
+	 *
+	 * @return the transport carrying the data
+	 */
+	public SerialTransport getTransport() {
+		return transport;
+	}
 	/**
 	 * Purges all bytes from the input buffer.
 	 */
 	public void purge() {
 		try {
-			port.purgePort(SerialPort.PURGE_RXCLEAR);
-		} catch (SerialPortException ignore) { }
+			transport.purge();
+		} catch (IOException ignore) { }
 	}
 	/**
 	 * Reads one byte from the serial port.
-	 * 
+	 *
 	 * @return the byte read
 	 * @throws IOException if the data cannot be read, or a timeout occurs
 	 */
 	public byte read() throws IOException {
-		return read(1)[0];
+		readInto(one, 0, 1);
+		return one[0];
 	}
 	/**
 	 * Reads data from the serial port.
-	 * 
+	 *
 	 * @param length the number of bytes to read
 	 * @return the data read
 	 * @throws IOException if the data cannot be read, or a timeout occurs
 	 */
 	public byte[] read(final int length) throws IOException {
-		byte[] val;
-		try {
-			synchronized (rxLock) {
-				int count = port.getInputBufferBytesCount();
-				// If ready, read it in
-				if (count >= length)
-					val = port.readBytes(length);
-				else {
-					// Wait it out until we either get what we want or error occurs
-					final long future = System.currentTimeMillis() + timeout;
-					long now = System.currentTimeMillis();
-					do {
-						try {
-							rxLock.wait(future - now);
-						} catch (InterruptedException ignore) { }
-						// Got data, check to see if it is useful
-						count = port.getInputBufferBytesCount();
-						now = System.currentTimeMillis();
-					} while (count < length && now < future);
-					if (count >= length)
-						// Got what we wanted
-						val = port.readBytes(length);
-					else
-						throw new IOException("Timeout when reading " + length + " bytes");
-				}
-			}
-		} catch (SerialPortException e) {
-			throw new IOException("Error when reading " + length + " bytes");
-		}
+		final byte[] val = new byte[length];
+		readInto(val, 0, length);
 		return val;
 	}
-	public void serialEvent(final SerialPortEvent e) {
-		if (e.isRXCHAR() || e.isRXFLAG())
-			synchronized (rxLock) {
-				// Notify everyone that there's data
-				rxLock.notifyAll();
-			}
-		else if (e.isTXEMPTY())
-			synchronized (txLock) {
-				// Notify everyone that TX is done
-				txLock.notifyAll();
-			}
+	/**
+	 * Reads data from the serial port straight into the caller's buffer.
+	 *
+	 * @param dst the buffer to fill
+	 * @param offset the offset in the buffer of the first byte
+	 * @param length the number of bytes to read
+	 * @throws IOException if the data cannot be read, or a timeout occurs
+	 */
+	public void readInto(final byte[] dst, final int offset, final int length)
+			throws IOException {
+		if (transport.read(dst, offset, length, timeout) < length)
+			throw new IOException("Timeout when reading " + length + " bytes");
 	}
 	/**
 	 * Sets the DTR control bit.
-	 * 
+	 *
 	 * @param enabled whether DTR should be asserted or negated
 	 * @throws IOException if an I/O error occurs
 	 */
 	public void setDTR(final boolean enabled) throws IOException {
-		try {
-			port.setDTR(enabled);
-		} catch (SerialPortException e) {
-			throw new IOException("Failed to set DTR = " + enabled);
-		}
+		transport.setDTR(enabled);
 	}
 	/**
 	 * Sets the RTS control bit.
-	 * 
+	 *
 	 * @param enabled whether RTS should be asserted or negated
 	 * @throws IOException if an I/O error occurs
 	 */
 	public void setRTS(final boolean enabled) throws IOException {
-		try {
-			port.setRTS(enabled);
-		} catch (SerialPortException e) {
-			throw new IOException("Failed to set RTS = " + enabled);
-		}
+		transport.setRTS(enabled);
 	}
 	/**
 	 * Sets the port parameters.
-	 * 
+	 *
 	 * @param baud the baud rate to set
-	 * @param parity the parity mode to use
+	 * @param parity the parity mode to use (SerialTransport.PARITY_xxx)
 	 * @throws IOException if an I/O error occurs
 	 */
 	public void setParams(final int baud, final int parity) throws IOException {
-		try {
-			port.setParams(baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, parity,
-				false, false);
-		} catch (SerialPortException e) {
-			throw new IOException("Failed to set port parameters");
-		}
+		transport.setParams(baud, parity);
+		this.baud = baud;
 	}
 	/**
 	 * Changes the port timeout.
-	 * 
+	 *
 	 * @param timeout the timeout in milliseconds for reading bytes, or 0 to disable it
 	 */
 	public void setTimeout(final long timeout) {
 		this.timeout = timeout;
 	}
+	public String toString() {
+		return String.format("%s[transport=%s,timeout=%d]", getClass().getSimpleName(),
+			transport, timeout);
+	}
 	/**
 	 * Writes data to the serial port.
-	 * 
+	 *
 	 * @param data the byte to write; the 24 high order bits are ignored
 	 * @throws IOException if an I/O error occurs
 	 */
 	public void write(final int data) throws IOException {
-		try {
-			port.writeInt(data);
-		} catch (SerialPortException e) {
-			throw new IOException("Error when writing byte");
-		}
+		transport.write(new byte[] { (byte)data }, 0, 1);
 	}
 	/**
 	 * Writes data to the serial port.
-	 * 
+	 *
 	 * @param data the byte array to write
 	 * @throws IOException if an I/O error occurs
 	 */
 	public void write(final byte[] data) throws IOException {
-		try {
-			port.writeBytes(data);
-		} catch (SerialPortException e) {
-			throw new IOException("Error when writing " + data.length + " bytes");
-		}
+		transport.write(data, 0, data.length);
+	}
+	/**
+	 * Writes part of a byte array to the serial port.
+	 *
+	 * @param data the buffer holding the data
+	 * @param offset the offset in the buffer of the first byte
+	 * @param length the number of bytes to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write(final byte[] data, final int offset, final int length)
+			throws IOException {
+		transport.write(data, offset, length);
 	}
 	/**
 	 * Writes data to the serial port.
-	 * 
+	 *
 	 * @param data the string to write
 	 * @throws IOException if an I/O error occurs
 	 */
 	public void write(final String str) throws IOException {
-		try {
-			port.writeString(str);
-		} catch (SerialPortException e) {
-			throw new IOException("Error when writing " + str.length() + " characters");
-		}
+		final byte[] data = str.getBytes();
+		transport.write(data, 0, data.length);
 	}
-}
\ No newline at end of file
+}
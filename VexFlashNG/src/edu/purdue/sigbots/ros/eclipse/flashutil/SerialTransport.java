@@ -0,0 +1,95 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.io.*;
+
+/**
+ * A byte transport underneath SerialPortIO. Implementations may talk to a physical serial
+ * port, a pseudo-terminal, or something purely in memory such as a simulated Cortex.
+ *
+ * @see SerialPortIO
+ */
+public interface SerialTransport {
+	/**
+	 * No parity bit (same value as jssc SerialPort.PARITY_NONE).
+	 */
+	public static final int PARITY_NONE = 0;
+	/**
+	 * Even parity (same value as jssc SerialPort.PARITY_EVEN).
+	 */
+	public static final int PARITY_EVEN = 2;
+
+	/**
+	 * Closes the transport. Closing an already closed transport has no effect.
+	 */
+	public void close();
+	/**
+	 * Waits until all written data has left the transport.
+	 *
+	 * @param timeout the maximum time to wait in milliseconds, or 0 to wait indefinitely
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void drain(long timeout) throws IOException;
+	/**
+	 * Gets the name of the transport, such as the serial port name.
+	 *
+	 * @return the transport name
+	 */
+	public String getName();
+	/**
+	 * Opens the transport if it is not already open.
+	 *
+	 * @throws IOException if the transport cannot be opened
+	 */
+	public void open() throws IOException;
+	/**
+	 * Discards all bytes which have been received but not yet read.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void purge() throws IOException;
+	/**
+	 * Reads bytes into the caller's buffer, waiting until the requested number of bytes is
+	 * available or the timeout expires.
+	 *
+	 * @param data the buffer to fill
+	 * @param offset the offset in the buffer of the first byte
+	 * @param length the number of bytes wanted
+	 * @param timeout the maximum time to wait in milliseconds, or 0 to wait indefinitely
+	 * @return the number of bytes read, which is less than length only if the timeout
+	 * expired; bytes not returned remain queued
+	 * @throws IOException if an I/O error occurs
+	 */
+	public int read(byte[] data, int offset, int length, long timeout) throws IOException;
+	/**
+	 * Sets the DTR control bit.
+	 *
+	 * @param enabled whether DTR should be asserted or negated
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void setDTR(boolean enabled) throws IOException;
+	/**
+	 * Sets the line parameters. Data is always 8 bits with 1 stop bit.
+	 *
+	 * @param baud the baud rate to set
+	 * @param parity the parity mode, PARITY_NONE or PARITY_EVEN
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void setParams(int baud, int parity) throws IOException;
+	/**
+	 * Sets the RTS control bit.
+	 *
+	 * @param enabled whether RTS should be asserted or negated
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void setRTS(boolean enabled) throws IOException;
+	/**
+	 * Writes bytes to the transport. The data may still be in transit when this returns;
+	 * use drain() to wait for it.
+	 *
+	 * @param data the buffer holding the data
+	 * @param offset the offset in the buffer of the first byte
+	 * @param length the number of bytes to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write(byte[] data, int offset, int length) throws IOException;
+}
@@ -0,0 +1,88 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil;
+
+import java.io.*;
+import com.sun.jna.*;
+
+/**
+ * Serial transport which drives a Linux tty device, such as /dev/ttyUSB0 or /dev/ttyACM0,
+ * directly through termios and epoll. Unlike jssc, there is no listener thread: the reading
+ * thread waits in epoll_wait() and wakes as soon as the kernel has data.
+ */
+public class TermiosTransport extends FdTransport {
+	/**
+	 * System property which, when set to true, keeps every port on jssc.
+	 */
+	public static final String USE_JSSC = "vexflash.jssc";
+
+	/**
+	 * Checks whether a serial port can be opened by this transport: a USB serial or ACM tty
+	 * on x86 or x86_64 Linux, with the C library reachable through JNA, unless the USE_JSSC
+	 * system property is set.
+	 *
+	 * @param name the serial port name
+	 * @return whether this transport can be used for the port
+	 */
+	public static boolean isSupported(final String name) {
+		final String os = System.getProperty("os.name", "nix").toLowerCase();
+		if (!os.startsWith("linux") || !name.matches("/dev/tty(USB|ACM)[0-9]+") ||
+				Boolean.getBoolean(USE_JSSC))
+			return false;
+		try {
+			// Other architectures have different constants, jssc knows them
+			return LibC.X86 && LibC.INSTANCE != null;
+		} catch (LinkageError e) {
+			// JNA or the C library is not available
+			return false;
+		}
+	}
+
+	/**
+	 * Path of the tty device.
+	 */
+	private final String name;
+
+	/**
+	 * Creates a transport for the tty device with the given path. The device is not opened
+	 * until open() is called.
+	 *
+	 * @param name the path of the tty device
+	 */
+	public TermiosTransport(final String name) {
+		if (name == null)
+			throw new NullPointerException("name");
+		this.name = name;
+	}
+	public String getName() {
+		return name;
+	}
+	public void open() throws IOException {
+		if (fd >= 0)
+			return;
+		try {
+			fd = LibC.INSTANCE.open(name, LibC.O_RDWR | LibC.O_NOCTTY | LibC.O_NONBLOCK);
+			// Keep other programs off the port while it is in use, as jssc does
+			LibC.INSTANCE.ioctl(fd, new NativeLong(LibC.TIOCEXCL), null);
+		} catch (LastErrorException e) {
+			close();
+			if (e.getErrorCode() == LibC.EBUSY)
+				throw new IOException("Port is in use");
+			throw new IOException("Failed to open port", e);
+		} catch (UnsatisfiedLinkError e) {
+			throw new IOException("Native serial ports are not available on this system", e);
+		}
+		try {
+			// Raw 8N1, reads return at once (VMIN = VTIME = 0) as epoll does the waiting
+			setParams(VexFlash.BAUD, PARITY_NONE);
+			watch();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		try {
+			setDTR(false);
+			setRTS(false);
+		} catch (IOException ignore) {
+			// Not every tty has modem control lines
+		}
+	}
+}
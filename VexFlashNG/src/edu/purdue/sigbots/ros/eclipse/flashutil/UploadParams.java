@@ -22,6 +22,10 @@ public class UploadParams {
 	 * Indicates download file to filesystem mode.
 	 */
 	public static final int MODE_DOWNLOAD_FS = 3;
+	/**
+	 * Indicates upload code mode which rewrites only the pages changed since the last upload.
+	 */
+	public static final int MODE_DELTA = 4;
 
 	/**
 	 * Operation to perform.
@@ -54,7 +58,7 @@ public class UploadParams {
 			throw new NullPointerException("port");
 		if (target == null)
 			throw new NullPointerException("target");
-		if (op < MODE_CLEAN || op > MODE_DOWNLOAD_FS)
+		if (op < MODE_CLEAN || op > MODE_DELTA)
 			throw new IllegalArgumentException("op");
 		this.op = op;
 		this.port = port;
@@ -73,6 +77,8 @@ public class UploadParams {
 			return "Uploading " + p + " to VEX device";
 		case MODE_FW:
 			return "Uploading " + p + " to VEX device";
+		case MODE_DELTA:
+			return "Uploading changes in " + p + " to VEX device";
 		case MODE_UPLOAD_FS:
 			return "Retrieving files on VEX device to " + getTarget().getName();
 		case MODE_DOWNLOAD_FS:
@@ -1,6 +1,5 @@
 package edu.purdue.sigbots.ros.eclipse.flashutil;
 
-import jssc.*;
 import java.io.*;
 import java.util.*;
 
@@ -12,10 +11,15 @@ import java.util.*;
  */
 public class VexFlash implements FlashUtility {
 	/**
-	 * Default baud rate to use for flashing. At present this can't be changed
-	 * at runtime.
+	 * Default baud rate to use for flashing. VEXnet sequences are always sent at
+	 * this rate; the bootloader link may be switched to one of FAST_BAUDS.
 	 */
 	public static final int BAUD = 115200;
+	/**
+	 * Faster baud rates probed for the bootloader on links which may carry them,
+	 * fastest first.
+	 */
+	public static final int[] FAST_BAUDS = { 460800, 230400 };
 	/**
 	 * FS start address relative to state.getUserCodeAddress().
 	 */
@@ -40,6 +44,68 @@ public class VexFlash implements FlashUtility {
 	 * uploading.
 	 */
 	public static final long VEX_TIMEOUT = 700L;
+	/**
+	 * Connect stage: stopping user code.
+	 */
+	public static final int STAGE_STOP = 0;
+	/**
+	 * Connect stage: asking VEXnet for system information.
+	 */
+	public static final int STAGE_SYSINFO = 1;
+	/**
+	 * Connect stage: resetting into the bootloader until it acknowledges baud rate detection.
+	 */
+	public static final int STAGE_BOOTLOAD = 2;
+	/**
+	 * Connect stage: reading the bootloader command set and device ID.
+	 */
+	public static final int STAGE_IDENTIFY = 3;
+	/**
+	 * Number of connect stages.
+	 */
+	public static final int STAGES = 4;
+	/**
+	 * Names of the connect stages, for reports.
+	 */
+	private static final String[] STAGE_NAMES = { "stop", "sysinfo", "bootload", "identify" };
+	/**
+	 * Best baud rate found for the bootloader on each port, by port name.
+	 */
+	private static final Map<String, Integer> BAUD_CACHE = new HashMap<String, Integer>(8);
+	/**
+	 * How long to wait for an acknowledge of each baud rate detection byte, in milliseconds.
+	 */
+	private static final long BOOT_POLL = 100L;
+	/**
+	 * Maximum time to wait for the bootloader to come up, in milliseconds.
+	 */
+	private static final long BOOT_TIMEOUT = 3000L;
+	/**
+	 * Maximum time to wait for the bootloader to lock on to a faster baud rate, in
+	 * milliseconds.
+	 */
+	private static final long PROBE_TIMEOUT = 600L;
+	/**
+	 * Minimum time between repeats of the bootload sequence, in milliseconds.
+	 */
+	private static final long BOOTLOAD_INTERVAL = 150L;
+	/**
+	 * Maximum number of times the bootload sequence is sent.
+	 */
+	private static final int BOOTLOAD_REPEATS = 5;
+	/**
+	 * Number of pages read back to confirm that a device already holds an image: the first,
+	 * the last and the rest picked at random.
+	 */
+	private static final int SAMPLE_PAGES = 4;
+	/**
+	 * Length of the reply to SYSINFO, including the 0xAA 0x55 sync bytes.
+	 */
+	private static final int SYSINFO_LENGTH = 14;
+	/**
+	 * Maximum number of stray bytes to skip while looking for the SYSINFO reply.
+	 */
+	private static final int SYSINFO_SKIP = 256;
 
 	/**
 	 * Asks the Cortex/joystick for the current status.
@@ -52,14 +118,86 @@ public class VexFlash implements FlashUtility {
 	private static void askSysInfo(final SerialPortIO port) throws SerialException {
 		try {
 			parityNone(port);
-			for (short value : SYSINFO)
-				port.write(value & 0xFF);
+			port.write(toBytes(SYSINFO));
 			port.flush();
 		} catch (IOException e) {
 			throw getNotRespondingException(e);
 		}
 	}
 
+	/**
+	 * Resets the Cortex into the bootloader and performs baud rate detection. The bootload
+	 * sequence is sent, then 0x7F is sent repeatedly until the bootloader acknowledges it;
+	 * the bootload sequence is repeated at most every BOOTLOAD_INTERVAL in case it was lost.
+	 *
+	 * If 0x7F was sent more than once, a later one may reach the bootloader after it has
+	 * locked on, where it is taken as the start of a command; the bootloader must then be
+	 * resynchronized before the first real command.
+	 *
+	 * @param port
+	 *            the serial port to use
+	 * @param baud
+	 *            the baud rate which the bootloader should lock on to
+	 * @param limit
+	 *            the maximum time to wait for the bootloader in milliseconds
+	 * @return whether the bootloader may be out of step with the command frames
+	 * @throws SerialException
+	 *             if the bootloader does not respond in time
+	 */
+	private static boolean enterBootloader(final SerialPortIO port, final int baud,
+			final long limit) throws SerialException {
+		final long timeout = port.getTimeout(), deadline = System.currentTimeMillis() + limit;
+		final byte[] bootload = toBytes(BOOTLOAD);
+		long nextBootload = 0L;
+		int sent = 0, polls = 0;
+		try {
+			port.setTimeout(BOOT_POLL);
+			while (true) {
+				final long now = System.currentTimeMillis();
+				if (sent < BOOTLOAD_REPEATS && now >= nextBootload) {
+					parityNone(port);
+					port.write(bootload);
+					port.flush();
+					nextBootload = now + BOOTLOAD_INTERVAL;
+					sent++;
+				}
+				// 0x7F is 01111111 binary, which is the maximum useful # of bit toggles
+				paritySTM(port, baud);
+				port.write(0x7F);
+				port.flush();
+				polls++;
+				try {
+					final int reply = port.read() & 0xFF;
+					// NACK means that an earlier 0x7F got through, but its ACK was lost
+					if (reply == 0x79 || reply == 0x1F)
+						return reply == 0x1F || polls > 1;
+				} catch (IOException e) {
+					// Nothing yet, the bootloader is probably still starting
+				}
+				if (now > deadline)
+					throw new SerialException("No response from bootloader after " + sent +
+							" reset attempts");
+			}
+		} catch (IOException e) {
+			throw new SerialException("Failed to initialize controller", e);
+		} finally {
+			port.setTimeout(timeout);
+		}
+	}
+
+	/**
+	 * Factory method for Cortex initialization failed message.
+	 * 
+	 * @param cause
+	 *            the cause of this error
+	 * @return the error text
+	 */
+	private static SerialException getInitFailedException(final SerialException cause) {
+		return new SerialException("The VEX Cortex is not responding to initialization.\n"
+				+ "Ensure that the USB Tether cable or VEXnet keys are tightly plugged in,\n"
+				+ "and that all VEX devices are powered on.", cause);
+	}
+
 	/**
 	 * Factory method for generic Cortex not responding message.
 	 * 
@@ -89,6 +227,27 @@ public class VexFlash implements FlashUtility {
 				cause);
 	}
 
+	/**
+	 * Checks whether a serial port belongs to a USB device with the given vendor ID, such as
+	 * the Cortex's own USB tether port (VEX direct, 04D8) or a Prolific adapter (067B).
+	 *
+	 * @param name
+	 *            the name of the open serial port
+	 * @param id
+	 *            the USB vendor ID to look for
+	 * @return whether the port is known to be on such a device
+	 */
+	private static boolean isUSBDevice(final String name, final String id) {
+		try {
+			for (PortFinder.Serial ser : PortFinder.findByID(id, PortFinder.getPortList()))
+				if (name.equals(ser.getComIdentifier()) || name.equals(ser.getComPort()))
+					return true;
+		} catch (RuntimeException e) {
+			// Port details not available on this platform
+		}
+		return false;
+	}
+
 	/**
 	 * Kills the currently running user code.
 	 *
@@ -117,6 +276,63 @@ public class VexFlash implements FlashUtility {
 		}
 	}
 
+	/**
+	 * Sends the user code stop sequence in one burst.
+	 *
+	 * @param port
+	 *            the serial port to use
+	 * @throws SerialException
+	 *             if an I/O error occurs
+	 */
+	private static void stopUserCode(final SerialPortIO port) throws SerialException {
+		try {
+			paritySTM(port);
+			port.write(toBytes(STOP_USER_CODE));
+			port.flush();
+		} catch (IOException e) {
+			throw getNotRespondingException(e);
+		}
+	}
+
+	/**
+	 * Converts a VEXnet sequence to bytes for writing.
+	 *
+	 * @param sequence
+	 *            the sequence to convert
+	 * @return the sequence as bytes
+	 */
+	private static byte[] toBytes(final short[] sequence) {
+		final byte[] data = new byte[sequence.length];
+		for (int i = 0; i < sequence.length; i++)
+			data[i] = (byte) sequence[i];
+		return data;
+	}
+
+	/**
+	 * Checks that an image fits below the file system, before it is read into memory.
+	 *
+	 * @param length
+	 *            the image length in bytes
+	 * @throws SerialException
+	 *             if the image would run into the file system
+	 */
+	static void checkLength(final int length) throws SerialException {
+		if (length >= FS_START)
+			throw new SerialException(String.format("Data is too big to fit in memory.\n"
+					+ "File is %d KiB out of %d KiB", length / 1024, FS_START / 1024));
+	}
+
+	/**
+	 * Gets the name of a connect stage.
+	 *
+	 * @param stage
+	 *            the STAGE_xxx constant
+	 * @return the stage name
+	 */
+	public static String getStageName(final int stage) {
+		return STAGE_NAMES[stage];
+	}
+
 	/**
 	 * Sets up the port for no parity and the default data rate.
 	 *
@@ -128,7 +344,7 @@ public class VexFlash implements FlashUtility {
 	private static void parityNone(final SerialPortIO port) throws SerialException {
 		try {
 			port.flush();
-			port.setParams(BAUD, SerialPort.PARITY_NONE);
+			port.setParams(BAUD, SerialTransport.PARITY_NONE);
 			port.purge();
 		} catch (IOException e) {
 			throw getPortLockedException(port.getName(), e);
@@ -136,7 +352,7 @@ public class VexFlash implements FlashUtility {
 	}
 
 	/**
-	 * Sets up the port for STM even parity and data rate.
+	 * Sets up the port for STM even parity and the default data rate.
 	 *
 	 * @param port
 	 *            the port to use
@@ -144,9 +360,24 @@ public class VexFlash implements FlashUtility {
 	 *             if an I/O error occurs
 	 */
 	private static void paritySTM(final SerialPortIO port) throws SerialException {
+		paritySTM(port, BAUD);
+	}
+
+	/**
+	 * Sets up the port for STM even parity and the given data rate.
+	 *
+	 * @param port
+	 *            the port to use
+	 * @param baud
+	 *            the baud rate to use
+	 * @throws SerialException
+	 *             if an I/O error occurs
+	 */
+	private static void paritySTM(final SerialPortIO port, final int baud)
+			throws SerialException {
 		try {
 			port.flush();
-			port.setParams(BAUD, SerialPort.PARITY_EVEN);
+			port.setParams(baud, SerialTransport.PARITY_EVEN);
 			port.purge();
 		} catch (IOException e) {
 			throw getPortLockedException(port.getName(), e);
@@ -170,28 +401,42 @@ public class VexFlash implements FlashUtility {
 	}
 
 	/**
-	 * Initializes VexNET to prepare a Cortex communication.
+	 * Picks the pages to read back when checking what a device holds: the first, the last and
+	 * the rest at random, up to SAMPLE_PAGES in all.
 	 *
-	 * @param port
-	 *            the serial port to use
-	 * @throws SerialException
-	 *             if an I/O error occurs
+	 * @param pages
+	 *            the pages which may be picked
+	 * @return a bit set with one bit set for each page to read
 	 */
-	private static void vexInit(final SerialPortIO port) throws SerialException {
-		try {
-			parityNone(port);
-			for (int i = 0; i < 5; i++) {
-				// Write the bootload sequence several times
-				for (short value : BOOTLOAD)
-					port.write(value & 0xFF);
-				port.flush();
-				Utils.delay(150L);
-			}
-		} catch (Exception e) {
-			throw new SerialException("Failed to initialize controller", e);
+	private static BitSet samplePages(final BitSet pages) {
+		final int end = pages.length();
+		final BitSet sample = new BitSet(end);
+		final Random random = new Random();
+		if (end > 0) {
+			sample.set(pages.nextSetBit(0));
+			sample.set(end - 1);
+			for (int i = 2; i < SAMPLE_PAGES; i++)
+				sample.set(pages.nextSetBit(random.nextInt(end)));
 		}
+		return sample;
 	}
 
+	/**
+	 * Baud rate of the bootloader link.
+	 */
+	private int baud;
+	/**
+	 * Faster baud rates to probe, or null to choose by the type of link.
+	 */
+	private int[] baudRates;
+	/**
+	 * Whether cancel() has been called.
+	 */
+	private volatile boolean cancelled;
+	/**
+	 * Whether connect() has reached the bootloader and program() has not yet run.
+	 */
+	private boolean connected;
 	/**
 	 * Input file data.
 	 */
@@ -201,6 +446,14 @@ public class VexFlash implements FlashUtility {
 	 * name.
 	 */
 	private File file;
+	/**
+	 * Record of the images last flashed to each device.
+	 */
+	private ImageHistory history;
+	/**
+	 * Mapped image to use instead of reading the target file, or null.
+	 */
+	private MappedParser image;
 	/**
 	 * Current programming mode.
 	 */
@@ -209,13 +462,46 @@ public class VexFlash implements FlashUtility {
 	 * The serial port in use.
 	 */
 	private SerialPortIO port;
+	/**
+	 * How failed operations are retried, or null to choose by the type of link.
+	 */
+	private RetryPolicy retryPolicy;
+	/**
+	 * Time taken by each connect stage in nanoseconds.
+	 */
+	private final long[] stageTimes = new long[STAGES];
 	/**
 	 * Current state of the attached STM microcontroller.
 	 */
 	private STMState state;
+	/**
+	 * Whether the port is known to be the Cortex's own USB tether.
+	 */
+	private boolean tether;
+
+	/**
+	 * Asks a connect() running on another thread to give up at the end of the current stage,
+	 * failing with a SerialException. Once cancelled, this flash utility will not connect
+	 * again.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Fails if cancel() has been called.
+	 *
+	 * @throws SerialException
+	 *             if connecting was cancelled
+	 */
+	private void checkCancelled() throws SerialException {
+		if (cancelled)
+			throw new SerialException("Connection cancelled");
+	}
 
 	/**
-	 * Waits for reset and reconnects.
+	 * Waits for reset and reconnects. Each stage moves on as soon as the device responds;
+	 * the original fixed delays are used only when it does not.
 	 *
 	 * @param output
 	 *            the indicator for status messages
@@ -223,25 +509,174 @@ public class VexFlash implements FlashUtility {
 	 *             if an I/O error occurs
 	 */
 	private void connect(final Indicator output) throws SerialException {
+		long since = System.nanoTime();
+		for (int i = 0; i < STAGES; i++)
+			stageTimes[i] = 0L;
 		// Kill user code
 		output.messageBegin("Stopping user code");
-		killUserCode(port);
+		stopUserCode(port);
 		output.messageEnd("done.");
-		Utils.delay(100L);
+		since = endStage(STAGE_STOP, since);
+		checkCancelled();
 		// Initialize VEX system
 		output.messageBegin("Interrogating VEX system");
-		getSystemInformation();
+		if (!getSystemInformation()) {
+			// User code may have missed the burst, send the stop sequence slowly
+			killUserCode(port);
+			since = endStage(STAGE_STOP, since);
+			// Still no reply if the Cortex was left in the bootloader by an upload which was
+			// cut off; the bootload stage will find out if nothing is there at all
+			getSystemInformation();
+		}
 		output.messageEnd("done.");
-		Utils.delay(100L);
+		since = endStage(STAGE_SYSINFO, since);
+		final String name = port.getName();
+		tether = isUSBDevice(name, "04D8");
+		// Try the faster rates first, the default rate always comes last
+		for (int rate : getBaudRates(name)) {
+			checkCancelled();
+			output.messageBegin("Initializing controller at " + rate + " baud");
+			try {
+				final boolean resync = enterBootloader(port, rate, PROBE_TIMEOUT);
+				since = endStage(STAGE_BOOTLOAD, since);
+				baud = rate;
+				stmInit(resync);
+				output.messageEnd("done.");
+				endStage(STAGE_IDENTIFY, since);
+				setCachedBaud(name, rate);
+				return;
+			} catch (SerialException e) {
+				// The bootload sequence resets the Cortex again, so nothing is left locked
+				output.messageEnd("not supported.");
+				since = endStage(STAGE_BOOTLOAD, since);
+			}
+		}
+		checkCancelled();
 		output.messageBegin("Initializing controller");
-		vexInit(port);
+		final boolean resync;
+		try {
+			resync = enterBootloader(port, BAUD, BOOT_TIMEOUT);
+		} catch (SerialException e) {
+			throw getInitFailedException(e);
+		}
 		output.messageEnd("done.");
-		Utils.delay(400L);
+		since = endStage(STAGE_BOOTLOAD, since);
+		baud = BAUD;
+		checkCancelled();
 		// Initialize STM connection
-		stmInit();
+		stmInit(resync);
+		endStage(STAGE_IDENTIFY, since);
+		setCachedBaud(name, BAUD);
+	}
+
+	/**
+	 * Opens a port and connects to the bootloader before the image is known, so that this
+	 * can overlap with building it. A following setup() with the same port keeps the
+	 * connection and program() starts programming at once; if the upload is abandoned
+	 * instead, disconnect() restarts the user code.
+	 *
+	 * @param portName
+	 *            the port to open
+	 * @param output
+	 *            the indicator for status messages
+	 * @throws SerialException
+	 *             if the port cannot be opened or the Cortex does not respond
+	 */
+	public void connect(final String portName, final Indicator output) throws SerialException {
+		openPort(portName);
+		try {
+			connect(output);
+		} catch (SerialException e) {
+			port.close();
+			port = null;
+			throw e;
+		}
+		connected = true;
+	}
+
+	/**
+	 * Leaves the bootloader after connect() if the upload will not take place, restarting
+	 * the user code which was there before. Does nothing if not connected.
+	 *
+	 * @param output
+	 *            the indicator for status messages
+	 * @throws SerialException
+	 *             if an I/O error occurs
+	 */
+	public void disconnect(final Indicator output) throws SerialException {
+		if (connected) {
+			connected = false;
+			try {
+				restartCode(output);
+			} finally {
+				resetVexNET(port);
+			}
+		}
+	}
+
+	/**
+	 * Adds the time since the last stage ended to a connect stage.
+	 *
+	 * @param stage
+	 *            the STAGE_xxx constant
+	 * @param since
+	 *            the time at which the stage started
+	 * @return the current time, at which the next stage starts
+	 */
+	private long endStage(final int stage, final long since) {
+		final long now = System.nanoTime();
+		stageTimes[stage] += now - since;
+		return now;
+	}
+
+	/**
+	 * Gets the baud rate of the bootloader link.
+	 *
+	 * @return the baud rate in use after connecting
+	 */
+	public int getBaud() {
+		return baud;
+	}
+
+	/**
+	 * Gets the faster baud rates worth probing on a port. A rate which worked before is
+	 * tried alone; a port which only ever worked at BAUD is not probed again.
+	 *
+	 * @param name
+	 *            the name of the open serial port
+	 * @return the rates to try, fastest first
+	 */
+	private int[] getBaudRates(final String name) {
+		final Integer cached;
+		synchronized (BAUD_CACHE) {
+			cached = BAUD_CACHE.get(name);
+		}
+		if (cached != null)
+			return (cached.intValue() == BAUD) ? new int[0] : new int[] { cached.intValue() };
+		if (baudRates != null)
+			return baudRates;
+		// The VEX direct tether and Prolific adapters carry the faster rates
+		if (tether || isUSBDevice(name, "067B"))
+			return FAST_BAUDS;
+		return new int[0];
+	}
+
+	/**
+	 * Records the best baud rate found on a port, so that later uploads skip the probing.
+	 *
+	 * @param name
+	 *            the name of the open serial port
+	 * @param rate
+	 *            the baud rate which worked
+	 */
+	private static void setCachedBaud(final String name, final int rate) {
+		synchronized (BAUD_CACHE) {
+			BAUD_CACHE.put(name, rate);
+		}
 	}
 
 	public void end() {
+		connected = false;
 		if (fileData != null)
 			fileData.close();
 		if (port != null)
@@ -264,45 +699,310 @@ public class VexFlash implements FlashUtility {
 	}
 
 	/**
-	 * Erases the first few pages of Cortex flash memory (all pages before
-	 * FS_START)
+	 * Erases the file system, as a clean upload would.
+	 *
+	 * @param fs
+	 *            the file system manipulator pointing to the port
+	 * @param output
+	 *            the indicator for status messages
+	 * @throws SerialException
+	 *             if an I/O error occurs
+	 */
+	private void eraseFileSystem(final FileSystemManipulator fs, final Indicator output)
+			throws SerialException {
+		output.messageBegin("Erasing file system");
+		fs.eraseFileSystem();
+		output.messageEnd("done.");
+		Utils.delay(100);
+	}
+
+	/**
+	 * Erases the first few pages of Cortex flash memory: the pages which the new image will
+	 * occupy, and the pages which the previous image occupied (if known) so that no stale code
+	 * is left behind. All other pages, including the file system, are left untouched.
 	 *
 	 * @param fs
 	 *            the file system manipulator pointing to the port
+	 * @param previous
+	 *            the record of the image currently on the device, or null if unknown
 	 * @param output
 	 *            the indicator for status messages
 	 * @throws SerialException
 	 *             if an I/O error occurs
 	 */
-	private void eraseSome(final FileSystemManipulator fs, final Indicator output) throws SerialException {
+	private void eraseSome(final FileSystemManipulator fs, final ImageHistory.Record previous,
+			final Indicator output) throws SerialException {
+		final int ps = state.getDevice().getPageSize();
+		final BitSet pages = getLoadedPages((fileData.length() + ps - 1) / ps, ps);
+		if (previous != null && previous.getPageSize() == ps)
+			pages.set(0, previous.getPageCount());
 		output.messageBegin("Erasing memory");
 		// Order FS to erase the pages
-		fs.eraseRange(0, FS_START / state.getDevice().getPageSize() - 1);
+		fs.erasePages(pages);
 		output.messageEnd("done.");
 		Utils.delay(100);
 	}
 
+	/**
+	 * Erases and rewrites only the pages of user code which differ from the image recorded
+	 * for this device, and erases pages left over from a larger previous image. Falls back to
+	 * a MODE_FW upload if there is no record of the image on the device.
+	 *
+	 * @param fs
+	 *            the file system manipulator pointing to the port
+	 * @param output
+	 *            the indicator for status messages
+	 * @throws SerialException
+	 *             if an I/O error occurs
+	 * @throws IOException
+	 *             if the image cannot be read
+	 */
+	private void flashDelta(final FileSystemManipulator fs, final Indicator output)
+			throws SerialException, IOException {
+		final STMDevice dev = state.getDevice();
+		final String name = port.getName();
+		final MappedParser image = readImage();
+		final ImageHistory.Record old = history.load(state, name);
+		final ImageHistory.Record now = image.getRecord(dev.getPageSize());
+		final boolean same = old != null && old.matches(now);
+		if (same && isFlashed(fs, image, now, output))
+			return;
+		history.forget(state, name);
+		if (old == null || old.getPageSize() != now.getPageSize()) {
+			// Nothing known about the device, upload everything
+			output.message("No record of previous upload, uploading all pages");
+			flashImage(fs, image, null, output);
+		} else if (same) {
+			// Another device is on the port, or its memory was changed behind our back
+			output.message("Device does not hold the recorded program, uploading all pages");
+			flashImage(fs, image, old, output);
+		} else if (!isUnchanged(fs, image, old.changedPages(now), now, output)) {
+			// The record belongs to another device which was on the same port
+			output.message("Device does not hold the recorded program, uploading all pages");
+			flashImage(fs, image, old, output);
+		} else {
+			final BitSet changed = old.changedPages(now), erase = (BitSet)changed.clone();
+			// Clear out the tail of the previous image if the new one is shorter
+			if (old.getPageCount() > now.getPageCount())
+				erase.set(now.getPageCount(), old.getPageCount());
+			// Pages which became gaps only need erasing
+			changed.and(getLoadedPages(now.getPageCount(), now.getPageSize()));
+			output.message(String.format("Uploading %d of %d pages", changed.cardinality(),
+				now.getPageCount()));
+			if (!erase.isEmpty()) {
+				output.messageBegin("Erasing memory");
+				fs.erasePages(erase);
+				output.messageEnd("done.");
+				Utils.delay(100);
+			}
+			fs.writePages(image, changed, output);
+		}
+		history.save(state, name, now);
+	}
+
+	/**
+	 * Erases memory and writes a whole image, keeping a checkpoint after every page. If the
+	 * checkpoint shows that an upload of the same image was cut off, erasing is skipped and
+	 * writing carries on from the last confirmed page. A clean upload which resumes an upload
+	 * that left the file system alone still erases the file system.
+	 *
+	 * @param fs
+	 *            the file system manipulator pointing to the port
+	 * @param image
+	 *            the image
+	 * @param previous
+	 *            the record of the image currently on the device, or null if unknown
+	 * @param output
+	 *            the indicator for status messages
+	 * @throws SerialException
+	 *             if an I/O error occurs
+	 * @throws IOException
+	 *             if the checkpoint cannot be saved
+	 */
+	private void flashImage(final FileSystemManipulator fs, final MappedParser image,
+			final ImageHistory.Record previous, final Indicator output)
+			throws SerialException, IOException {
+		final STMDevice dev = state.getDevice();
+		final String name = port.getName();
+		final int ps = dev.getPageSize(), pageCount = image.getPageCount(ps);
+		final byte[] digest = image.getDigest();
+		final boolean clean = mode == UploadParams.MODE_CLEAN;
+		final ImageHistory.Checkpoint last = history.loadCheckpoint(state, name);
+		final BitSet pages = new BitSet(pageCount), loaded = getLoadedPages(pageCount, ps);
+		int first = 0;
+		if (last != null && last.isFor(digest) && last.isErased())
+			first = Math.min(last.getConfirmed() / ps, pageCount);
+		if (first > 0 && !isResumable(fs, image, first, loaded, output))
+			// Another robot on the same port, start over
+			first = 0;
+		if (first > 0) {
+			output.message(String.format("Resuming upload at %d of %d KiB", first * ps / 1024,
+					image.length() / 1024));
+			if (first < pageCount) {
+				// The page in flight when the link dropped may be partly programmed
+				output.messageBegin("Erasing memory");
+				fs.eraseRange(first, first);
+				output.messageEnd("done.");
+			}
+			// The upload which was cut off may have been a firmware-only one
+			if (clean && !last.isClean())
+				eraseFileSystem(fs, output);
+		} else {
+			history.saveCheckpoint(state, name, new ImageHistory.Checkpoint(digest, false,
+					false, 0));
+			if (clean)
+				eraseAll(output);
+			else
+				eraseSome(fs, previous, output);
+			history.saveCheckpoint(state, name, new ImageHistory.Checkpoint(digest, true,
+					clean, 0));
+		}
+		// Program memory, recording each page as it is confirmed
+		pages.set(first, pageCount);
+		pages.and(loaded);
+		fs.writePages(image, pages, new FileSystemManipulator.PageListener() {
+			public void pageWritten(final int page) throws IOException {
+				history.saveCheckpoint(state, name, new ImageHistory.Checkpoint(digest, true,
+						clean, (page + 1) * ps));
+			}
+		}, output);
+		history.clearCheckpoint(state, name);
+	}
+
 	public String getExtension() {
 		return "bin";
 	}
 
+	/**
+	 * Gets the time taken by a connect stage during the last program() call.
+	 *
+	 * @param stage
+	 *            the STAGE_xxx constant
+	 * @return the time in nanoseconds
+	 */
+	public long getStageTime(final int stage) {
+		return stageTimes[stage];
+	}
+
 	/**
 	 * Gets information from the Cortex to determine its connection type and
 	 * power level. Currently, the data is ignored, but it will be displayed
 	 * once the meaning is known.
 	 *
+	 * @return true if a reply was received, or false if none arrived in time
 	 * @throws SerialException
 	 *             if an I/O error occurs
 	 */
-	private void getSystemInformation() throws SerialException {
+	private boolean getSystemInformation() throws SerialException {
+		askSysInfo(port);
 		try {
-			askSysInfo(port);
-			Utils.readExactly(port, 14);
+			// Skip anything left over from user code until the reply sync bytes
+			int last = 0, value = Utils.readOne(port) & 0xFF;
+			for (int i = 0; last != 0xAA || value != 0x55; i++) {
+				if (i >= SYSINFO_SKIP)
+					return false;
+				last = value;
+				value = Utils.readOne(port) & 0xFF;
+			}
+			Utils.readExactly(port, SYSINFO_LENGTH - 2);
+			return true;
 		} catch (IOException e) {
-			throw getNotRespondingException(e);
+			return false;
 		}
 	}
 
+	/**
+	 * Checks whether the device already holds an image which the history says was the last
+	 * one flashed to it, by reading back a few sample pages. The history alone is not enough,
+	 * as a different robot may have been plugged into the same port.
+	 *
+	 * @param fs
+	 *            the file system manipulator pointing to the port
+	 * @param image
+	 *            the image
+	 * @param now
+	 *            the record of the image
+	 * @param output
+	 *            the indicator for status messages
+	 * @return whether the sample pages on the device match the image
+	 * @throws SerialException
+	 *             if an I/O error occurs
+	 */
+	private boolean isFlashed(final FileSystemManipulator fs, final MappedParser image,
+			final ImageHistory.Record now, final Indicator output) throws SerialException {
+		// Gaps are never written, so only pages with data are worth reading
+		final BitSet sample = samplePages(getLoadedPages(now.getPageCount(), now.getPageSize()));
+		output.messageBegin("Checking program on device");
+		final boolean same = fs.comparePages(image, sample);
+		output.messageEnd(same ? "unchanged." : "changed.");
+		if (same)
+			output.message("Program is already on the device, skipping upload");
+		return same;
+	}
+
+	/**
+	 * Checks whether the device holds the start of an upload which was cut off, so that it
+	 * can carry on from there. The checkpoint alone is not enough, as a different robot may
+	 * have been plugged into the same port: a few of the pages confirmed are read back, and
+	 * the page after the first one to write must still be erased.
+	 *
+	 * @param fs
+	 *            the file system manipulator pointing to the port
+	 * @param image
+	 *            the image
+	 * @param first
+	 *            the first page which was not confirmed
+	 * @param loaded
+	 *            the pages of the image which hold data
+	 * @param output
+	 *            the indicator for status messages
+	 * @return whether the upload can resume at page first
+	 * @throws SerialException
+	 *             if an I/O error occurs
+	 */
+	private boolean isResumable(final FileSystemManipulator fs, final MappedParser image,
+			final int first, final BitSet loaded, final Indicator output) throws SerialException {
+		final BitSet done = loaded.get(0, first);
+		final int next = loaded.nextSetBit(first + 1);
+		output.messageBegin("Checking interrupted upload");
+		// The page at first itself is erased again before writing
+		final boolean same = fs.comparePages(image, samplePages(done)) && (next < 0 ||
+			fs.isErased(next));
+		output.messageEnd(same ? "found." : "not found.");
+		return same;
+	}
+
+	/**
+	 * Checks whether the pages which a delta upload leaves alone already hold the new image,
+	 * by reading back a few of them. The record of the last upload alone is not enough, as a
+	 * different robot may have been plugged into the same port, and rewriting only the changed
+	 * pages would leave it with a mix of two programs.
+	 *
+	 * @param fs
+	 *            the file system manipulator pointing to the port
+	 * @param image
+	 *            the image
+	 * @param changed
+	 *            the pages which will be rewritten
+	 * @param now
+	 *            the record of the image
+	 * @param output
+	 *            the indicator for status messages
+	 * @return whether the sample pages on the device match the image
+	 * @throws SerialException
+	 *             if an I/O error occurs
+	 */
+	private boolean isUnchanged(final FileSystemManipulator fs, final MappedParser image,
+			final BitSet changed, final ImageHistory.Record now, final Indicator output)
+			throws SerialException {
+		final BitSet kept = getLoadedPages(now.getPageCount(), now.getPageSize());
+		kept.andNot(changed);
+		output.messageBegin("Checking program on device");
+		final boolean same = fs.comparePages(image, samplePages(kept));
+		output.messageEnd(same ? "found." : "not found.");
+		return same;
+	}
+
 	public List<PortFinder.Serial> locateSerial() {
 		final List<PortFinder.Serial> candidates = new ArrayList<PortFinder.Serial>(8);
 		try {
@@ -325,19 +1025,35 @@ public class VexFlash implements FlashUtility {
 	}
 
 	public void program(final Indicator output) throws SerialException {
-		connect(output);
+		// The connection made by connect(portName, output) is only good for one upload
+		if (!connected)
+			connect(output);
+		connected = false;
 		final FileSystemManipulator fs = new FileSystemManipulator(state);
 		try {
 			switch (mode) {
 			case UploadParams.MODE_CLEAN:
 			case UploadParams.MODE_FW:
-				// Erase memory
-				if (mode == UploadParams.MODE_CLEAN)
-					eraseAll(output);
-				else
-					eraseSome(fs, output);
-				// Program memory
-				fs.writeDataToAddress(0, null, fileData, output);
+				final STMDevice dev = state.getDevice();
+				final ImageHistory.Record previous = history.load(state, port.getName());
+				final MappedParser image = readImage();
+				final ImageHistory.Record now = image.getRecord(dev.getPageSize());
+				if (previous != null && previous.matches(now) && isFlashed(fs, image, now,
+						output)) {
+					// A clean upload still leaves the file system empty
+					if (mode == UploadParams.MODE_CLEAN)
+						eraseFileSystem(fs, output);
+					break;
+				}
+				// The record of this device is stale as soon as memory is erased
+				history.forget(state, port.getName());
+				// Erase and program memory
+				flashImage(fs, image, previous, output);
+				history.save(state, port.getName(), now);
+				break;
+			case UploadParams.MODE_DELTA:
+				// Program only the changed pages
+				flashDelta(fs, output);
 				break;
 			case UploadParams.MODE_DOWNLOAD_FS:
 				// FS download
@@ -382,51 +1098,218 @@ public class VexFlash implements FlashUtility {
 	}
 
 	public boolean setup(final UploadParams params) throws SerialException {
+		loadTarget(params);
+		// Keep a connection made early on the same port
+		final String portName = params.getPort();
+		if (!connected || !port.getName().equals(portName)) {
+			if (connected)
+				port.close();
+			connected = false;
+			openPort(portName);
+		}
+		return true;
+	}
+
+	/**
+	 * Opens the serial port to use.
+	 *
+	 * @param portName
+	 *            the port to open
+	 * @throws SerialException
+	 *             if the port cannot be opened
+	 */
+	private void openPort(final String portName) throws SerialException {
+		// Open streams
+		try {
+			this.port = Utils.openSerialPort(portName);
+			this.port.setTimeout(VEX_TIMEOUT);
+		} catch (SerialException e) {
+			throw getPortLockedException(portName, e);
+		}
+	}
+
+	/**
+	 * Sets up the flash program on a serial port which has already been opened. This
+	 * allows other backends, such as a simulated Cortex, to stand in for a physical port.
+	 * The port name in the parameters is ignored.
+	 *
+	 * @param params
+	 *            the upload parameters to use
+	 * @param port
+	 *            the open serial port to use; it will be closed by end()
+	 * @return true if and only if arguments were OK and flasher is ready to go
+	 * @throws SerialException
+	 *             if an I/O error occurs
+	 */
+	public boolean setup(final UploadParams params, final SerialPortIO port) throws SerialException {
+		loadTarget(params);
+		connected = false;
+		this.port = port;
+		this.port.setTimeout(VEX_TIMEOUT);
+		return true;
+	}
+
+	/**
+	 * Reads the operation and opens the input file (if any) from the upload parameters.
+	 *
+	 * @param params
+	 *            the upload parameters to use
+	 * @throws SerialException
+	 *             if the input file cannot be read
+	 */
+	private void loadTarget(final UploadParams params) throws SerialException {
+		if (history == null)
+			history = ImageHistory.getDefault();
 		file = params.getTarget();
 		mode = params.getOperation();
 		// Read in file
 		if (mode == UploadParams.MODE_UPLOAD_FS)
 			fileData = null;
+		else if (image != null)
+			fileData = image.share();
 		else
 			// Try to open the input file
 			try {
-				fileData = new BinaryParser(file);
+				fileData = ElfParser.isElf(file) ? new ElfParser(file) : new BinaryParser(file);
 			} catch (IOException e) {
 				throw new SerialException("Error reading from " + file.getAbsolutePath(), e);
 			}
-		// Open streams
-		final String portName = params.getPort();
-		try {
-			this.port = Utils.openSerialPort(portName);
-			this.port.setTimeout(VEX_TIMEOUT);
-		} catch (SerialException e) {
-			throw getPortLockedException(portName, e);
+	}
+
+	/**
+	 * Gets the pages of the image which hold program data. The pages between the segments of
+	 * an ELF image hold nothing, so they are left out.
+	 *
+	 * @param pageCount
+	 *            the number of pages in the image
+	 * @param pageSize
+	 *            the flash page size in bytes
+	 * @return a bit set with one bit set for each page to write
+	 */
+	private BitSet getLoadedPages(final int pageCount, final int pageSize) {
+		if (fileData instanceof ElfParser)
+			return ((ElfParser)fileData).getPages(pageSize);
+		final BitSet pages = new BitSet(pageCount);
+		pages.set(0, pageCount);
+		return pages;
+	}
+
+	/**
+	 * Gets the whole image to upload. A mapped image is used as it is, so that its pages are
+	 * read straight from the mapping; any other is read into memory.
+	 *
+	 * @return the image, with its read position at the start
+	 * @throws SerialException
+	 *             if the image is not linked to start at the user code address, or is too big
+	 * @throws IOException
+	 *             if the image cannot be read
+	 */
+	private MappedParser readImage() throws SerialException, IOException {
+		if (fileData instanceof ElfParser) {
+			final int address = ((ElfParser)fileData).getAddress();
+			if (address != state.getUserCodeAddress())
+				throw new SerialException(String.format("Program is linked at %08x instead "
+					+ "of the start of Flash memory at %08x", address, state.getUserCodeAddress()));
 		}
-		return true;
+		// The file system must not be touched
+		checkLength(fileData.length());
+		if (fileData instanceof MappedParser)
+			return (MappedParser)fileData;
+		return new MappedParser(ImageHistory.readImage(fileData));
+	}
+
+	/**
+	 * Changes where the images flashed to each device are recorded. By default, the records
+	 * are kept in the user's home directory.
+	 *
+	 * @param history
+	 *            the image history to use
+	 */
+	public void setHistory(final ImageHistory history) {
+		this.history = history;
+	}
+
+	/**
+	 * Uses a mapped image instead of reading the target file on the next setup(). Each session
+	 * reads through its own share() of the mapping, and the page hashes are computed only once
+	 * for all of them.
+	 *
+	 * @param image
+	 *            the mapped image, or null to read the target file again
+	 */
+	public void setImage(final MappedParser image) {
+		this.image = image;
+	}
+
+	/**
+	 * Changes which faster baud rates are probed for the bootloader. By default, FAST_BAUDS
+	 * are probed on the USB tether and Prolific adapters, and no others elsewhere. Rates
+	 * already found for a port are reused either way.
+	 *
+	 * @param baudRates
+	 *            the rates to probe, fastest first, or null to pick them by the type of link
+	 */
+	public void setBaudRates(final int[] baudRates) {
+		this.baudRates = (baudRates == null) ? null : baudRates.clone();
+	}
+
+	/**
+	 * Changes how failed operations are retried. By default, the policy is picked by the type
+	 * of link: RetryPolicy.TETHER for the USB tether, RetryPolicy.WIRELESS otherwise.
+	 *
+	 * @param retryPolicy
+	 *            the retry policy to use, or null to pick it by the type of link
+	 */
+	public void setRetryPolicy(final RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
 	}
 
 	/**
 	 * Initializes the Cortex connection.
 	 *
+	 * @param resync
+	 *            whether the bootloader may be out of step, as returned by enterBootloader()
 	 * @throws SerialException
 	 *             if an I/O error occurs during initialization
 	 */
-	private void stmInit() throws SerialException {
+	private void stmInit(final boolean resync) throws SerialException {
 		// Switch to STM even parity
-		paritySTM(port);
+		paritySTM(port, baud);
 		Utils.eat(port);
 		try {
-			// Initialize STM
+			// Initialize STM, baud rate detection was done by enterBootloader()
 			state = new STMState(port);
-			state.negotiate();
+			if (retryPolicy != null)
+				state.setRetryPolicy(retryPolicy);
+			else if (tether)
+				state.setRetryPolicy(RetryPolicy.TETHER);
+			else
+				state.setRetryPolicy(RetryPolicy.WIRELESS);
+			// Last resort of the retry policy, reset into the bootloader again
+			state.setReconnector(new STMState.Reconnector() {
+				public void reconnect(final STMState stm) throws SerialException {
+					final boolean stray = enterBootloader(port, baud, BOOT_TIMEOUT);
+					paritySTM(port, baud);
+					Utils.eat(port);
+					if (stray)
+						stm.resync();
+					else
+						stm.commandGET();
+					stm.commandGID();
+				}
+			});
 			// Get command set and ID information
-			state.commandGET();
+			if (resync)
+				// Also discards any late ACK of an earlier 0x7F
+				state.resync();
+			else
+				state.commandGET();
 			state.commandGID();
+			// Tells robots of the same type apart in the image history
+			state.readUniqueID();
 		} catch (SerialException e) {
 			// Failed to init
-			throw new SerialException("The VEX Cortex is not responding to initialization.\n"
-					+ "Ensure that the USB Tether cable or VEXnet keys are tightly plugged in,\n"
-					+ "and that all VEX devices are powered on.", e);
+			throw getInitFailedException(e);
 		}
 	}
 }
\ No newline at end of file
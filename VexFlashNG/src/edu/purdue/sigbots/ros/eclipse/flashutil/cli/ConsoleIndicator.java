@@ -0,0 +1,122 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil.cli;
+
+import java.io.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.*;
+
+/**
+ * Indicates flash progress on a text stream, one event per line, for scripts to parse. Each
+ * line is the event name, the port name and any details, separated by tabs; newlines and tabs
+ * in the details are escaped as \n and \t, and a missing detail is left empty.
+ */
+public class ConsoleIndicator implements Indicator {
+	/**
+	 * Writes one event line. Lines from several ports never interleave.
+	 *
+	 * @param out the stream to write
+	 * @param event the event name
+	 * @param port the port name
+	 * @param details the event details, each in its own field
+	 */
+	public static void event(final PrintStream out, final String event, final String port,
+			final String... details) {
+		final StringBuilder line = new StringBuilder(64);
+		line.append(event).append('\t').append(port);
+		for (String detail : details) {
+			line.append('\t');
+			for (int i = 0; detail != null && i < detail.length(); i++) {
+				final char c = detail.charAt(i);
+				if (c == '\n')
+					line.append("\\n");
+				else if (c == '\t')
+					line.append("\\t");
+				else if (c == '\\')
+					line.append("\\\\");
+				else if (c != '\r')
+					line.append(c);
+			}
+		}
+		synchronized (out) {
+			out.println(line);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Splits an event line back into its fields, undoing the escapes.
+	 *
+	 * @param line the event line
+	 * @return the fields, starting with the event name
+	 */
+	public static String[] parse(final String line) {
+		final String[] fields = line.split("\t", -1);
+		for (int f = 0; f < fields.length; f++) {
+			final String field = fields[f];
+			if (field.indexOf('\\') >= 0) {
+				final StringBuilder value = new StringBuilder(field.length());
+				for (int i = 0; i < field.length(); i++) {
+					char c = field.charAt(i);
+					if (c == '\\' && i + 1 < field.length()) {
+						c = field.charAt(++i);
+						if (c == 'n')
+							c = '\n';
+						else if (c == 't')
+							c = '\t';
+					}
+					value.append(c);
+				}
+				fields[f] = value.toString();
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * Last progress value written, so that repeats are skipped.
+	 */
+	private int lastProgress;
+	/**
+	 * The stream to write.
+	 */
+	private final PrintStream out;
+	/**
+	 * The port name which starts each line.
+	 */
+	private final String port;
+
+	/**
+	 * Creates an indicator for one port.
+	 *
+	 * @param port the port name
+	 * @param out the stream to write
+	 */
+	public ConsoleIndicator(final String port, final PrintStream out) {
+		lastProgress = -1;
+		this.out = out;
+		this.port = port;
+	}
+	public void begin() {
+		lastProgress = -1;
+		event(out, "begin", port);
+	}
+	public void message(final String message) {
+		event(out, "message", port, message);
+	}
+	public void messageBegin(final String message) {
+		event(out, "step", port, message);
+	}
+	public void messageEnd(final String message) {
+		event(out, "done", port, message);
+	}
+	public void progress(final int progress) {
+		if (progress != lastProgress) {
+			event(out, "progress", port, Integer.toString(progress));
+			lastProgress = progress;
+		}
+	}
+	public void end() {
+		event(out, "end", port);
+	}
+	public String toString() {
+		return String.format("%s[port=%s]", getClass().getSimpleName(), port);
+	}
+}
@@ -0,0 +1,317 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil.cli;
+
+import java.io.*;
+import java.util.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.*;
+
+/**
+ * Command line flasher, which runs the same flash engine as the Eclipse plugin without
+ * needing Eclipse: only VexFlashNG, jssc.jar, jna.jar and platform.jar must be on the class
+ * path.
+ *
+ * Progress goes to standard output as tab separated event lines (see ConsoleIndicator), with
+ * "ok" or "error" once each port is finished. The exit status is 0 if every job succeeded,
+ * 1 if any failed and 2 for bad arguments.
+ *
+ * Usage: VexFlashCLI [-m mode] [-p ports] [-b batch] [-l] [file...]
+ *
+ * Every file is sent in turn using the mode (clean, fw, delta, download-fs or upload-fs,
+ * default clean) to the ports, which are a comma separated list, "all" for every device found
+ * or "auto" (the default) for the only device found. Code is sent to several ports at once.
+ * A batch file holds one job per line, as "mode ports file"; blank lines and lines starting
+ * with # are skipped. -l lists the ports found.
+ */
+public class VexFlashCLI {
+	/**
+	 * Mode names accepted by -m, indexed by UploadParams.MODE_xxx.
+	 */
+	private static final String[] MODE_NAMES = { "clean", "fw", "upload-fs", "download-fs",
+		"delta" };
+	/**
+	 * Port list meaning the only device found.
+	 */
+	private static final String PORTS_AUTO = "auto";
+	/**
+	 * Port list meaning every device found.
+	 */
+	private static final String PORTS_ALL = "all";
+	/**
+	 * Port name used for events which do not belong to a port.
+	 */
+	private static final String NO_PORT = "-";
+
+	/**
+	 * Gets the name of a mode, as accepted by parseMode().
+	 *
+	 * @param mode the UploadParams.MODE_xxx constant
+	 * @return the mode name
+	 */
+	public static String getModeName(final int mode) {
+		return MODE_NAMES[mode];
+	}
+	/**
+	 * Looks up a mode by name.
+	 *
+	 * @param name the mode name
+	 * @return the UploadParams.MODE_xxx constant
+	 * @throws IllegalArgumentException if the name is unknown
+	 */
+	public static int parseMode(final String name) {
+		for (int i = 0; i < MODE_NAMES.length; i++)
+			if (MODE_NAMES[i].equalsIgnoreCase(name))
+				return i;
+		throw new IllegalArgumentException("Unknown mode " + name);
+	}
+	/**
+	 * Reads the jobs in a batch file.
+	 *
+	 * @param batch the batch file
+	 * @return the jobs in order
+	 * @throws IOException if the file cannot be read
+	 * @throws IllegalArgumentException if a line is malformed
+	 */
+	private static List<Job> readBatch(final File batch) throws IOException {
+		final List<Job> jobs = new ArrayList<Job>(16);
+		final BufferedReader br = new BufferedReader(new FileReader(batch));
+		try {
+			String line;
+			int number = 0;
+			while ((line = br.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				// The file name is the rest of the line, so it may contain spaces
+				final String[] fields = line.split("\\s+", 3);
+				if (fields.length < 3)
+					throw new IllegalArgumentException(String.format("%s:%d: expected " +
+						"\"mode ports file\"", batch.getPath(), number));
+				jobs.add(new Job(parseMode(fields[0]), fields[1], new File(fields[2])));
+			}
+		} finally {
+			br.close();
+		}
+		return jobs;
+	}
+	/**
+	 * Runs the command line flasher.
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(final String[] args) {
+		int mode = UploadParams.MODE_CLEAN;
+		String ports = PORTS_AUTO;
+		boolean list = false;
+		final List<Job> jobs = new ArrayList<Job>(16);
+		final List<File> files = new ArrayList<File>(4);
+		try {
+			for (int i = 0; i < args.length; i++) {
+				final String arg = args[i];
+				if (arg.equals("-l"))
+					list = true;
+				else if (arg.equals("-m") || arg.equals("-p") || arg.equals("-b")) {
+					if (i + 1 >= args.length)
+						throw new IllegalArgumentException("Missing value for " + arg);
+					final String value = args[++i];
+					if (arg.equals("-m"))
+						mode = parseMode(value);
+					else if (arg.equals("-p"))
+						ports = value;
+					else
+						jobs.addAll(readBatch(new File(value)));
+				} else if (arg.startsWith("-"))
+					throw new IllegalArgumentException("Unknown option " + arg);
+				else
+					files.add(new File(arg));
+			}
+			for (File file : files)
+				jobs.add(new Job(mode, ports, file));
+			if (jobs.isEmpty() && !list)
+				throw new IllegalArgumentException("Nothing to do");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: VexFlashCLI [-m clean|fw|delta|download-fs|upload-fs] " +
+				"[-p auto|all|port,...] [-b batch] [-l] [file...]");
+			System.exit(2);
+		} catch (IOException e) {
+			System.err.println("Cannot read batch file: " + e.getMessage());
+			System.exit(2);
+		}
+		final VexFlashCLI cli = new VexFlashCLI(System.out);
+		if (list)
+			cli.listPorts();
+		boolean ok = true;
+		for (Job job : jobs)
+			ok &= cli.run(job);
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * One file to send to a set of ports.
+	 */
+	private static class Job {
+		/**
+		 * The UploadParams.MODE_xxx operation.
+		 */
+		private final int mode;
+		/**
+		 * The port list: comma separated names, PORTS_ALL or PORTS_AUTO.
+		 */
+		private final String ports;
+		/**
+		 * The file or directory to transfer.
+		 */
+		private final File target;
+
+		public Job(final int mode, final String ports, final File target) {
+			this.mode = mode;
+			this.ports = ports;
+			this.target = target;
+		}
+		public String toString() {
+			return String.format("%s %s %s", MODE_NAMES[mode], ports, target.getPath());
+		}
+	}
+
+	/**
+	 * The stream for event lines.
+	 */
+	private final PrintStream out;
+
+	/**
+	 * Creates a command line flasher writing events to the given stream.
+	 *
+	 * @param out the stream for event lines
+	 */
+	public VexFlashCLI(final PrintStream out) {
+		this.out = out;
+	}
+	/**
+	 * Reports the end of a job on one port.
+	 *
+	 * @param port the port name
+	 * @param failure the error which stopped the job, or null if it succeeded
+	 */
+	private void finished(final String port, final SerialException failure) {
+		if (failure == null)
+			ConsoleIndicator.event(out, "ok", port);
+		else {
+			final String msg = failure.getMessage();
+			ConsoleIndicator.event(out, "error", port, (msg == null) ? "Failed to communicate " +
+				"with the VEX Cortex" : msg);
+		}
+	}
+	/**
+	 * Writes a "port" event for each port found, with its identifier and friendly name.
+	 */
+	public void listPorts() {
+		for (PortFinder.Serial serial : new VexFlash().locateSerial())
+			ConsoleIndicator.event(out, "port", serial.getComIdentifier(), serial.getID(),
+				serial.getName());
+	}
+	/**
+	 * Works out the ports of a job.
+	 *
+	 * @param ports the port list of the job
+	 * @return the port names
+	 * @throws SerialException if the ports cannot be chosen automatically
+	 */
+	private List<String> resolvePorts(final String ports) throws SerialException {
+		final List<String> names = new ArrayList<String>(8);
+		if (ports.equalsIgnoreCase(PORTS_ALL) || ports.equalsIgnoreCase(PORTS_AUTO)) {
+			for (PortFinder.Serial serial : new VexFlash().locateSerial()) {
+				final String name = serial.getComIdentifier();
+				if (name != null && !names.contains(name))
+					names.add(name);
+			}
+			if (names.isEmpty())
+				throw new SerialException("No VEX Programming Kit or USB A-to-A cable was found");
+			if (names.size() > 1 && ports.equalsIgnoreCase(PORTS_AUTO))
+				throw new SerialException("Several devices were found, pick one with -p or " +
+					"use -p all: " + names);
+		} else
+			for (String name : ports.split(","))
+				if ((name = name.trim()).length() > 0 && !names.contains(name))
+					names.add(name);
+		return names;
+	}
+	/**
+	 * Runs one job to completion.
+	 *
+	 * @param job the job to run
+	 * @return whether the job succeeded on every port
+	 */
+	private boolean run(final Job job) {
+		final List<String> ports;
+		ConsoleIndicator.event(out, "job", NO_PORT, job.toString());
+		try {
+			ports = resolvePorts(job.ports);
+		} catch (SerialException e) {
+			finished(NO_PORT, e);
+			return false;
+		}
+		switch (job.mode) {
+		case UploadParams.MODE_CLEAN:
+		case UploadParams.MODE_FW:
+		case UploadParams.MODE_DELTA:
+			return runFleet(job, ports);
+		default:
+			// File system transfers share the local file, so go one port at a time
+			boolean ok = true;
+			for (String port : ports)
+				ok &= runSession(job, port);
+			return ok;
+		}
+	}
+	/**
+	 * Uploads code to all ports of a job at once.
+	 *
+	 * @param job the job to run
+	 * @param ports the port names
+	 * @return whether the upload succeeded on every port
+	 */
+	private boolean runFleet(final Job job, final List<String> ports) {
+		try {
+			final FleetFlasher fleet = new FleetFlasher(job.mode, null, job.target);
+			return fleet.programAll(ports, new FleetFlasher.Listener() {
+				public Indicator started(final String port) {
+					return new ConsoleIndicator(port, out);
+				}
+				public void finished(final String port, final SerialException failure) {
+					VexFlashCLI.this.finished(port, failure);
+				}
+			}).isEmpty();
+		} catch (SerialException e) {
+			finished(NO_PORT, e);
+		} catch (InterruptedException e) {
+			finished(NO_PORT, new SerialException("Interrupted"));
+		}
+		return false;
+	}
+	/**
+	 * Runs a job on one port.
+	 *
+	 * @param job the job to run
+	 * @param port the port name
+	 * @return whether the job succeeded
+	 */
+	private boolean runSession(final Job job, final String port) {
+		final VexFlash session = new VexFlash();
+		SerialException failure = null;
+		try {
+			session.setup(new UploadParams(job.mode, port, null, job.target));
+			try {
+				session.program(new ConsoleIndicator(port, out));
+			} finally {
+				session.end();
+			}
+		} catch (SerialException e) {
+			failure = e;
+		}
+		finished(port, failure);
+		return failure == null;
+	}
+	public String toString() {
+		return getClass().getSimpleName();
+	}
+}
@@ -2,6 +2,8 @@ package edu.purdue.sigbots.ros.eclipse.flashutil.handlers;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.core.commands.*;
 import org.eclipse.core.resources.*;
@@ -12,6 +14,7 @@ import org.eclipse.ui.handlers.HandlerUtil;
 import org.eclipse.ui.progress.UIJob;
 
 import edu.purdue.sigbots.ros.eclipse.flashutil.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.server.FlashClient;
 
 /**
  * Handles requests to upload the current project to the VEX Cortex.
@@ -20,6 +23,11 @@ import edu.purdue.sigbots.ros.eclipse.flashutil.*;
  * @see org.eclipse.core.commands.AbstractHandler
  */
 public class VexUploadHandler extends AbstractHandler {
+	/**
+	 * How often a connect job waiting for the port checks whether it was cancelled, in
+	 * milliseconds.
+	 */
+	private static final long LOCK_POLL = 100L;
 	/**
 	 * The maximum allowed downloadable file size in bytes.
 	 */
@@ -43,9 +51,11 @@ public class VexUploadHandler extends AbstractHandler {
 	}
 
 	/**
-	 * Lock for synchronizing processorUpload()
+	 * Lock for synchronizing processorUpload() on each port, by port name; uploads to
+	 * different ports may run at once. A semaphore, as an early connection to the port is
+	 * made on another thread than the upload which follows.
 	 */
-	private final Object lockProcessorUpload;
+	private final Map<String, Semaphore> lockProcessorUpload;
 	/**
 	 * Lock for synchronizing procUpload()
 	 */
@@ -67,42 +77,104 @@ public class VexUploadHandler extends AbstractHandler {
 	 * Default constructor to create port prompter object.
 	 */
 	public VexUploadHandler() {
-		lockProcessorUpload = new Object();
+		lockProcessorUpload = new HashMap<String, Semaphore>(8);
 		lockProcUpload = new Object();
 		port = new PortPrompter();
 		util = new VexFlash();
 	}
 	/**
-	 * Compiles the current project in Eclipse. If compilation fails, the upload will not start
+	 * Compiles the current project in Eclipse while the Cortex is connected to in the
+	 * background. If compilation fails, the connection is abandoned, the user code restarted
 	 * and an error message will be displayed. If compilation succeeds, the procUpload method
-	 * will start.
+	 * will start and program the Cortex at once.
 	 * 
 	 * @param project the current project
 	 * @param mode the command mode in use
 	 * @param target the port to use for uploading
+	 * @param connect the job connecting to the port
+	 * @param cl the list of Terminal view objects that were closed before connecting
 	 */
 	protected IStatus compile(final IProject project, final int mode, final String target,
-			final IProgressMonitor mon) {
+			final ConnectJob connect, final Collection<IViewPart> cl, final IProgressMonitor mon) {
+		final File bin = compile(project, mon);
+		if (bin == null)
+			// No need to wait for the handshake to finish
+			connect.cancel();
+		try {
+			connect.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (bin != null)
+			// Construct the UploadParams object and call out
+			procUpload(new UploadParams(mode, target, project.getName(), bin), null,
+				connect.isConnecting() ? connect : null, cl);
+		else {
+			connect.abandon();
+			endUpload(cl);
+		}
+		return mon.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+	}
+	/**
+	 * Compiles the current project in Eclipse. If compilation fails, an error message will be
+	 * displayed.
+	 * 
+	 * @param project the current project
+	 * @param mon the progress monitor to display build progress
+	 * @return the program binary, or null if compilation failed or was cancelled
+	 */
+	private File compile(final IProject project, final IProgressMonitor mon) {
 		// Check for binary file
 		final File prj = project.getLocation().toFile();
-		final File bin = new File(new File(prj, "bin"), "output." + util.getExtension());
+		final File dir = new File(prj, "bin"), bin = new File(dir, "output." +
+			util.getExtension()), elf = new File(dir, "output.elf");
 		try {
 			// Compile program
 			EclipseUtils.compileProject(project, mon);
+			// The linker output is uploaded directly if there is one, so objcopy is optional
+			if (elf.canRead() && elf.isFile())
+				return elf;
 			if (!bin.canRead() || !bin.isFile())
 				uploadError("No program binary was generated in the \"bin\" directory.\n" +
 					"Try using \"Project > Clean\" and uploading again.");
 			else
-				// Construct the UploadParams object and call out
-				startUpload(new UploadParams(mode, target, project.getName(), bin));
+				return bin;
 		} catch (OperationCanceledException e) {
 			// Die quietly if cancelled
-			return Status.CANCEL_STATUS;
+			mon.setCanceled(true);
 		} catch (CoreException e) {
 			uploadError("Errors occurred when compiling program!\nA full list of " +
 				"errors and warnings is available in the Problems view.");
 		}
-		return Status.OK_STATUS;
+		return null;
+	}
+	/**
+	 * Compiles the current project in Eclipse, then uploads it to every VEX Cortex found at
+	 * once. Each device gets its own upload job, so its progress is shown separately.
+	 * 
+	 * @param project the current project
+	 * @param mode the command mode in use
+	 * @param mon the progress monitor to display build progress
+	 */
+	protected IStatus compileAll(final IProject project, final int mode,
+			final IProgressMonitor mon) {
+		final File bin = compile(project, mon);
+		if (bin != null) {
+			try {
+				// Read the image once for all devices, without keeping the build output mapped
+				final FleetFlasher fleet = new FleetFlasher(mode, project.getName(), bin, false);
+				final List<String> ports = fleet.findPorts();
+				if (ports.isEmpty())
+					uploadError("No VEX Programming Kit or USB A-to-A cable was found.\n" +
+						"Ensure that the orange USB cables are tightly plugged into this " +
+						"computer.");
+				for (String target : ports)
+					startUpload(fleet, target);
+			} catch (SerialException e) {
+				uploadError(e.getMessage());
+			}
+		}
+		return mon.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
 	}
 	/**
 	 * Computes the action to be performed and raises the necessary dialogs.
@@ -121,19 +193,43 @@ public class VexUploadHandler extends AbstractHandler {
 		else if (id.contains("downloadFile"))
 			// File download
 			promptFileDownload(target);
-		else {
-			// Upload or upload clean
-			final int mode = (id.contains("Preserve") ? UploadParams.MODE_FW :
-				UploadParams.MODE_CLEAN);
+		else if (id.contains("All")) {
+			// Upload to every device found
+			final IProject project = EclipseUtils.getCurrentProject(window);
+			if (project != null) {
+				EclipseUtils.bulkSave(window);
+				final Job compileJob = new Job("Compiling " + project.getName()) {
+					protected IStatus run(final IProgressMonitor mon) {
+						return compileAll(project, UploadParams.MODE_CLEAN, mon);
+					}
+				};
+				compileJob.setPriority(Job.LONG);
+				compileJob.schedule();
+			} else
+				uploadError("Open a project in the Project Explorer view to select a " +
+					"program to upload.");
+		} else {
+			// Upload, upload changes only or upload clean
+			final int mode;
+			if (id.contains("Delta"))
+				mode = UploadParams.MODE_DELTA;
+			else if (id.contains("Preserve"))
+				mode = UploadParams.MODE_FW;
+			else
+				mode = UploadParams.MODE_CLEAN;
 			// Calculate project, then bulk save
 			final IProject project = EclipseUtils.getCurrentProject(window);
 			if (project != null) {
 				EclipseUtils.bulkSave(window);
+				// Connect while compiling, once terminals have let go of the port
+				final Collection<IViewPart> cl = EclipseUtils.closeTerminals(window, target);
+				final ConnectJob connect = new ConnectJob(target);
 				final Job compileJob = new Job("Compiling " + project.getName()) {
 					protected IStatus run(final IProgressMonitor mon) {
-						return compile(project, mode, target, mon);
+						return compile(project, mode, target, connect, cl, mon);
 					}
 				};
+				connect.schedule(cl.isEmpty() ? 0L : 1500L);
 				// Run compile task
 				compileJob.setPriority(Job.LONG);
 				compileJob.schedule();
@@ -161,28 +257,71 @@ public class VexUploadHandler extends AbstractHandler {
 		}
 		return null;
 	}
+	/**
+	 * Gets the lock which serializes uploads to one port.
+	 *
+	 * @param portName the port name
+	 * @return the lock for that port
+	 */
+	private Semaphore getPortLock(final String portName) {
+		synchronized (lockProcessorUpload) {
+			Semaphore lock = lockProcessorUpload.get(portName);
+			if (lock == null) {
+				lock = new Semaphore(1);
+				lockProcessorUpload.put(portName, lock);
+			}
+			return lock;
+		}
+	}
 	/**
 	 * Actually uploads the code to the processor.
 	 *
 	 * @param params the upload parameters computed by computeAction()
+	 * @param fleet the flasher holding the shared image, or null to read the target file
+	 * @param connect the job which connected to the port early, or null to connect now
 	 * @param mon the progress monitor to use to report upload status
 	 * @throws SerialException if an I/O error occurs
 	 */
-	private void processorUpload(final UploadParams params, final IProgressMonitor mon)
-			throws SerialException {
-		synchronized (lockProcessorUpload) {
+	private void processorUpload(final UploadParams params, final FleetFlasher fleet,
+			final ConnectJob connect, final IProgressMonitor mon) throws SerialException {
+		if (connect != null) {
+			// The port is already locked and the Cortex waiting in the bootloader
+			mon.beginTask(params.getDescription(), 100);
+			connect.program(params, new ProgressMonitorIndicator(mon));
+			mon.done();
+			return;
+		}
+		final Semaphore lock = getPortLock(params.getPort());
+		lock.acquireUninterruptibly();
+		try {
 			// Create flasher and populate the parameters
 			final Indicator output = new ProgressMonitorIndicator(mon);
-			util.setup(params);
-			// Begin upload
-			try {
-				mon.beginTask(params.getDescription(), 100);
-				util.program(output);
-			} finally {
-				util.end();
+			mon.beginTask(params.getDescription(), 100);
+			final FlashClient client;
+			if (fleet != null)
+				fleet.program(params.getPort(), output);
+			else if ((client = FlashClient.connect()) != null) {
+				// A flash server owns the ports, queue the job there
+				try {
+					client.run(params, 0, output);
+				} finally {
+					client.close();
+				}
+			} else {
+				// One session for this port
+				final VexFlash session = new VexFlash();
+				session.setup(params);
+				// Begin upload
+				try {
+					session.program(output);
+				} finally {
+					session.end();
+				}
 			}
 			// All done
 			mon.done();
+		} finally {
+			lock.release();
 		}
 	}
 	/**
@@ -190,25 +329,32 @@ public class VexUploadHandler extends AbstractHandler {
 	 * compile task does not run on the UI thread.
 	 * 
 	 * @param params the upload parameters computed by computeAction()
+	 * @param fleet the flasher holding the shared image, or null to read the target file
+	 * @param connect the job which connected to the port early, or null to connect now
+	 * @param cl the list of Terminal view objects that were closed before uploading
 	 */
-	private void procUpload(final UploadParams params, final Collection<IViewPart> cl) {
+	private void procUpload(final UploadParams params, final FleetFlasher fleet,
+			final ConnectJob connect, final Collection<IViewPart> cl) {
 		synchronized (lockProcUpload) {
-			final Job job = new Job(params.getDescription()) {
+			final String name = (fleet == null) ? params.getDescription() :
+				params.getDescription() + " on " + params.getPort();
+			final Job job = new Job(name) {
 				protected IStatus run(final IProgressMonitor mon) {
 					IStatus status = Status.OK_STATUS;
 					try {
 						// Upload to processor
-						processorUpload(params, mon);
+						processorUpload(params, fleet, connect, mon);
 					} catch (OperationCanceledException e) {
 						// Die quietly if cancelled
 						status = Status.CANCEL_STATUS;
 					} catch (SerialException uploadError) {
 						// Oh no!
 						final String msg = uploadError.getMessage();
+						final String where = (fleet == null) ? "" : params.getPort() + ": ";
 						if (msg == null)
-							uploadError("Failed to upload the project to the VEX Cortex.");
+							uploadError(where + "Failed to upload the project to the VEX Cortex.");
 						else
-							uploadError(msg);
+							uploadError(where + msg);
 					}
 					// Ensure that the terminals are re-opened if need be
 					endUpload(cl);
@@ -217,7 +363,7 @@ public class VexUploadHandler extends AbstractHandler {
 			};
 			job.setPriority(Job.LONG);
 			// Wait for terminals to close fully if required
-			if (cl.isEmpty())
+			if (cl.isEmpty() || connect != null)
 				job.schedule();
 			else
 				job.schedule(1500L);
@@ -265,8 +411,13 @@ public class VexUploadHandler extends AbstractHandler {
 	 */
 	protected IStatus setSerialPort(final ExecutionEvent event) {
 		final String portID = port.getPort();
+		final String id = event.getCommand().getId();
 		final IStatus status;
-		if (portID != null) {
+		if (id != null && id.contains("All")) {
+			// Every device found will be used, no need to pick one
+			computeAction(event, null);
+			status = Status.OK_STATUS;
+		} else if (portID != null) {
 			// Use port from last time, validated already by port.getPort()
 			computeAction(event, portID);
 			status = Status.OK_STATUS;
@@ -310,10 +461,30 @@ public class VexUploadHandler extends AbstractHandler {
 	 * @param params the upload parameters computed by computeAction()
 	 */
 	protected void startUpload(final UploadParams params) {
+		startUpload(params, null);
+	}
+	/**
+	 * Starts uploading a shared image to one port of a fleet.
+	 * 
+	 * @param fleet the flasher holding the image
+	 * @param target the port to use for uploading
+	 */
+	protected void startUpload(final FleetFlasher fleet, final String target) {
+		startUpload(fleet.getParams(target), fleet);
+	}
+	/**
+	 * Starts the upload process by closing any Terminal views open on the port; then calls
+	 * procUpload().
+	 * 
+	 * @param params the upload parameters
+	 * @param fleet the flasher holding the shared image, or null to read the target file
+	 */
+	private void startUpload(final UploadParams params, final FleetFlasher fleet) {
 		// Close all terminal views open
 		final UIJob ui = new UIJob("Close terminals") {
 			public IStatus runInUIThread(IProgressMonitor monitor) {
-				procUpload(params, EclipseUtils.closeTerminals(window, params.getPort()));
+				procUpload(params, fleet, null, EclipseUtils.closeTerminals(window,
+					params.getPort()));
 				return Status.OK_STATUS;
 			}
 		};
@@ -328,4 +499,134 @@ public class VexUploadHandler extends AbstractHandler {
 	protected void uploadError(final String message) {
 		EclipseUtils.displayError(window, "Upload Error", message);
 	}
+
+	/**
+	 * Connects to the Cortex on one port while the project is being compiled, holding the
+	 * port's lock until the upload which follows is over. Nothing is done if a flash server
+	 * is running, as it owns the ports.
+	 */
+	protected class ConnectJob extends Job {
+		/**
+		 * The flash utility while it is connecting, so that cancelling can reach it, or null.
+		 */
+		private volatile VexFlash connecting;
+		/**
+		 * The error which stopped the connection, or null.
+		 */
+		private SerialException failure;
+		/**
+		 * The lock of the port, held while connected.
+		 */
+		private final Semaphore lock;
+		/**
+		 * The session connected to the port, or null.
+		 */
+		private VexFlash session;
+		/**
+		 * The port to use for uploading.
+		 */
+		private final String target;
+
+		/**
+		 * Creates a job connecting to a port.
+		 * 
+		 * @param target the port to use for uploading
+		 */
+		public ConnectJob(final String target) {
+			super("Connecting to VEX Cortex on " + target);
+			connecting = null;
+			failure = null;
+			lock = getPortLock(target);
+			session = null;
+			this.target = target;
+			setPriority(Job.LONG);
+		}
+		/**
+		 * Gives up the connection after compilation failed or was cancelled, restarting the
+		 * user code. Must only be called once the job is done.
+		 */
+		public void abandon() {
+			if (session != null)
+				try {
+					session.disconnect(new ProgressMonitorIndicator(new NullProgressMonitor()));
+				} catch (SerialException ignore) {
+					// The Cortex will be reset by the next upload anyway
+				} finally {
+					session.end();
+					session = null;
+					lock.release();
+				}
+		}
+		protected void canceling() {
+			final VexFlash flash = connecting;
+			if (flash != null)
+				flash.cancel();
+		}
+		/**
+		 * Checks whether this job has connected, or tried to. Must only be called once the
+		 * job is done.
+		 * 
+		 * @return false if a flash server will make the connection instead
+		 */
+		public boolean isConnecting() {
+			return session != null || failure != null;
+		}
+		/**
+		 * Uploads to the connected Cortex, then gives up the port. Must only be called once
+		 * the job is done.
+		 * 
+		 * @param params the upload parameters
+		 * @param output the indicator for status messages
+		 * @throws SerialException if connecting failed or an I/O error occurs
+		 */
+		public void program(final UploadParams params, final Indicator output)
+				throws SerialException {
+			if (failure != null)
+				throw failure;
+			try {
+				session.setup(params);
+				session.program(output);
+			} finally {
+				session.end();
+				session = null;
+				lock.release();
+			}
+		}
+		protected IStatus run(final IProgressMonitor mon) {
+			final FlashClient client = FlashClient.connect();
+			if (client != null) {
+				// The flash server will connect once the job arrives
+				client.close();
+				return Status.OK_STATUS;
+			}
+			// Another upload may hold the port, keep checking whether the build gave up
+			try {
+				while (!lock.tryAcquire(LOCK_POLL, TimeUnit.MILLISECONDS))
+					if (mon.isCanceled())
+						return Status.CANCEL_STATUS;
+			} catch (InterruptedException e) {
+				return Status.CANCEL_STATUS;
+			}
+			final VexFlash flash = new VexFlash();
+			connecting = flash;
+			mon.beginTask(getName(), IProgressMonitor.UNKNOWN);
+			try {
+				if (!mon.isCanceled()) {
+					flash.connect(target, new ProgressMonitorIndicator(mon));
+					session = flash;
+				}
+			} catch (SerialException e) {
+				failure = e;
+			} finally {
+				connecting = null;
+				// Whatever went wrong, the port must not stay locked
+				if (session == null) {
+					flash.end();
+					lock.release();
+				}
+				mon.done();
+			}
+			return mon.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+		}
+	}
 }
\ No newline at end of file
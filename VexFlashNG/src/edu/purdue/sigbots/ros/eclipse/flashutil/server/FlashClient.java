@@ -0,0 +1,130 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil.server;
+
+import java.io.*;
+import java.net.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.cli.*;
+
+/**
+ * Runs jobs on a FlashServer, passing their progress to an Indicator as if the upload ran
+ * in this process.
+ */
+public class FlashClient {
+	/**
+	 * How long to wait for the server to accept a connection, in milliseconds.
+	 */
+	private static final int CONNECT_TIMEOUT = 250;
+
+	/**
+	 * Connects to the flash server on this computer, if one is running.
+	 *
+	 * @return the client, or null if no server is listening on the default port
+	 */
+	public static FlashClient connect() {
+		try {
+			return new FlashClient(FlashServer.DEFAULT_PORT);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Lines from the server.
+	 */
+	private final BufferedReader in;
+	/**
+	 * Lines to the server.
+	 */
+	private final PrintStream out;
+	/**
+	 * The connection.
+	 */
+	private final Socket socket;
+
+	/**
+	 * Connects to a flash server on this computer.
+	 *
+	 * @param port the TCP port of the server
+	 * @throws IOException if the server cannot be reached
+	 */
+	public FlashClient(final int port) throws IOException {
+		socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(InetAddress.getByName(null), port),
+				CONNECT_TIMEOUT);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+	/**
+	 * Disconnects from the server. Jobs which were submitted still run.
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException ignore) { }
+	}
+	/**
+	 * Submits a job and waits for it to finish. Must not be called by several threads at
+	 * once on one client.
+	 *
+	 * @param params what to do
+	 * @param priority the job priority, higher runs first
+	 * @param output the indicator for status messages
+	 * @throws SerialException if the job fails, is cancelled or the server goes away
+	 */
+	public void run(final UploadParams params, final int priority, final Indicator output)
+			throws SerialException {
+		String id = null;
+		ConsoleIndicator.event(out, "submit", VexFlashCLI.getModeName(params.getOperation()),
+			params.getPort(), Integer.toString(priority), params.getTarget().getAbsolutePath(),
+			(params.getProject() == null) ? "" : params.getProject());
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				final String[] fields = ConsoleIndicator.parse(line);
+				final String event = fields[0], detail = (fields.length > 3) ? fields[3] : "";
+				if (fields.length < 3)
+					continue;
+				if (id == null) {
+					// Rejected before it got a number
+					if (event.equals("error"))
+						throw new SerialException(detail);
+					id = fields[1];
+				} else if (!id.equals(fields[1]))
+					continue;
+				if (event.equals("ok"))
+					return;
+				else if (event.equals("error"))
+					throw new SerialException(detail);
+				else if (event.equals("cancelled"))
+					throw new SerialException("The upload was cancelled");
+				else if (event.equals("queued") && !detail.equals("0"))
+					output.message("Waiting for " + detail + " other jobs on " + fields[2]);
+				else if (event.equals("begin"))
+					output.begin();
+				else if (event.equals("end"))
+					output.end();
+				else if (event.equals("message"))
+					output.message(detail);
+				else if (event.equals("step"))
+					output.messageBegin(detail);
+				else if (event.equals("done"))
+					output.messageEnd(detail);
+				else if (event.equals("progress"))
+					output.progress(Integer.parseInt(detail));
+			}
+		} catch (IOException e) {
+			throw new SerialException("Lost connection to the flash server", e);
+		} catch (NumberFormatException e) {
+			throw new SerialException("Bad reply from the flash server", e);
+		}
+		throw new SerialException("The flash server closed the connection");
+	}
+	public String toString() {
+		return String.format("%s[socket=%s]", getClass().getSimpleName(), socket);
+	}
+}
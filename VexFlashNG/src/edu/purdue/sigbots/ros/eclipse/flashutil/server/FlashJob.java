@@ -0,0 +1,179 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil.server;
+
+import java.io.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.cli.*;
+
+/**
+ * One upload, FS download or FS upload waiting for or using a port of the flash server. Jobs
+ * with a higher priority run first; jobs of the same priority run in the order submitted.
+ */
+public class FlashJob implements Comparable<FlashJob> {
+	/**
+	 * Job state: waiting in its port's queue.
+	 */
+	public static final int STATE_QUEUED = 0;
+	/**
+	 * Job state: using the port.
+	 */
+	public static final int STATE_RUNNING = 1;
+	/**
+	 * Job state: finished successfully.
+	 */
+	public static final int STATE_DONE = 2;
+	/**
+	 * Job state: finished with an error.
+	 */
+	public static final int STATE_FAILED = 3;
+	/**
+	 * Job state: removed from the queue before it ran.
+	 */
+	public static final int STATE_CANCELLED = 4;
+	/**
+	 * Names of the job states, for replies.
+	 */
+	private static final String[] STATE_NAMES = { "queued", "running", "done", "failed",
+		"cancelled" };
+
+	/**
+	 * Gets the name of a job state.
+	 *
+	 * @param state the STATE_xxx constant
+	 * @return the state name
+	 */
+	public static String getStateName(final int state) {
+		return STATE_NAMES[state];
+	}
+
+	/**
+	 * Unique job number.
+	 */
+	private final int id;
+	/**
+	 * Stream of the client which submitted the job, where its events go.
+	 */
+	private final PrintStream out;
+	/**
+	 * What to do.
+	 */
+	private final UploadParams params;
+	/**
+	 * Priority, higher runs first.
+	 */
+	private final int priority;
+	/**
+	 * Current STATE_xxx state.
+	 */
+	private volatile int state;
+
+	/**
+	 * Creates a queued job.
+	 *
+	 * @param id the unique job number, which also orders jobs of the same priority
+	 * @param params what to do
+	 * @param priority the priority, higher runs first
+	 * @param out the stream for the job's events
+	 */
+	public FlashJob(final int id, final UploadParams params, final int priority,
+			final PrintStream out) {
+		this.id = id;
+		this.out = out;
+		this.params = params;
+		this.priority = priority;
+		state = STATE_QUEUED;
+	}
+	public int compareTo(final FlashJob other) {
+		if (priority != other.priority)
+			return (priority > other.priority) ? -1 : 1;
+		return (id < other.id) ? -1 : ((id == other.id) ? 0 : 1);
+	}
+	/**
+	 * Writes an event of this job to its client.
+	 *
+	 * @param event the event name
+	 * @param details the event details
+	 */
+	public void event(final String event, final String... details) {
+		ConsoleIndicator.event(out, event, getLabel(), details);
+	}
+	/**
+	 * Gets the unique job number.
+	 *
+	 * @return the job number
+	 */
+	public int getId() {
+		return id;
+	}
+	/**
+	 * Gets the job number and port name fields which begin every event line of this job.
+	 *
+	 * @return the leading fields, separated by a tab
+	 */
+	public String getLabel() {
+		return id + "\t" + params.getPort();
+	}
+	/**
+	 * Gets what the job does.
+	 *
+	 * @return the upload parameters
+	 */
+	public UploadParams getParams() {
+		return params;
+	}
+	/**
+	 * Gets the job priority.
+	 *
+	 * @return the priority, higher runs first
+	 */
+	public int getPriority() {
+		return priority;
+	}
+	/**
+	 * Gets the job state.
+	 *
+	 * @return the STATE_xxx state
+	 */
+	public int getState() {
+		return state;
+	}
+	/**
+	 * Runs the job on the calling thread, reporting progress to its client.
+	 *
+	 * @param history the record of images shared by all jobs
+	 */
+	public void run(final ImageHistory history) {
+		final VexFlash session = new VexFlash();
+		state = STATE_RUNNING;
+		event("running");
+		try {
+			session.setHistory(history);
+			session.setup(params);
+			try {
+				session.program(new ConsoleIndicator(getLabel(), out));
+			} finally {
+				session.end();
+			}
+			state = STATE_DONE;
+			event("ok");
+		} catch (SerialException e) {
+			final String msg = e.getMessage();
+			state = STATE_FAILED;
+			event("error", (msg == null) ? "Failed to communicate with the VEX Cortex" : msg);
+		} catch (RuntimeException e) {
+			state = STATE_FAILED;
+			event("error", e.toString());
+		}
+	}
+	/**
+	 * Changes the job state.
+	 *
+	 * @param state the new STATE_xxx state
+	 */
+	void setState(final int state) {
+		this.state = state;
+	}
+	public String toString() {
+		return String.format("%s[id=%d,priority=%d,state=%s,params=%s]",
+			getClass().getSimpleName(), id, priority, getStateName(state), params);
+	}
+}
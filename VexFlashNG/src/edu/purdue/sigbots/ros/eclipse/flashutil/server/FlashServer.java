@@ -0,0 +1,307 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil.server;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.cli.*;
+
+/**
+ * Long running flash service, which accepts jobs from any number of local clients (IDEs,
+ * scripts or CI) and runs them through one queue per serial port. The port list is kept
+ * between jobs, and the serial libraries stay loaded, so a job only pays for its own upload.
+ *
+ * Clients connect over TCP to the loopback address only, and exchange tab separated lines in
+ * the ConsoleIndicator format. Requests are:
+ *
+ * submit, mode, port, priority, file [, project]: queues a job; the port may be "auto" for
+ * the only device found. Every event of the job is then sent on the same connection, as the
+ * event name, the job number, the port name and any details, ending with ok, error or
+ * cancelled.
+ * cancel, job number: removes a job which has not started yet.
+ * jobs: lists each running or waiting job as job, number, port, state, priority, mode, file.
+ * ports: lists the ports found as port, name, ID, friendly name.
+ *
+ * Lists end with an "end" line; bad requests get an error line with "-" as the job number.
+ *
+ * Usage: FlashServer [-p tcpport]
+ */
+public class FlashServer {
+	/**
+	 * TCP port on which the server listens by default.
+	 */
+	public static final int DEFAULT_PORT = 47307;
+	/**
+	 * Port list meaning the only device found.
+	 */
+	private static final String PORT_AUTO = "auto";
+	/**
+	 * How long the list of ports is reused before looking again, in milliseconds.
+	 */
+	private static final long PORT_REFRESH = 2000L;
+	/**
+	 * Job number and port used for replies which do not belong to a job.
+	 */
+	private static final String NO_JOB = "-\t-";
+
+	/**
+	 * Runs the flash server until the process is killed.
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(final String[] args) {
+		int port = DEFAULT_PORT;
+		try {
+			for (int i = 0; i < args.length - 1; i += 2) {
+				if (args[i].equals("-p"))
+					port = Integer.parseInt(args[i + 1]);
+				else
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+			if (args.length % 2 != 0)
+				throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: FlashServer [-p tcpport]");
+			System.exit(2);
+		}
+		try {
+			final FlashServer server = new FlashServer(port);
+			System.out.println("Listening on " + server.getPort());
+			server.serve();
+		} catch (IOException e) {
+			System.err.println("Cannot listen on port " + port + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Record of images shared by all jobs.
+	 */
+	private final ImageHistory history;
+	/**
+	 * Jobs which may still be cancelled or listed, by job number.
+	 */
+	private final Map<Integer, FlashJob> jobs;
+	/**
+	 * Number of the next job.
+	 */
+	private int nextId;
+	/**
+	 * The ports found the last time, or null.
+	 */
+	private List<PortFinder.Serial> ports;
+	/**
+	 * Time at which the ports were found, from System.currentTimeMillis().
+	 */
+	private long portsTime;
+	/**
+	 * Queue of each port, by port name.
+	 */
+	private final Map<String, PortQueue> queues;
+	/**
+	 * The listening socket.
+	 */
+	private final ServerSocket socket;
+
+	/**
+	 * Creates a flash server listening on the loopback address. The serial port list is
+	 * loaded at once, so that the first job does not wait for it.
+	 *
+	 * @param port the TCP port, or 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 */
+	public FlashServer(final int port) throws IOException {
+		history = ImageHistory.getDefault();
+		jobs = new HashMap<Integer, FlashJob>(32);
+		nextId = 1;
+		queues = new HashMap<String, PortQueue>(8);
+		socket = new ServerSocket(port, 16, InetAddress.getByName(null));
+		getPorts();
+	}
+	/**
+	 * Stops accepting clients. Jobs already queued still run.
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException ignore) { }
+	}
+	/**
+	 * Gets the ports found, reusing the list for a short while.
+	 *
+	 * @return the serial ports which may hold a VEX device
+	 */
+	private synchronized List<PortFinder.Serial> getPorts() {
+		final long now = System.currentTimeMillis();
+		if (ports == null || now - portsTime >= PORT_REFRESH) {
+			ports = new VexFlash().locateSerial();
+			portsTime = now;
+		}
+		return ports;
+	}
+	/**
+	 * Gets the TCP port on which the server listens.
+	 *
+	 * @return the port number
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+	/**
+	 * Gets the queue of a port, creating it if needed.
+	 *
+	 * @param port the port name
+	 * @return the port's queue
+	 */
+	private synchronized PortQueue getQueue(final String port) {
+		PortQueue queue = queues.get(port);
+		if (queue == null) {
+			queue = new PortQueue(port, history);
+			queues.put(port, queue);
+		}
+		return queue;
+	}
+	/**
+	 * Handles one request line from a client.
+	 *
+	 * @param fields the request fields
+	 * @param out the client's stream
+	 */
+	private void handle(final String[] fields, final PrintStream out) {
+		final String command = fields[0];
+		if (command.equals("submit") && (fields.length == 5 || fields.length == 6))
+			submit(fields, out);
+		else if (command.equals("cancel") && fields.length == 2) {
+			final FlashJob job;
+			try {
+				synchronized (this) {
+					job = jobs.get(Integer.valueOf(fields[1]));
+				}
+			} catch (NumberFormatException e) {
+				ConsoleIndicator.event(out, "error", NO_JOB, "Bad job number " + fields[1]);
+				return;
+			}
+			if (job == null || !getQueue(job.getParams().getPort()).cancel(job))
+				ConsoleIndicator.event(out, "error", NO_JOB, "Job " + fields[1] +
+					" is not waiting");
+		} else if (command.equals("jobs") && fields.length == 1) {
+			final List<PortQueue> all;
+			synchronized (this) {
+				all = new ArrayList<PortQueue>(queues.values());
+			}
+			for (PortQueue queue : all)
+				for (FlashJob job : queue.getJobs()) {
+					final UploadParams params = job.getParams();
+					ConsoleIndicator.event(out, "job", job.getLabel(),
+						FlashJob.getStateName(job.getState()), Integer.toString(job.getPriority()),
+						VexFlashCLI.getModeName(params.getOperation()),
+						params.getTarget().getPath());
+				}
+			ConsoleIndicator.event(out, "end", NO_JOB);
+		} else if (command.equals("ports") && fields.length == 1) {
+			for (PortFinder.Serial serial : getPorts())
+				ConsoleIndicator.event(out, "port", serial.getComIdentifier(), serial.getID(),
+					serial.getName());
+			ConsoleIndicator.event(out, "end", NO_JOB);
+		} else
+			ConsoleIndicator.event(out, "error", NO_JOB, "Bad request " + command);
+	}
+	/**
+	 * Finds the only device connected.
+	 *
+	 * @return its port name
+	 * @throws IllegalArgumentException if there is not exactly one device
+	 */
+	private String resolveAuto() {
+		final List<PortFinder.Serial> found = getPorts();
+		if (found.size() == 1)
+			return found.get(0).getComIdentifier();
+		if (found.isEmpty())
+			throw new IllegalArgumentException("No VEX Programming Kit or USB A-to-A cable " +
+				"was found");
+		throw new IllegalArgumentException("Several devices were found, pick one");
+	}
+	/**
+	 * Talks to one client until it disconnects.
+	 *
+	 * @param client the client socket
+	 */
+	private void serve(final Socket client) {
+		try {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(
+				client.getInputStream(), "UTF-8"));
+			final PrintStream out = new PrintStream(new BufferedOutputStream(
+				client.getOutputStream()), false, "UTF-8");
+			try {
+				String line;
+				while ((line = in.readLine()) != null)
+					if (line.length() > 0)
+						handle(ConsoleIndicator.parse(line), out);
+			} finally {
+				// Running jobs carry on; their events are dropped
+				in.close();
+			}
+		} catch (IOException ignore) {
+			// Client went away
+		} finally {
+			try {
+				client.close();
+			} catch (IOException ignore) { }
+		}
+	}
+	/**
+	 * Accepts clients until the server is closed, each on its own thread.
+	 */
+	public void serve() {
+		while (!socket.isClosed()) {
+			final Socket client;
+			try {
+				client = socket.accept();
+			} catch (IOException e) {
+				// Closed
+				break;
+			}
+			final Thread thread = new Thread("Flash client " + client.getPort()) {
+				public void run() {
+					serve(client);
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	/**
+	 * Queues a job.
+	 *
+	 * @param fields the request fields: submit, mode, port, priority, file [, project]
+	 * @param out the client's stream, where the job's events go
+	 */
+	private void submit(final String[] fields, final PrintStream out) {
+		final FlashJob job;
+		try {
+			final int mode = VexFlashCLI.parseMode(fields[1]), priority = Integer.parseInt(
+				fields[3]);
+			final String port = fields[2].equalsIgnoreCase(PORT_AUTO) ? resolveAuto() :
+				fields[2];
+			final UploadParams params = new UploadParams(mode, port, (fields.length > 5 &&
+				fields[5].length() > 0) ? fields[5] : null, new File(fields[4]));
+			synchronized (this) {
+				// Forget jobs which are over
+				for (Iterator<FlashJob> it = jobs.values().iterator(); it.hasNext();)
+					if (it.next().getState() > FlashJob.STATE_RUNNING)
+						it.remove();
+				job = new FlashJob(nextId++, params, priority, out);
+				jobs.put(job.getId(), job);
+			}
+		} catch (IllegalArgumentException e) {
+			ConsoleIndicator.event(out, "error", NO_JOB, e.getMessage());
+			return;
+		}
+		getQueue(job.getParams().getPort()).add(job);
+	}
+	public String toString() {
+		return String.format("%s[port=%d,queues=%s]", getClass().getSimpleName(), getPort(),
+			queues.keySet());
+	}
+}
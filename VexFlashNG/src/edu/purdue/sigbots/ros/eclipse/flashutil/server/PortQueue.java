@@ -0,0 +1,121 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil.server;
+
+import java.util.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.*;
+
+/**
+ * The jobs waiting for one serial port. A worker thread takes the jobs one at a time in
+ * priority order, so that jobs on one port never overlap while different ports run in
+ * parallel. The worker ends once the queue is empty and starts again with the next job.
+ */
+public class PortQueue {
+	/**
+	 * The job using the port, or null.
+	 */
+	private FlashJob current;
+	/**
+	 * Record of images shared by all jobs.
+	 */
+	private final ImageHistory history;
+	/**
+	 * The port name.
+	 */
+	private final String port;
+	/**
+	 * Jobs waiting for the port, highest priority first.
+	 */
+	private final PriorityQueue<FlashJob> queue;
+	/**
+	 * Whether a worker thread is running.
+	 */
+	private boolean working;
+
+	/**
+	 * Creates an empty queue for a port.
+	 *
+	 * @param port the port name
+	 * @param history the record of images shared by all jobs
+	 */
+	public PortQueue(final String port, final ImageHistory history) {
+		current = null;
+		this.history = history;
+		this.port = port;
+		queue = new PriorityQueue<FlashJob>(8);
+		working = false;
+	}
+	/**
+	 * Adds a job to the queue, starting the worker if it is idle.
+	 *
+	 * @param job the job to run
+	 */
+	public synchronized void add(final FlashJob job) {
+		queue.add(job);
+		job.event("queued", Integer.toString(queue.size() - 1));
+		if (!working) {
+			final Thread worker = new Thread("Flash queue " + port) {
+				public void run() {
+					work();
+				}
+			};
+			worker.setDaemon(true);
+			working = true;
+			worker.start();
+		}
+	}
+	/**
+	 * Removes a job which has not started yet.
+	 *
+	 * @param job the job to cancel
+	 * @return whether the job was removed; false if it is running or already finished
+	 */
+	public synchronized boolean cancel(final FlashJob job) {
+		if (!queue.remove(job))
+			return false;
+		job.setState(FlashJob.STATE_CANCELLED);
+		job.event("cancelled");
+		return true;
+	}
+	/**
+	 * Gets the port name.
+	 *
+	 * @return the port name
+	 */
+	public String getPort() {
+		return port;
+	}
+	/**
+	 * Gets the running and waiting jobs.
+	 *
+	 * @return the running job, if any, then the waiting jobs in the order they will run
+	 */
+	public synchronized List<FlashJob> getJobs() {
+		final List<FlashJob> jobs = new ArrayList<FlashJob>(queue.size() + 1);
+		final FlashJob[] waiting = queue.toArray(new FlashJob[queue.size()]);
+		if (current != null)
+			jobs.add(current);
+		Arrays.sort(waiting);
+		jobs.addAll(Arrays.asList(waiting));
+		return jobs;
+	}
+	/**
+	 * Runs jobs until the queue is empty.
+	 */
+	private void work() {
+		while (true) {
+			final FlashJob job;
+			synchronized (this) {
+				job = queue.poll();
+				current = job;
+				if (job == null) {
+					working = false;
+					return;
+				}
+			}
+			job.run(history);
+		}
+	}
+	public synchronized String toString() {
+		return String.format("%s[port=%s,current=%s,waiting=%d]", getClass().getSimpleName(),
+			port, current, queue.size());
+	}
+}
@@ -0,0 +1,109 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil.sim;
+
+import java.util.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.*;
+
+/**
+ * Describes the timing of a simulated link between the host and a Cortex.
+ */
+public class LatencyProfile {
+	/**
+	 * A link with no delays at all, for driving the flash engine at full speed.
+	 */
+	public static final LatencyProfile INSTANT = new LatencyProfile(0L, 0L, 0L, false);
+	/**
+	 * A Cortex on the USB tether cable. The USB-serial bridge polls once per 1 ms full speed
+	 * frame, and the UART behind it runs at the host's baud rate.
+	 */
+	public static final LatencyProfile USB_TETHER = new LatencyProfile(1000000L, 0L, 1000000L,
+		true);
+	/**
+	 * A Cortex reached over the VEXnet keys through the Programming Kit. Every transfer
+	 * crosses the joystick and the wireless link, which batches data into radio packets
+	 * roughly every 10 ms.
+	 */
+	public static final LatencyProfile VEXNET = new LatencyProfile(10000000L, 20000L, 8000000L,
+		true);
+
+	/**
+	 * Extra time added to every byte, in nanoseconds.
+	 */
+	private final long byteNanos;
+	/**
+	 * Maximum random delay added to each transfer, in nanoseconds.
+	 */
+	private final long jitterNanos;
+	/**
+	 * Fixed one-way delay of each transfer, in nanoseconds.
+	 */
+	private final long latencyNanos;
+	/**
+	 * Whether the serialization time at the current baud rate is added to every byte.
+	 */
+	private final boolean lineRate;
+
+	/**
+	 * Creates a new latency profile.
+	 *
+	 * @param latencyNanos the fixed one-way delay of each transfer in nanoseconds
+	 * @param byteNanos the extra delay per byte in nanoseconds
+	 * @param jitterNanos the maximum random delay added to each transfer in nanoseconds
+	 * @param lineRate whether bytes also take the time needed to send them at the current
+	 * baud rate and parity
+	 */
+	public LatencyProfile(final long latencyNanos, final long byteNanos, final long jitterNanos,
+			final boolean lineRate) {
+		if (latencyNanos < 0L || byteNanos < 0L || jitterNanos < 0L)
+			throw new IllegalArgumentException("Delays must be non-negative");
+		this.byteNanos = byteNanos;
+		this.jitterNanos = jitterNanos;
+		this.latencyNanos = latencyNanos;
+		this.lineRate = lineRate;
+	}
+	/**
+	 * Gets the time needed to send one byte.
+	 *
+	 * @param baud the current baud rate
+	 * @param parity the current parity, SerialTransport.PARITY_NONE or PARITY_EVEN
+	 * @return the time per byte in nanoseconds
+	 */
+	public long getByteNanos(final int baud, final int parity) {
+		long time = byteNanos;
+		if (lineRate && baud > 0)
+			// Start bit, 8 data bits, optional parity bit, stop bit
+			time += (parity == SerialTransport.PARITY_NONE ? 10L : 11L) * 1000000000L / baud;
+		return time;
+	}
+	/**
+	 * Gets the maximum random delay added to each transfer.
+	 *
+	 * @return the jitter in nanoseconds
+	 */
+	public long getJitterNanos() {
+		return jitterNanos;
+	}
+	/**
+	 * Gets the fixed one-way delay of each transfer.
+	 *
+	 * @return the latency in nanoseconds
+	 */
+	public long getLatencyNanos() {
+		return latencyNanos;
+	}
+	/**
+	 * Computes the one-way delay of a transfer, including a random jitter.
+	 *
+	 * @param random the random source to use
+	 * @return the delay in nanoseconds
+	 */
+	public long sampleDelay(final Random random) {
+		if (jitterNanos <= 0L)
+			return latencyNanos;
+		return latencyNanos + (long)(random.nextDouble() * jitterNanos);
+	}
+	public String toString() {
+		return String.format("%s[latency=%dus,byte=%dns,jitter=%dus,lineRate=%b]",
+			getClass().getSimpleName(), latencyNanos / 1000L, byteNanos, jitterNanos / 1000L,
+			lineRate);
+	}
+}
@@ -0,0 +1,764 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil.sim;
+
+import edu.purdue.sigbots.ros.eclipse.flashutil.*;
+
+/**
+ * In-process model of a VEX Cortex. The VEXnet firmware layer recognizes the sequences which
+ * VexFlash sends before the bootloader is running (STOP_USER_CODE, SYSINFO, BOOTLOAD), and
+ * the STM32 USART bootloader behind it implements GET, GVR, GID, RD, WM, ER, GO and the
+ * protection commands with the usual ACK/NACK and checksum rules.
+ *
+ * The simulator is purely reactive: bytes from the host are fed in one at a time with the
+ * time at which they arrive, and response bytes are collected with takeOutput(). Time spent
+ * erasing or programming is reported through takeBusyNanos() so that a link model can delay
+ * the responses accordingly.
+ */
+public class STMBootloaderSimulator {
+	/**
+	 * Acknowledge byte sent by the bootloader.
+	 */
+	public static final int ACK = 0x79;
+	/**
+	 * Non-acknowledge byte sent by the bootloader.
+	 */
+	public static final int NACK = 0x1F;
+	/**
+	 * Bootloader version reported by GET.
+	 */
+	public static final int BOOTLOADER_VERSION = 0x22;
+	/**
+	 * User code is running.
+	 */
+	public static final int MODE_USER = 0;
+	/**
+	 * User code has been stopped, VEXnet firmware is in control.
+	 */
+	public static final int MODE_FIRMWARE = 1;
+	/**
+	 * The Cortex has been reset into the bootloader, which is waiting for the 0x7F
+	 * autobaud byte.
+	 */
+	public static final int MODE_BOOT_WAIT = 2;
+	/**
+	 * The bootloader has locked its baud rate and is accepting commands.
+	 */
+	public static final int MODE_BOOTLOADER = 3;
+
+	/**
+	 * Start of SRAM; the STMDevice RAM start is the first address usable by user data.
+	 */
+	private static final int RAM_BASE = 0x20000000;
+	/**
+	 * Command set reported by GET, in the order expected by STMState.commandGET().
+	 */
+	private static final int[] COMMANDS = {
+		0x00, 0x01, 0x02, 0x11, 0x21, 0x31, 0x43, 0x63, 0x73, 0x82, 0x92
+	};
+	/**
+	 * VEXnet sequence which resets the Cortex into the bootloader.
+	 */
+	private static final int[] BOOTLOAD = { 0xC9, 0x36, 0xB8, 0x47, 0x25 };
+	/**
+	 * VEXnet sequence which stops user code.
+	 */
+	private static final int[] STOP_USER_CODE = {
+		0x0F, 0x0F, 0x21, 0xDE, 0x08, 0x00, 0x00, 0x00, 0x08, 0xF1, 0x04
+	};
+	/**
+	 * VEXnet sequence which asks for system information.
+	 */
+	private static final int[] SYSINFO = { 0xC9, 0x36, 0xB8, 0x47, 0x21 };
+	/**
+	 * Canned system information reply. VexFlash only checks the length (14 bytes).
+	 */
+	private static final int[] SYSINFO_REPLY = {
+		0xAA, 0x55, 0x21, 0x0A, 0x03, 0x20, 0x04, 0x0C, 0x7E, 0x00, 0x01, 0x00, 0x00, 0x00
+	};
+
+	// Bootloader command parser phases
+	private static final int PHASE_CMD = 0;
+	private static final int PHASE_CMD_CHECK = 1;
+	private static final int PHASE_ADDRESS = 2;
+	private static final int PHASE_RD_COUNT = 3;
+	private static final int PHASE_WM_COUNT = 4;
+	private static final int PHASE_WM_DATA = 5;
+	private static final int PHASE_PAGES_COUNT = 6;
+	private static final int PHASE_PAGES = 7;
+	private static final int PHASE_GLOBAL_ERASE = 8;
+
+	/**
+	 * Address decoded by the last PHASE_ADDRESS.
+	 */
+	private int address;
+	/**
+	 * Baud rate locked in by the autobaud byte, or 0 if not yet locked.
+	 */
+	private int baudLocked;
+	/**
+	 * Nanoseconds spent erasing or programming since the last takeBusyNanos().
+	 */
+	private long busyNanos;
+	/**
+	 * Current bootloader command.
+	 */
+	private int command;
+	/**
+	 * Number of bootloader commands processed.
+	 */
+	private long commandCount;
+	/**
+	 * The device being modelled.
+	 */
+	private final STMDevice device;
+	/**
+	 * Flash contents, starting at device.getFlashStart().
+	 */
+	private final byte[] flash;
+	/**
+	 * Bytes of the current bootloader command argument.
+	 */
+	private final byte[] frame;
+	/**
+	 * Number of bytes in frame.
+	 */
+	private int frameLen;
+	/**
+	 * Number of bytes expected in frame for the current phase.
+	 */
+	private int frameWant;
+	/**
+	 * Baud rate currently used by the host.
+	 */
+	private int hostBaud;
+	/**
+	 * Parity currently used by the host.
+	 */
+	private int hostParity;
+	/**
+	 * Time needed to erase everything.
+	 */
+	private long massEraseNanos;
+	/**
+	 * Current mode, one of the MODE_xxx constants.
+	 */
+	private int mode;
+	/**
+	 * Number of NACKs sent.
+	 */
+	private long nackCount;
+	/**
+	 * Response bytes not yet collected.
+	 */
+	private byte[] out;
+	/**
+	 * Number of valid bytes in out.
+	 */
+	private int outLen;
+	/**
+	 * Time needed to erase one page.
+	 */
+	private long pageEraseNanos;
+	/**
+	 * Number of pages erased.
+	 */
+	private long pagesErased;
+	/**
+	 * Current bootloader parser phase.
+	 */
+	private int phase;
+	/**
+	 * SRAM contents, starting at RAM_BASE.
+	 */
+	private final byte[] ram;
+	/**
+	 * Time from BOOTLOAD until the bootloader listens for the autobaud byte.
+	 */
+	private long resetNanos;
+	/**
+	 * Time at which the bootloader will be ready after the last reset.
+	 */
+	private long readyAt;
+	/**
+	 * Recent bytes seen by the VEXnet layer, used to match its sequences.
+	 */
+	private final int[] recent;
+	/**
+	 * Number of bytes in recent.
+	 */
+	private int recentLen;
+	/**
+	 * The 96-bit unique device ID, at STMDevice.UNIQUE_ID.
+	 */
+	private final byte[] uniqueID;
+	/**
+	 * Number of bytes written to memory with WM.
+	 */
+	private long bytesProgrammed;
+	/**
+	 * Time needed to program one half word of Flash.
+	 */
+	private long wordProgramNanos;
+
+	/**
+	 * Creates a Cortex simulator with erased Flash and user code running.
+	 *
+	 * @param device the STM32 device to model (Flash and RAM sizes, page size and PID)
+	 */
+	public STMBootloaderSimulator(final STMDevice device) {
+		this.device = device;
+		flash = new byte[device.getFlashSize()];
+		frame = new byte[260];
+		ram = new byte[device.getRamEnd() - RAM_BASE];
+		recent = new int[STOP_USER_CODE.length];
+		out = new byte[512];
+		java.util.Arrays.fill(flash, (byte)0xFF);
+		hostBaud = VexFlash.BAUD;
+		hostParity = SerialTransport.PARITY_NONE;
+		mode = MODE_USER;
+		// Typical figures from the STM32F10x datasheets
+		massEraseNanos = 40000000L;
+		pageEraseNanos = 20000000L;
+		resetNanos = 0L;
+		// Every simulated Cortex is a different one
+		uniqueID = new byte[STMDevice.UNIQUE_ID_LENGTH];
+		new java.util.Random().nextBytes(uniqueID);
+		wordProgramNanos = 52500L;
+	}
+	/**
+	 * Appends one response byte.
+	 *
+	 * @param value the byte to send to the host
+	 */
+	private void emit(final int value) {
+		if (outLen >= out.length) {
+			final byte[] bigger = new byte[out.length * 2];
+			System.arraycopy(out, 0, bigger, 0, outLen);
+			out = bigger;
+		}
+		out[outLen++] = (byte)value;
+	}
+	/**
+	 * Erases the given Flash page.
+	 *
+	 * @param page the page number counted from the start of Flash
+	 * @return whether the page exists
+	 */
+	private boolean erasePage(final int page) {
+		final int ps = device.getPageSize(), start = page * ps;
+		if (page < 0 || start + ps > flash.length)
+			return false;
+		java.util.Arrays.fill(flash, start, start + ps, (byte)0xFF);
+		busyNanos += pageEraseNanos;
+		pagesErased++;
+		return true;
+	}
+	/**
+	 * Handles the second byte of a bootloader command.
+	 *
+	 * @param value the byte received
+	 */
+	private void commandCheck(final int value) {
+		if (((command ^ value) & 0xFF) != 0xFF || !isSupported(command)) {
+			nack();
+			return;
+		}
+		commandCount++;
+		emit(ACK);
+		switch (command) {
+		case 0x00:
+			// GET: count, version, commands
+			emit(COMMANDS.length);
+			emit(BOOTLOADER_VERSION);
+			for (int cmd : COMMANDS)
+				emit(cmd);
+			emit(ACK);
+			phase = PHASE_CMD;
+			break;
+		case 0x01:
+			// GVR: version, option bytes
+			emit(BOOTLOADER_VERSION);
+			emit(0x00);
+			emit(0x00);
+			emit(ACK);
+			phase = PHASE_CMD;
+			break;
+		case 0x02:
+			// GID: count, PID
+			emit(1);
+			emit((device.getID() >> 8) & 0xFF);
+			emit(device.getID() & 0xFF);
+			emit(ACK);
+			phase = PHASE_CMD;
+			break;
+		case 0x11:
+		case 0x21:
+		case 0x31:
+			// RD, GO, WM take an address first
+			expect(PHASE_ADDRESS, 5);
+			break;
+		case 0x43:
+		case 0x63:
+			// ER, WP take a page list
+			expect(PHASE_PAGES_COUNT, 1);
+			break;
+		case 0x92:
+			// UR erases everything
+			java.util.Arrays.fill(flash, (byte)0xFF);
+			busyNanos += massEraseNanos;
+			emit(ACK);
+			phase = PHASE_CMD;
+			break;
+		default:
+			// UW, RP have no arguments
+			emit(ACK);
+			phase = PHASE_CMD;
+			break;
+		}
+	}
+	/**
+	 * Handles a complete address frame.
+	 */
+	private void commandAddress() {
+		final int addr = ((frame[0] & 0xFF) << 24) | ((frame[1] & 0xFF) << 16) |
+			((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF);
+		if (Utils.checksum((byte)0, frame, 0, 4) != frame[4] || !isMapped(addr, 1) &&
+				(command != 0x11 || !isUniqueID(addr, 1))) {
+			nack();
+			return;
+		}
+		address = addr;
+		emit(ACK);
+		if (command == 0x11)
+			expect(PHASE_RD_COUNT, 2);
+		else if (command == 0x31)
+			expect(PHASE_WM_COUNT, 1);
+		else {
+			// GO: jump to user code
+			mode = MODE_USER;
+			phase = PHASE_CMD;
+		}
+	}
+	/**
+	 * Handles a complete page list frame for ER or WP.
+	 */
+	private void commandPages() {
+		final int count = (frame[0] & 0xFF) + 1;
+		if (Utils.checksum((byte)0, frame, 0, count + 1) != frame[count + 1]) {
+			nack();
+			return;
+		}
+		boolean ok = true;
+		if (command == 0x43)
+			for (int i = 1; i <= count; i++)
+				ok &= erasePage(frame[i] & 0xFF);
+		emit(ok ? ACK : NACK);
+		if (!ok)
+			nackCount++;
+		phase = PHASE_CMD;
+	}
+	/**
+	 * Handles a complete RD length frame.
+	 */
+	private void commandRead() {
+		final int len = (frame[0] & 0xFF) + 1;
+		if (((frame[0] ^ frame[1]) & 0xFF) != 0xFF || !isMapped(address, len) &&
+				!isUniqueID(address, len)) {
+			nack();
+			return;
+		}
+		emit(ACK);
+		for (int i = 0; i < len; i++)
+			emit(peek(address + i));
+		phase = PHASE_CMD;
+	}
+	/**
+	 * Handles a complete WM data frame.
+	 */
+	private void commandWrite() {
+		final int len = (frame[0] & 0xFF) + 1;
+		if (Utils.checksum((byte)0, frame, 0, len + 1) != frame[len + 1] ||
+				!isMapped(address, len) || !program(address, frame, 1, len)) {
+			nack();
+			return;
+		}
+		bytesProgrammed += len;
+		emit(ACK);
+		phase = PHASE_CMD;
+	}
+	/**
+	 * Sets up the parser to collect a frame of the given size.
+	 *
+	 * @param next the next parser phase
+	 * @param want the number of bytes to collect
+	 */
+	private void expect(final int next, final int want) {
+		phase = next;
+		frameLen = 0;
+		frameWant = want;
+	}
+	/**
+	 * Gets the number of bytes written to memory with WM.
+	 *
+	 * @return the number of bytes programmed
+	 */
+	public synchronized long getBytesProgrammed() {
+		return bytesProgrammed;
+	}
+	/**
+	 * Gets the number of valid bootloader commands processed.
+	 *
+	 * @return the command count
+	 */
+	public synchronized long getCommandCount() {
+		return commandCount;
+	}
+	/**
+	 * Gets the device being modelled.
+	 *
+	 * @return the STM32 device
+	 */
+	public STMDevice getDevice() {
+		return device;
+	}
+	/**
+	 * Gets the current mode.
+	 *
+	 * @return one of the MODE_xxx constants
+	 */
+	public synchronized int getMode() {
+		return mode;
+	}
+	/**
+	 * Gets the number of NACKs sent.
+	 *
+	 * @return the NACK count
+	 */
+	public synchronized long getNackCount() {
+		return nackCount;
+	}
+	/**
+	 * Gets the number of Flash pages erased.
+	 *
+	 * @return the erased page count, with a mass erase counting every page
+	 */
+	public synchronized long getPagesErased() {
+		return pagesErased;
+	}
+	/**
+	 * Gets the unique ID which the simulated device reports at its ID address.
+	 *
+	 * @return a copy of the 96-bit unique ID
+	 */
+	public byte[] getUniqueID() {
+		return uniqueID.clone();
+	}
+	/**
+	 * Checks whether the command is one of those reported by GET.
+	 *
+	 * @param cmd the command code
+	 * @return whether the bootloader implements it
+	 */
+	private static boolean isSupported(final int cmd) {
+		for (int c : COMMANDS)
+			if (c == cmd)
+				return true;
+		return false;
+	}
+	/**
+	 * Checks whether a memory range lies entirely in Flash or in SRAM.
+	 *
+	 * @param addr the starting address
+	 * @param len the number of bytes
+	 * @return whether the range can be accessed
+	 */
+	private boolean isMapped(final int addr, final int len) {
+		final long start = addr & 0xFFFFFFFFL, end = start + len;
+		return (start >= (device.getFlashStart() & 0xFFFFFFFFL) && end <=
+			(device.getFlashEnd() & 0xFFFFFFFFL)) || (start >= RAM_BASE && end <=
+			(device.getRamEnd() & 0xFFFFFFFFL));
+	}
+	/**
+	 * Checks whether a memory range lies entirely in the unique device ID, which can only be
+	 * read.
+	 *
+	 * @param addr the starting address
+	 * @param len the number of bytes
+	 * @return whether the range can be read
+	 */
+	private boolean isUniqueID(final int addr, final int len) {
+		final long start = addr & 0xFFFFFFFFL;
+		return start >= STMDevice.UNIQUE_ID && start + len <= STMDevice.UNIQUE_ID +
+			uniqueID.length;
+	}
+	/**
+	 * Copies data into Flash, as if the host had programmed it. Useful to set up an
+	 * existing image before a test.
+	 *
+	 * @param offset the offset from the start of Flash
+	 * @param data the data to load
+	 */
+	public synchronized void loadFlash(final int offset, final byte[] data) {
+		System.arraycopy(data, 0, flash, offset, data.length);
+	}
+	/**
+	 * Sends a NACK and returns to the command phase.
+	 */
+	private void nack() {
+		emit(NACK);
+		nackCount++;
+		phase = PHASE_CMD;
+	}
+	/**
+	 * Reads one byte of mapped memory.
+	 *
+	 * @param addr the address to read
+	 * @return the byte value
+	 */
+	private int peek(final int addr) {
+		if (addr - device.getFlashStart() >= 0 && addr - device.getFlashStart() < flash.length)
+			return flash[addr - device.getFlashStart()] & 0xFF;
+		if (isUniqueID(addr, 1))
+			return uniqueID[addr - STMDevice.UNIQUE_ID] & 0xFF;
+		return ram[addr - RAM_BASE] & 0xFF;
+	}
+	/**
+	 * Programs memory. Flash half words can only be programmed once after an erase, so a
+	 * write over non-erased Flash fails like it does on hardware; writes of 0xFFFF are
+	 * skipped.
+	 *
+	 * @param addr the starting address
+	 * @param data the data buffer
+	 * @param offset the offset of the data in the buffer
+	 * @param len the number of bytes to write
+	 * @return whether the write succeeded
+	 */
+	private boolean program(final int addr, final byte[] data, final int offset,
+			final int len) {
+		final int fo = addr - device.getFlashStart();
+		if (fo < 0 || fo >= flash.length) {
+			System.arraycopy(data, offset, ram, addr - RAM_BASE, len);
+			return true;
+		}
+		for (int i = 0; i < len; i += 2) {
+			final int hw = (data[offset + i] & 0xFF) | ((data[offset + i + 1] & 0xFF) << 8);
+			final int old = (flash[fo + i] & 0xFF) | ((flash[fo + i + 1] & 0xFF) << 8);
+			if (hw != 0xFFFF) {
+				if (old != 0xFFFF)
+					return false;
+				flash[fo + i] = data[offset + i];
+				flash[fo + i + 1] = data[offset + i + 1];
+				busyNanos += wordProgramNanos;
+			}
+		}
+		return true;
+	}
+	/**
+	 * Reads memory directly, bypassing the bootloader.
+	 *
+	 * @param addr the starting address in Flash or SRAM
+	 * @param length the number of bytes to read
+	 * @return the memory contents
+	 */
+	public synchronized byte[] readMemory(final int addr, final int length) {
+		if (!isMapped(addr, length))
+			throw new IllegalArgumentException(String.format("Unmapped address %08X", addr));
+		final byte[] data = new byte[length];
+		for (int i = 0; i < length; i++)
+			data[i] = (byte)peek(addr + i);
+		return data;
+	}
+	/**
+	 * Feeds one byte from the host into the simulator.
+	 *
+	 * @param value the byte received; the 24 high order bits are ignored
+	 * @param now the time (System.nanoTime() scale) at which the byte arrives
+	 */
+	public synchronized void receive(final int value, final long now) {
+		final int b = value & 0xFF;
+		switch (mode) {
+		case MODE_BOOT_WAIT:
+			// Bytes sent before the reset completes, or with the wrong framing, are lost
+			if (now >= readyAt && hostParity == SerialTransport.PARITY_EVEN && b == 0x7F) {
+				baudLocked = hostBaud;
+				mode = MODE_BOOTLOADER;
+				phase = PHASE_CMD;
+				emit(ACK);
+			}
+			break;
+		case MODE_BOOTLOADER:
+			// The USART drops characters with parity or framing errors
+			if (hostParity == SerialTransport.PARITY_EVEN && hostBaud == baudLocked)
+				receiveBootloader(b);
+			break;
+		default:
+			receiveVEXnet(b, now);
+			break;
+		}
+	}
+	/**
+	 * Feeds one byte into the bootloader command parser.
+	 *
+	 * @param b the byte received
+	 */
+	private void receiveBootloader(final int b) {
+		switch (phase) {
+		case PHASE_CMD:
+			command = b;
+			phase = PHASE_CMD_CHECK;
+			break;
+		case PHASE_CMD_CHECK:
+			commandCheck(b);
+			break;
+		case PHASE_PAGES_COUNT:
+			frame[0] = (byte)b;
+			if (b == 0xFF && command == 0x43)
+				// Global erase, only a 0x00 checksum follows
+				expect(PHASE_GLOBAL_ERASE, 1);
+			else {
+				expect(PHASE_PAGES, b + 3);
+				frameLen = 1;
+			}
+			break;
+		case PHASE_GLOBAL_ERASE:
+			if (b == 0x00) {
+				java.util.Arrays.fill(flash, (byte)0xFF);
+				busyNanos += massEraseNanos;
+				pagesErased += flash.length / device.getPageSize();
+				emit(ACK);
+				phase = PHASE_CMD;
+			} else
+				nack();
+			break;
+		case PHASE_WM_COUNT:
+			frame[0] = (byte)b;
+			// Data and checksum
+			expect(PHASE_WM_DATA, b + 3);
+			frameLen = 1;
+			break;
+		default:
+			// Collecting a frame
+			frame[frameLen++] = (byte)b;
+			if (frameLen >= frameWant) {
+				if (phase == PHASE_ADDRESS)
+					commandAddress();
+				else if (phase == PHASE_RD_COUNT)
+					commandRead();
+				else if (phase == PHASE_WM_DATA)
+					commandWrite();
+				else
+					commandPages();
+			}
+			break;
+		}
+	}
+	/**
+	 * Feeds one byte into the VEXnet firmware sequence matcher.
+	 *
+	 * @param b the byte received
+	 * @param now the time at which the byte arrives
+	 */
+	private void receiveVEXnet(final int b, final long now) {
+		if (recentLen == recent.length) {
+			System.arraycopy(recent, 1, recent, 0, recentLen - 1);
+			recentLen--;
+		}
+		recent[recentLen++] = b;
+		if (matches(STOP_USER_CODE)) {
+			mode = MODE_FIRMWARE;
+			recentLen = 0;
+		} else if (matches(SYSINFO)) {
+			for (int value : SYSINFO_REPLY)
+				emit(value);
+			recentLen = 0;
+		} else if (matches(BOOTLOAD)) {
+			// Reset into the bootloader
+			mode = MODE_BOOT_WAIT;
+			baudLocked = 0;
+			readyAt = now + resetNanos;
+			recentLen = 0;
+		}
+	}
+	/**
+	 * Checks whether the most recent VEXnet bytes end with the given sequence.
+	 *
+	 * @param seq the sequence to look for
+	 * @return whether it was just received
+	 */
+	private boolean matches(final int[] seq) {
+		final int len = seq.length, base = recentLen - len;
+		if (base < 0)
+			return false;
+		for (int i = 0; i < len; i++)
+			if (recent[base + i] != seq[i])
+				return false;
+		return true;
+	}
+	/**
+	 * Changes the line parameters used by the host. Characters sent with the wrong parity
+	 * or baud rate are lost by the bootloader.
+	 *
+	 * @param baud the host baud rate
+	 * @param parity the host parity, SerialTransport.PARITY_NONE or PARITY_EVEN
+	 */
+	public synchronized void setLineParams(final int baud, final int parity) {
+		hostBaud = baud;
+		hostParity = parity;
+	}
+	/**
+	 * Changes the time needed to erase everything.
+	 *
+	 * @param nanos the mass erase time in nanoseconds
+	 */
+	public synchronized void setMassEraseNanos(final long nanos) {
+		massEraseNanos = nanos;
+	}
+	/**
+	 * Changes the time needed to erase one page.
+	 *
+	 * @param nanos the page erase time in nanoseconds
+	 */
+	public synchronized void setPageEraseNanos(final long nanos) {
+		pageEraseNanos = nanos;
+	}
+	/**
+	 * Changes the time from BOOTLOAD until the bootloader is listening.
+	 *
+	 * @param nanos the reset time in nanoseconds
+	 */
+	public synchronized void setResetNanos(final long nanos) {
+		resetNanos = nanos;
+	}
+	/**
+	 * Changes the time needed to program one half word of Flash.
+	 *
+	 * @param nanos the programming time in nanoseconds
+	 */
+	public synchronized void setWordProgramNanos(final long nanos) {
+		wordProgramNanos = nanos;
+	}
+	/**
+	 * Returns and clears the time spent erasing or programming since the last call.
+	 *
+	 * @return the busy time in nanoseconds
+	 */
+	public synchronized long takeBusyNanos() {
+		final long busy = busyNanos;
+		busyNanos = 0L;
+		return busy;
+	}
+	/**
+	 * Returns and clears the response bytes produced since the last call.
+	 *
+	 * @return the bytes to send to the host, possibly empty
+	 */
+	public synchronized byte[] takeOutput() {
+		final byte[] data = new byte[outLen];
+		System.arraycopy(out, 0, data, 0, outLen);
+		outLen = 0;
+		return data;
+	}
+	public String toString() {
+		return String.format("%s[device=%s,mode=%d]", getClass().getSimpleName(),
+			device.getName(), mode);
+	}
+}
@@ -0,0 +1,234 @@
+package edu.purdue.sigbots.ros.eclipse.flashutil.sim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import edu.purdue.sigbots.ros.eclipse.flashutil.*;
+
+/**
+ * A serial transport connected to a simulated Cortex instead of a physical device. Bytes are
+ * handed to the simulator as they are written, and its responses become readable after the
+ * delays given by the latency profile.
+ */
+public class SimulatorTransport implements SerialTransport {
+	/**
+	 * The simulated device at the far end of the link.
+	 */
+	private final STMBootloaderSimulator device;
+	/**
+	 * Baud rate set by the host.
+	 */
+	private int baud;
+	/**
+	 * Whether the transport has been closed.
+	 */
+	private boolean closed;
+	/**
+	 * Time at which the device finishes sending the last queued response byte.
+	 */
+	private long deviceDone;
+	/**
+	 * Transport name reported by getName().
+	 */
+	private final String name;
+	/**
+	 * Parity set by the host.
+	 */
+	private int parity;
+	/**
+	 * Timing of the link.
+	 */
+	private final LatencyProfile profile;
+	/**
+	 * Random source for jitter.
+	 */
+	private final Random random;
+	/**
+	 * Queued response bytes (circular).
+	 */
+	private byte[] rx;
+	/**
+	 * Number of queued response bytes.
+	 */
+	private int rxCount;
+	/**
+	 * Index of the first queued response byte.
+	 */
+	private int rxHead;
+	/**
+	 * Time at which each queued response byte becomes readable.
+	 */
+	private long[] rxTime;
+	/**
+	 * Time at which the host finishes sending the last written byte.
+	 */
+	private long txDone;
+
+	/**
+	 * Creates a simulated serial transport.
+	 *
+	 * @param name the port name to report
+	 * @param device the simulated Cortex to connect to
+	 * @param profile the link timing to use
+	 */
+	public SimulatorTransport(final String name, final STMBootloaderSimulator device,
+			final LatencyProfile profile) {
+		this.device = device;
+		this.name = name;
+		this.profile = profile;
+		baud = VexFlash.BAUD;
+		closed = false;
+		parity = PARITY_NONE;
+		random = new Random();
+		rx = new byte[1024];
+		rxTime = new long[1024];
+		rxCount = 0;
+		rxHead = 0;
+	}
+	public synchronized void close() {
+		closed = true;
+		rxCount = 0;
+	}
+	public void drain(final long timeout) {
+		final long done;
+		synchronized (this) {
+			done = txDone;
+		}
+		sleepUntil((timeout > 0L) ? Math.min(done, System.nanoTime() + timeout * 1000000L) :
+			done);
+	}
+	/**
+	 * Adds one response byte to the receive queue.
+	 *
+	 * @param value the byte
+	 * @param time the time at which it becomes readable
+	 */
+	private void enqueue(final byte value, final long time) {
+		if (rxCount == rx.length) {
+			final byte[] newRx = new byte[rx.length * 2];
+			final long[] newTime = new long[rx.length * 2];
+			for (int i = 0; i < rxCount; i++) {
+				newRx[i] = rx[(rxHead + i) % rx.length];
+				newTime[i] = rxTime[(rxHead + i) % rx.length];
+			}
+			rx = newRx;
+			rxTime = newTime;
+			rxHead = 0;
+		}
+		final int tail = (rxHead + rxCount) % rx.length;
+		rx[tail] = value;
+		// Bytes never overtake each other
+		rxTime[tail] = (rxCount > 0) ? Math.max(time, rxTime[(tail + rx.length - 1) %
+			rx.length]) : time;
+		rxCount++;
+	}
+	/**
+	 * Gets the simulated device at the far end of this transport.
+	 *
+	 * @return the simulated Cortex
+	 */
+	public STMBootloaderSimulator getDevice() {
+		return device;
+	}
+	public String getName() {
+		return name;
+	}
+	/**
+	 * Gets the link timing of this transport.
+	 *
+	 * @return the latency profile
+	 */
+	public LatencyProfile getProfile() {
+		return profile;
+	}
+	public synchronized void open() throws IOException {
+		if (closed)
+			throw new IOException("Port is closed");
+		device.setLineParams(baud, parity);
+	}
+	public synchronized void purge() {
+		// Only bytes which have already arrived can be discarded
+		final long now = System.nanoTime();
+		while (rxCount > 0 && rxTime[rxHead] <= now) {
+			rxHead = (rxHead + 1) % rx.length;
+			rxCount--;
+		}
+	}
+	public int read(final byte[] data, final int offset, final int length, final long timeout)
+			throws IOException {
+		final long deadline = (timeout > 0L) ? System.nanoTime() + timeout * 1000000L :
+			Long.MAX_VALUE;
+		final long ready;
+		synchronized (this) {
+			if (closed)
+				throw new IOException("Port is closed");
+			// Nothing else produces bytes, so the answer is known right away
+			ready = (rxCount >= length) ? rxTime[(rxHead + length - 1) % rx.length] :
+				Long.MAX_VALUE;
+		}
+		if (ready > deadline) {
+			if (deadline == Long.MAX_VALUE)
+				throw new EOFException("Simulated device will never answer");
+			sleepUntil(deadline);
+			return 0;
+		}
+		sleepUntil(ready);
+		synchronized (this) {
+			for (int i = 0; i < length; i++) {
+				data[offset + i] = rx[rxHead];
+				rxHead = (rxHead + 1) % rx.length;
+			}
+			rxCount -= length;
+		}
+		return length;
+	}
+	public void setDTR(final boolean enabled) {
+	}
+	public synchronized void setParams(final int baud, final int parity) {
+		this.baud = baud;
+		this.parity = parity;
+		device.setLineParams(baud, parity);
+	}
+	public void setRTS(final boolean enabled) {
+	}
+	/**
+	 * Waits until the specified time.
+	 *
+	 * @param time the System.nanoTime() value to wait for
+	 */
+	private static void sleepUntil(final long time) {
+		long left;
+		while ((left = time - System.nanoTime()) > 0L)
+			LockSupport.parkNanos(left);
+	}
+	public String toString() {
+		return String.format("%s[name=%s,profile=%s]", getClass().getSimpleName(), name,
+			profile);
+	}
+	public synchronized void write(final byte[] data, final int offset, final int length)
+			throws IOException {
+		if (closed)
+			throw new IOException("Port is closed");
+		final long byteTime = profile.getByteNanos(baud, parity);
+		long sent = Math.max(System.nanoTime(), txDone);
+		final long arrival = profile.sampleDelay(random);
+		for (int i = offset; i < offset + length; i++) {
+			sent += byteTime;
+			final long at = sent + arrival;
+			device.receive(data[i], at);
+			final byte[] reply = device.takeOutput();
+			if (reply.length > 0) {
+				// Device turns around after any erase or programming work
+				long time = Math.max(at + device.takeBusyNanos(), deviceDone);
+				final long back = profile.sampleDelay(random);
+				for (byte value : reply) {
+					time += byteTime;
+					enqueue(value, time + back);
+				}
+				deviceDone = time;
+			} else
+				device.takeBusyNanos();
+		}
+		txDone = sent;
+	}
+}